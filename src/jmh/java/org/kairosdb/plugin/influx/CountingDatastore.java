@@ -0,0 +1,60 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datastore.Datastore;
+import org.kairosdb.core.datastore.DatastoreMetricQuery;
+import org.kairosdb.core.datastore.QueryCallback;
+import org.kairosdb.core.datastore.TagSet;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Datastore only counting the data points written, so that benchmarks measure the ingest path and nothing else.
+ */
+public class CountingDatastore implements Datastore {
+
+    private final AtomicLong dataPoints = new AtomicLong();
+
+    public long getDataPoints() {
+        return dataPoints.get();
+    }
+
+    @Override
+    public void putDataPoint(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint, int ttl) {
+        dataPoints.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Iterable<String> getMetricNames() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Iterable<String> getTagNames() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Iterable<String> getTagValues() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback) {
+    }
+
+    @Override
+    public void deleteDataPoints(DatastoreMetricQuery deleteQuery) {
+    }
+
+    @Override
+    public TagSet queryMetricTags(DatastoreMetricQuery query) {
+        return null;
+    }
+}
@@ -0,0 +1,99 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.util.Tags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per data point of the batch writer, with and without grouping the points of each batch by series, against a
+ * {@link RowKeyDatastore} charging every switch from a series to another. The points are written the way they
+ * arrive from many hosts, interleaved: the fields of every host at a timestamp, then at the next one, so that a batch
+ * holds more points per series with fewer hosts.
+ * Row switches per point are printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InfluxBatchWriterBenchmark {
+
+    private static final int FIELDS = 4;
+    private static final int POINTS = 20000;
+    private static final int BATCH_SIZE = 5000;
+
+    @Param({"true", "false"})
+    public boolean grouped;
+
+    @Param({"50", "500"})
+    public int hosts;
+
+    private RowKeyDatastore datastore;
+    private InfluxBatchWriter writer;
+    private String[] metricNames;
+    private ImmutableSortedMap<String, String>[] tags;
+    private DataPoint[] dataPoints;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        metricNames = new String[POINTS];
+        tags = new ImmutableSortedMap[POINTS];
+        dataPoints = new DataPoint[POINTS];
+        ImmutableSortedMap<String, String>[] hostTags = new ImmutableSortedMap[hosts];
+        for (int host = 0; host < hosts; host++) {
+            hostTags[host] = Tags.create().put("host", "server" + host).put("dc", "dc" + host % 3).build();
+        }
+        for (int i = 0; i < POINTS; i++) {
+            int host = i / FIELDS % hosts;
+            metricNames[i] = "cpu.field" + i % FIELDS;
+            tags[i] = hostTags[host];
+            dataPoints[i] = new DoubleDataPoint(1500000000000L + i / (FIELDS * hosts) * 10000L, i);
+        }
+
+        datastore = new RowKeyDatastore();
+        writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), BATCH_SIZE, 100, 1, 64, grouped,
+                null, 0);
+        writer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws KairosDBException {
+        writer.stop();
+        System.out.printf("%n%.3f row switches, %.3f row key misses per data point%n",
+                (double) datastore.getRowSwitches() / datastore.getDataPoints(),
+                (double) datastore.getRowKeyMisses() / datastore.getDataPoints());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public void write() throws DatastoreException {
+        long expected = datastore.getDataPoints() + POINTS;
+        for (int i = 0; i < POINTS; i++) {
+            writer.write(metricNames[i], tags[i], dataPoints[i]);
+        }
+        while (datastore.getDataPoints() < expected) {
+            Thread.yield();
+        }
+    }
+}
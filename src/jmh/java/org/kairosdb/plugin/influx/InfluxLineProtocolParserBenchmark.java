@@ -0,0 +1,118 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parser throughput per line shape. Run with -prof gc to get the allocation rate (gc.alloc.rate.norm is the
+ * number of bytes allocated per parsed line).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InfluxLineProtocolParserBenchmark {
+
+    public enum Shape {
+        FEW_TAGS("cpu,host=server01 value=0.64 1471122447000000000"),
+        MANY_TAGS("disk,device=sda1,fstype=ext4,host=server01,mode=rw,path=/var/lib,region=eu-west-1,rack=r12," +
+                "dc=dc1,env=production,team=storage used_percent=42.5 1471122447000000000"),
+        MANY_FIELDS("mem,host=server01 active=1024i,available=2048i,available_percent=62.5,buffered=512i," +
+                "cached=4096i,free=1536i,inactive=768i,total=16384i,used=6144i,used_percent=37.5,slab=256i," +
+                "swap_cached=0i,swap_free=8192i,swap_total=8192i,vmalloc_used=12i,wired=0i,write_back=0i," +
+                "dirty=8i,high_free=0i,low_free=0i 1471122447000000000"),
+        ESCAPED("cpu\\ load,host\\,name=server\\ 01,path=C:\\\\Temp 1\\ min=0.64,5\\ min=0.58 1471122447000000000"),
+        STRING_FIELDS("logs,host=server01 message=\"Connection refused, retrying in 5s\",level=\"warn\"," +
+                "code=111i 1471122447000000000"),
+        NO_TIMESTAMP("cpu,host=server01,region=eu-west-1 usage_user=12.5,usage_system=3.25,usage_idle=84.25");
+
+        private final String line;
+
+        Shape(String line) {
+            this.line = line;
+        }
+    }
+
+    @Param
+    public Shape shape;
+
+    private String string;
+    private byte[] bytes;
+    private SeriesCache seriesCache;
+
+    private InfluxLineHandler handler;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        string = shape.line;
+        bytes = shape.line.getBytes(Charsets.UTF_8);
+        seriesCache = new SeriesCache(1000, ".");
+        handler = new InfluxLineHandler() {
+            @Override
+            public void begin(String measurement, ImmutableSortedMap<String, String> tags, InfluxSeries series, long timestamp) {
+                blackhole.consume(tags);
+                blackhole.consume(timestamp);
+            }
+
+            @Override
+            public void longField(String field, long value) {
+                blackhole.consume(field);
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void doubleField(String field, double value) {
+                blackhole.consume(field);
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void stringField(String field, String value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+    }
+
+    @Benchmark
+    public InfluxMetric parseString() {
+        return InfluxLineProtocolParser.parse(string);
+    }
+
+    @Benchmark
+    public InfluxMetric parseBytes() {
+        return InfluxLineProtocolParser.parse(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public InfluxMetric parseBytesCached() {
+        return InfluxLineProtocolParser.parse(bytes, 0, bytes.length, seriesCache);
+    }
+
+    /**
+     * Streaming API with the series cache, the allocations left being the ones of string values.
+     */
+    @Benchmark
+    public boolean parseHandlerCached() {
+        return InfluxLineProtocolParser.parse(bytes, 0, bytes.length, seriesCache, ParseOptions.DEFAULT, 0L, handler);
+    }
+}
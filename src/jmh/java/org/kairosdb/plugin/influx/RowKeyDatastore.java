@@ -0,0 +1,86 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Datastore modelling the cost of switching rows, the way KairosDB on Cassandra pays it: every time a writer thread
+ * puts a data point of another series than its previous one, the row key is serialized and looked up in a small
+ * cache of the row keys recently written, a miss standing for a row key index write. Points of the same series in a
+ * row only cost the counting.
+ */
+public class RowKeyDatastore extends CountingDatastore {
+
+    private static final int ROW_KEY_CACHE_SIZE = 64;
+
+    private final AtomicLong rowSwitches = new AtomicLong();
+    private final AtomicLong rowKeyMisses = new AtomicLong();
+    private final ThreadLocal<Writer> writers = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            return new Writer();
+        }
+    };
+
+    public long getRowSwitches() {
+        return rowSwitches.get();
+    }
+
+    public long getRowKeyMisses() {
+        return rowKeyMisses.get();
+    }
+
+    @Override
+    public void putDataPoint(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint, int ttl) {
+        Writer writer = writers.get();
+        if (!metricName.equals(writer.metricName) || !tags.equals(writer.tags)) {
+            writer.metricName = metricName;
+            writer.tags = tags;
+            rowSwitches.incrementAndGet();
+            ByteBuffer rowKey = rowKey(writer.buffer, metricName, tags, dataPoint.getTimestamp());
+            if (writer.rowKeys.put(rowKey, Boolean.TRUE) == null) {
+                rowKeyMisses.incrementAndGet();
+            }
+        }
+        super.putDataPoint(metricName, tags, dataPoint, ttl);
+    }
+
+    /**
+     * Metric name, row time (3 weeks) and tags, as KairosDB's row key serializer lays them out
+     */
+    private static ByteBuffer rowKey(ByteArrayOutputStream buffer, String metricName,
+                                     ImmutableSortedMap<String, String> tags, long timestamp) {
+        buffer.reset();
+        byte[] name = metricName.getBytes(Charsets.UTF_8);
+        buffer.write(name, 0, name.length);
+        buffer.write(0);
+        long rowTime = timestamp - timestamp % 1814400000L;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer.write((int) (rowTime >>> shift));
+        }
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            byte[] bytes = (tag.getKey() + '=' + tag.getValue() + ':').getBytes(Charsets.UTF_8);
+            buffer.write(bytes, 0, bytes.length);
+        }
+        return ByteBuffer.wrap(buffer.toByteArray());
+    }
+
+    private static final class Writer {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        private final Map<ByteBuffer, Boolean> rowKeys = new LinkedHashMap<ByteBuffer, Boolean>(128, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > ROW_KEY_CACHE_SIZE;
+            }
+        };
+        private String metricName;
+        private ImmutableSortedMap<String, String> tags;
+    }
+}
@@ -0,0 +1,54 @@
+package org.kairosdb.plugin.influx;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of telegraf traffic with and without the {@link SeriesCache}. Run with -prof gc to compare the
+ * allocation rates as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SeriesCacheBenchmark {
+
+    private static final int HOSTS = 100;
+    private static final int INTERVALS = 10;
+    private static final int LINES = HOSTS * 8 * INTERVALS;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private byte[][] lines;
+    private SeriesCache seriesCache;
+
+    @Setup
+    public void setUp() {
+        lines = TelegrafLines.generate(HOSTS, INTERVALS);
+        seriesCache = cached ? new SeriesCache(100000, ".") : null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parse(Blackhole blackhole) {
+        for (byte[] line : lines) {
+            blackhole.consume(InfluxLineProtocolParser.parse(line, 0, line.length, seriesCache));
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Lines shaped like the ones of telegraf's default inputs (cpu, mem, disk, net, system), for a number of hosts
+ * reporting every 10 seconds: the same series come back over and over, only the values and timestamps change.
+ */
+public final class TelegrafLines {
+
+    private TelegrafLines() {
+    }
+
+    public static byte[][] generate(int hosts, int intervals) {
+        Random random = new Random(42);
+        List<byte[]> lines = new ArrayList<byte[]>();
+        long timestamp = 1476348394000000000L;
+
+        for (int interval = 0; interval < intervals; interval++) {
+            for (int host = 0; host < hosts; host++) {
+                String hostTag = "host=web-" + host + ".dc1.example.com";
+                for (int cpu = 0; cpu < 4; cpu++) {
+                    lines.add(bytes("cpu,cpu=cpu" + cpu + "," + hostTag
+                            + " usage_guest=0,usage_guest_nice=0,usage_idle=" + percent(random)
+                            + ",usage_iowait=" + percent(random) + ",usage_irq=0,usage_nice=0,usage_softirq="
+                            + percent(random) + ",usage_steal=0,usage_system=" + percent(random)
+                            + ",usage_user=" + percent(random) + " " + timestamp));
+                }
+                lines.add(bytes("mem," + hostTag + " active=" + integer(random) + "i,available=" + integer(random)
+                        + "i,available_percent=" + percent(random) + ",buffered=" + integer(random) + "i,cached="
+                        + integer(random) + "i,free=" + integer(random) + "i,inactive=" + integer(random)
+                        + "i,total=16735870976i,used=" + integer(random) + "i,used_percent=" + percent(random)
+                        + " " + timestamp));
+                lines.add(bytes("disk,device=sda1,fstype=ext4," + hostTag + ",mode=rw,path=/ free=" + integer(random)
+                        + "i,inodes_free=" + integer(random) + "i,inodes_total=6553600i,inodes_used=" + integer(random)
+                        + "i,total=105553100800i,used=" + integer(random) + "i,used_percent=" + percent(random)
+                        + " " + timestamp));
+                lines.add(bytes("net," + hostTag + ",interface=eth0 bytes_recv=" + integer(random) + "i,bytes_sent="
+                        + integer(random) + "i,drop_in=0i,drop_out=0i,err_in=0i,err_out=0i,packets_recv="
+                        + integer(random) + "i,packets_sent=" + integer(random) + "i " + timestamp));
+                lines.add(bytes("system," + hostTag + " load1=" + percent(random) / 10 + ",load15="
+                        + percent(random) / 10 + ",load5=" + percent(random) / 10 + ",n_cpus=4i,n_users=2i "
+                        + timestamp));
+            }
+            timestamp += 10000000000L;
+        }
+        return lines.toArray(new byte[lines.size()][]);
+    }
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(Charsets.UTF_8);
+    }
+
+    private static double percent(Random random) {
+        return Math.round(random.nextDouble() * 100000000) / 1000000.0;
+    }
+
+    private static long integer(Random random) {
+        return random.nextInt(Integer.MAX_VALUE) * 16L;
+    }
+}
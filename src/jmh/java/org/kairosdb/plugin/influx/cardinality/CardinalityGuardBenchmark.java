@@ -0,0 +1,89 @@
+package org.kairosdb.plugin.influx.cardinality;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.plugin.influx.InfluxLineHandler;
+import org.kairosdb.plugin.influx.InfluxLineProtocolParser;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.InfluxSeries;
+import org.kairosdb.plugin.influx.ParseOptions;
+import org.kairosdb.plugin.influx.TelegrafLines;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the {@link CardinalityGuard} per line, parsing telegraf traffic without series cache so that every line
+ * goes through the guard, the worst case. With the cache, only the lines of new series do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CardinalityGuardBenchmark {
+
+    private static final int HOSTS = 100;
+    private static final int INTERVALS = 10;
+    private static final int LINES = HOSTS * 8 * INTERVALS;
+
+    @Param({"true", "false"})
+    public boolean guarded;
+
+    private byte[][] lines;
+    private ParseOptions options;
+
+    @Setup
+    public void setUp() {
+        lines = TelegrafLines.generate(HOSTS, INTERVALS);
+        CardinalityGuard guard = guarded
+                ? new CardinalityGuard(new InfluxMetrics(), 100000, CardinalityGuard.Policy.REJECT, 1000000) : null;
+        options = ParseOptions.DEFAULT.withGuard(guard);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parse(final Blackhole blackhole) {
+        InfluxLineHandler handler = new InfluxLineHandler() {
+            @Override
+            public void begin(String measurement, ImmutableSortedMap<String, String> tags, InfluxSeries series,
+                              long timestamp) {
+                blackhole.consume(tags);
+            }
+
+            @Override
+            public void longField(String field, long value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void doubleField(String field, double value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void stringField(String field, String value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+        for (byte[] line : lines) {
+            InfluxLineProtocolParser.parse(line, 0, line.length, null, options, 0, handler);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.kairosdb.plugin.influx.udp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.socket.DatagramPacket;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.CountingDatastore;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngestQueue;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.TelegrafLines;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end throughput of {@link InfluxUDPServer#channelRead0}, from a datagram in a pooled heap buffer, as the
+ * receivers get them, to the datastore through
+ * the ingest queue, the ingester and the batch writer, against a datastore only counting the data points. The
+ * queue blocks when full so that the score is the one of the whole pipeline, not of the receiver alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InfluxUDPServerBenchmark {
+
+    private static final int HOSTS = 100;
+    private static final int INTERVALS = 10;
+    private static final int LINES = HOSTS * 8 * INTERVALS;
+
+    @Param({"100000", "0"})
+    public int seriesCacheSize;
+
+    private CountingDatastore datastore;
+    private InfluxBatchWriter writer;
+    private InfluxIngestQueue queue;
+    private InfluxUDPServer server;
+    private InetSocketAddress recipient;
+    private InetSocketAddress sender;
+    private ByteBuf[] datagrams;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        datastore = new CountingDatastore();
+        writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 100, 2, 64);
+        writer.start();
+        InfluxIngester ingester = new InfluxIngester(writer, ".", seriesCacheSize, 1024);
+        queue = new InfluxIngestQueue(ingester, 65536, 2, InfluxIngestQueue.OverflowPolicy.BLOCK);
+        queue.start();
+        server = new InfluxUDPServer(queue, 0, 65536);
+
+        recipient = new InetSocketAddress("127.0.0.1", 8089);
+        sender = new InetSocketAddress("127.0.0.1", 40000);
+
+        byte[][] lines = TelegrafLines.generate(HOSTS, INTERVALS);
+        datagrams = new ByteBuf[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            datagrams[i] = PooledByteBufAllocator.DEFAULT.heapBuffer(lines[i].length).writeBytes(lines[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws KairosDBException {
+        queue.stop();
+        writer.stop();
+        for (ByteBuf datagram : datagrams) {
+            datagram.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void channelRead() {
+        for (ByteBuf datagram : datagrams) {
+            server.channelRead0(null, new DatagramPacket(datagram.duplicate(), recipient, sender));
+        }
+    }
+}
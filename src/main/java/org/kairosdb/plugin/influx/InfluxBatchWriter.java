@@ -0,0 +1,530 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.spool.DiskSpool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write stage between the listeners and the datastore. Data points are gathered into bounded batches which are
+ * handed to dedicated writer threads, either when full or when the flush interval elapsed, so that the cost of
+ * {@link KairosDatastore#putDataPoint} is kept off the socket-read threads.
+ * <p>
+ * When the writer threads can't keep up and the queue of pending batches is full, {@link #write} blocks,
+ * pushing back on the receivers.
+ * <p>
+ * Before being written, the points of a batch are grouped by series (metric name and tags), in the order the series
+ * first appear, and sorted by timestamp within each series, so that the points of a row key reach the datastore as
+ * one run rather than interleaved with the other series.
+ * <p>
+ * With a {@link DiskSpool}, the data points the datastore refuses, as well as the batches still waiting for a writer
+ * thread after the stall timeout, are spooled to disk instead, to be replayed once the datastore recovered. New data
+ * points keep going straight to the datastore meanwhile, so that the replay rate doesn't cap the throughput.
+ * <p>
+ * Callers which must know that their data points were written, e.g. before answering an HTTP request, write them
+ * through a {@link SyncWriter}: they go through batches of their own, written the same way, which the caller
+ * waits for.
+ */
+public class InfluxBatchWriter implements KairosDBService {
+    public static final Logger logger = LoggerFactory.getLogger(InfluxBatchWriter.class);
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+//    Queued once per writer thread on stop, after the last batch
+    private static final Batch STOP = new Batch(0);
+
+    private final KairosDatastore datastore;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int writerThreads;
+    private final BlockingQueue<Batch> pendingBatches;
+    private final DiskSpool spool;
+    private final long stallTimeoutMs;
+    private final boolean groupBySeries;
+
+    private final Object lock = new Object();
+    private Batch currentBatch;
+
+    private final List<Thread> writers = new ArrayList<Thread>();
+    private ScheduledExecutorService flusher;
+    private boolean started;
+    private boolean stopped;
+
+    public InfluxBatchWriter(KairosDatastore datastore, int batchSize, long flushIntervalMs, int writerThreads,
+                             int queueSize) {
+        this(datastore, batchSize, flushIntervalMs, writerThreads, queueSize, null, 0);
+    }
+
+    public InfluxBatchWriter(KairosDatastore datastore, int batchSize, long flushIntervalMs, int writerThreads,
+                             int queueSize, DiskSpool spool, long stallTimeoutMs) {
+        this(datastore, batchSize, flushIntervalMs, writerThreads, queueSize, true, spool, stallTimeoutMs);
+    }
+
+    /**
+     * @param groupBySeries  whether the points of each batch are grouped by series and sorted by timestamp, or
+     *                       written in the order they were received
+     * @param spool          spool of the data points the datastore doesn't take, or null
+     * @param stallTimeoutMs time after which a batch waiting for a writer thread is spooled
+     */
+    @Inject
+    public InfluxBatchWriter(KairosDatastore datastore,
+                             @Named("kairosdb.influx.lineprotocol.batch_size") int batchSize,
+                             @Named("kairosdb.influx.lineprotocol.flush_interval_ms") long flushIntervalMs,
+                             @Named("kairosdb.influx.lineprotocol.writer_threads") int writerThreads,
+                             @Named("kairosdb.influx.lineprotocol.writer_queue_size") int queueSize,
+                             @Named("kairosdb.influx.lineprotocol.group_by_series") boolean groupBySeries,
+                             DiskSpool spool,
+                             @Named("kairosdb.influx.lineprotocol.spool.stall_timeout_ms") long stallTimeoutMs) {
+        if (batchSize < 1 || flushIntervalMs < 1 || writerThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("batch_size, flush_interval_ms, writer_threads and writer_queue_size must be positive");
+        }
+        this.spool = spool != null && spool.isEnabled() ? spool : null;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.groupBySeries = groupBySeries;
+        this.datastore = datastore;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.writerThreads = writerThreads;
+        this.pendingBatches = new ArrayBlockingQueue<Batch>(queueSize);
+        this.currentBatch = new Batch(batchSize);
+    }
+
+    /**
+     * Add a data point to the current batch. Points written before {@link #start()} are queued, points written
+     * after {@link #stop()} go straight to the datastore.
+     */
+    public void write(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
+            throws DatastoreException {
+
+        Batch full = null;
+        boolean direct;
+        synchronized (lock) {
+//            Checked under the lock, so that the last flush of stop() gets every point added before
+            direct = stopped;
+            if (!direct) {
+                currentBatch.add(metricName, tags, dataPoint);
+                if (currentBatch.isFull()) {
+                    full = currentBatch;
+                    currentBatch = new Batch(batchSize);
+                }
+            }
+        }
+        if (direct) {
+            datastore.putDataPoint(metricName, tags, dataPoint);
+        } else if (full != null) {
+            enqueue(full);
+        }
+    }
+
+    /**
+     * @return a writer of data points whose caller waits for them to be written
+     */
+    public SyncWriter syncWriter() {
+        return new SyncWriter();
+    }
+
+    /**
+     * Hand a batch of a {@link SyncWriter} to the writer threads, or write it inline when there are none, as
+     * nothing would ever write it.
+     */
+    private void submit(Batch batch) {
+        boolean inline;
+        synchronized (lock) {
+            inline = !started || stopped;
+        }
+        if (inline) {
+            writeBatch(batch);
+        } else {
+            enqueue(batch);
+        }
+    }
+
+    /**
+     * Hand the current batch to the writer threads, even if it is not full.
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (lock) {
+            if (currentBatch.size == 0) {
+                return;
+            }
+            batch = currentBatch;
+            currentBatch = new Batch(batchSize);
+        }
+        enqueue(batch);
+    }
+
+    private void enqueue(Batch batch) {
+        try {
+            if (spool == null) {
+                pendingBatches.put(batch);
+            } else if (!pendingBatches.offer(batch, stallTimeoutMs, TimeUnit.MILLISECONDS)) {
+                if (rateLimitedLogger.isEnabled()) {
+                    rateLimitedLogger.warn("Writer threads stalled for {}ms, spooling data points", stallTimeoutMs);
+                }
+                spool(batch, 0);
+                batch.done();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while queuing a batch, writing it inline");
+            writeBatch(batch);
+        }
+    }
+
+    private void writeBatch(Batch batch) {
+        try {
+            writePoints(batch);
+        } finally {
+            batch.done();
+        }
+    }
+
+    private void writePoints(Batch batch) {
+        if (groupBySeries) {
+            batch.groupBySeries();
+        }
+//        Even while the spool replays, it does so alongside at its own rate, spooled points being older anyway
+        int i = 0;
+        for (; i < batch.size; i++) {
+            try {
+                datastore.putDataPoint(batch.metricNames[i], batch.tags[i], batch.dataPoints[i]);
+            } catch (DatastoreException e) {
+                if (spool == null) {
+                    batch.failure = e;
+                    if (rateLimitedLogger.isEnabled()) {
+                        rateLimitedLogger.error("Unable to write data point for metric {}", batch.metricNames[i], e);
+                    }
+                    continue;
+                }
+                if (rateLimitedLogger.isEnabled()) {
+                    rateLimitedLogger.warn("Unable to write data points, spooling them", e);
+                }
+                break;
+            } catch (Exception e) {
+                batch.failure = new DatastoreException(e);
+                if (rateLimitedLogger.isEnabled()) {
+                    rateLimitedLogger.error("Unable to write data point for metric {}", batch.metricNames[i], e);
+                }
+            }
+        }
+        if (i < batch.size) {
+            spool(batch, i);
+        }
+    }
+
+    private void spool(Batch batch, int from) {
+        for (int i = from; i < batch.size; i++) {
+            if (!spool.append(batch.metricNames[i], batch.tags[i], batch.dataPoints[i]) && batch.failure == null) {
+                batch.failure = new DatastoreException("Unable to write nor spool data point for metric "
+                        + batch.metricNames[i]);
+            }
+        }
+    }
+
+    public int getPendingBatches() {
+        return pendingBatches.size();
+    }
+
+    @Override
+    public void start() throws KairosDBException {
+        synchronized (lock) {
+            started = true;
+        }
+        for (int i = 0; i < writerThreads; i++) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (true) {
+                        try {
+                            Batch batch = pendingBatches.take();
+                            if (batch == STOP) {
+                                break;
+                            }
+                            writeBatch(batch);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }, "influx-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "influx-flusher-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        synchronized (lock) {
+            stopped = true;
+        }
+        flush();
+
+//        Wake up each writer thread once the batches queued before are written
+        for (int i = 0; i < writers.size(); i++) {
+            try {
+                pendingBatches.put(STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        writers.clear();
+
+//        Writers didn't make it in time, or were never started
+        flush();
+        Batch batch;
+        while ((batch = pendingBatches.poll()) != null) {
+            if (batch != STOP) {
+                writeBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Data points of a caller which waits for them to be written, batched apart from the other ones. Not thread
+     * safe, each caller having its own.
+     */
+    public final class SyncWriter {
+        private final List<Batch> submitted = new ArrayList<Batch>();
+        private Batch batch;
+
+        private SyncWriter() {
+        }
+
+        public void write(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint) {
+            if (batch == null) {
+                batch = new Batch(batchSize, new CountDownLatch(1));
+            }
+            batch.add(metricName, tags, dataPoint);
+            if (batch.isFull()) {
+                submitBatch();
+            }
+        }
+
+        private void submitBatch() {
+            submitted.add(batch);
+            submit(batch);
+            batch = null;
+        }
+
+        /**
+         * Hand the data points written so far to the writer threads, and wait until they are written or spooled.
+         *
+         * @throws DatastoreException if some of them could be neither
+         */
+        public void flush() throws DatastoreException {
+            if (batch != null && batch.size > 0) {
+                submitBatch();
+            }
+            DatastoreException failure = null;
+            try {
+                for (Batch written : submitted) {
+                    written.written.await();
+                    if (failure == null) {
+                        failure = written.failure;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DatastoreException("Interrupted while waiting for data points to be written", e);
+            } finally {
+                submitted.clear();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static final class Batch {
+        private final String[] metricNames;
+        private final ImmutableSortedMap<String, String>[] tags;
+        private final DataPoint[] dataPoints;
+        private int size;
+//        Counted down once written, for the batches of a SyncWriter
+        private final CountDownLatch written;
+//        First failure of a point neither written nor spooled
+        private volatile DatastoreException failure;
+
+        private Batch(int capacity) {
+            this(capacity, null);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Batch(int capacity, CountDownLatch written) {
+            this.written = written;
+            metricNames = new String[capacity];
+            tags = new ImmutableSortedMap[capacity];
+            dataPoints = new DataPoint[capacity];
+        }
+
+        private void add(String metricName, ImmutableSortedMap<String, String> tag, DataPoint dataPoint) {
+            metricNames[size] = metricName;
+            tags[size] = tag;
+            dataPoints[size] = dataPoint;
+            size++;
+        }
+
+        private boolean isFull() {
+            return size == metricNames.length;
+        }
+
+        private void done() {
+            if (written != null) {
+                written.countDown();
+            }
+        }
+
+        /**
+         * Reorder the points by series, in the order the series first appear, then by timestamp.
+         */
+        private void groupBySeries() {
+            if (size < 2) {
+                return;
+            }
+            Map<SeriesKey, Integer> groups = new HashMap<SeriesKey, Integer>();
+            int[] groupOf = new int[size];
+            int[] groupSizes = new int[size];
+            ImmutableSortedMap<String, String> previousTags = null;
+            int tagsHash = 0;
+            for (int i = 0; i < size; i++) {
+//                The fields of a line share their tags, hashed once
+                if (tags[i] != previousTags) {
+                    previousTags = tags[i];
+                    tagsHash = previousTags.hashCode();
+                }
+                SeriesKey key = new SeriesKey(metricNames[i], tags[i], tagsHash);
+                Integer group = groups.get(key);
+                if (group == null) {
+                    group = groups.size();
+                    groups.put(key, group);
+                }
+                groupOf[i] = group;
+                groupSizes[group]++;
+            }
+            if (groups.size() == size) {
+                return;
+            }
+
+//            Counting sort of the points by group, keeping their order within each group
+            int[] groupStarts = new int[groups.size() + 1];
+            for (int group = 0; group < groups.size(); group++) {
+                groupStarts[group + 1] = groupStarts[group] + groupSizes[group];
+            }
+            int[] next = Arrays.copyOf(groupStarts, groups.size());
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[next[groupOf[i]]++] = i;
+            }
+            for (int group = 0; group < groups.size(); group++) {
+                sortByTimestamp(order, groupStarts[group], groupStarts[group + 1]);
+            }
+
+            String[] sortedNames = new String[size];
+            ImmutableSortedMap<String, String>[] sortedTags = Arrays.copyOf(tags, size);
+            DataPoint[] sortedPoints = new DataPoint[size];
+            for (int i = 0; i < size; i++) {
+                sortedNames[i] = metricNames[order[i]];
+                sortedTags[i] = tags[order[i]];
+                sortedPoints[i] = dataPoints[order[i]];
+            }
+            System.arraycopy(sortedNames, 0, metricNames, 0, size);
+            System.arraycopy(sortedTags, 0, tags, 0, size);
+            System.arraycopy(sortedPoints, 0, dataPoints, 0, size);
+        }
+
+        private void sortByTimestamp(Integer[] order, int from, int to) {
+            for (int i = from + 1; i < to; i++) {
+                if (dataPoints[order[i]].getTimestamp() < dataPoints[order[i - 1]].getTimestamp()) {
+                    Arrays.sort(order, from, to, new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                            return Long.compare(dataPoints[a].getTimestamp(), dataPoints[b].getTimestamp());
+                        }
+                    });
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class SeriesKey {
+        private final String metricName;
+        private final ImmutableSortedMap<String, String> tags;
+        private final int hash;
+
+        private SeriesKey(String metricName, ImmutableSortedMap<String, String> tags, int tagsHash) {
+            this.metricName = metricName;
+            this.tags = tags;
+            this.hash = 31 * metricName.hashCode() + tagsHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return hash == other.hash && metricName.equals(other.metricName)
+                    && (tags == other.tags || tags.equals(other.tags));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
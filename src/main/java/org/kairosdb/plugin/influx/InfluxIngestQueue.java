@@ -0,0 +1,269 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import io.netty.util.ReferenceCounted;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.ratelimit.Sender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded hand-off between the UDP receivers and a pool of workers parsing the lines and handing their data points
+ * to the {@link InfluxBatchWriter}, so that a slow datastore stalls the workers instead of the receivers, which
+ * would otherwise let the socket buffer overflow and the kernel silently drop datagrams.
+ * <p>
+ * Entries are whole datagrams, i.e. newline separated lines, along with their reception time used for the lines
+ * without timestamp. When the queue is full, the {@link OverflowPolicy} decides whether datagrams are dropped,
+ * their lines being counted as such, or the receiver waits.
+ */
+public class InfluxIngestQueue implements KairosDBService {
+    public static final Logger logger = LoggerFactory.getLogger(InfluxIngestQueue.class);
+
+    private static final byte NEW_LINE = '\n';
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    public enum OverflowPolicy {
+        /**
+         * Discard the line being offered
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest queued line to make room for the one being offered
+         */
+        DROP_OLDEST,
+        /**
+         * Wait for a worker to make room, pushing back on the receiver and eventually on the socket buffer
+         */
+        BLOCK
+    }
+
+    private final InfluxIngester ingester;
+    private final InfluxMetrics metrics;
+    private final MpmcRingBuffer<Entry> queue;
+    private final int workerThreads;
+    private final OverflowPolicy overflowPolicy;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile boolean running;
+    private volatile boolean stopped;
+
+    @Inject
+    public InfluxIngestQueue(InfluxIngester ingester,
+                             @Named("kairosdb.influx.lineprotocol.queue_size") int queueSize,
+                             @Named("kairosdb.influx.lineprotocol.ingest_threads") int workerThreads,
+                             @Named("kairosdb.influx.lineprotocol.overflow_policy") String overflowPolicy) {
+        this(ingester, queueSize, workerThreads, OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase(Locale.ENGLISH)));
+    }
+
+    public InfluxIngestQueue(InfluxIngester ingester, int queueSize, int workerThreads, OverflowPolicy overflowPolicy) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("ingest_threads must be positive");
+        }
+        this.ingester = ingester;
+        this.metrics = ingester.getMetrics();
+        this.queue = new MpmcRingBuffer<Entry>(queueSize);
+        this.workerThreads = workerThreads;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public InfluxIngester getIngester() {
+        return ingester;
+    }
+
+    /**
+     * Queue newline separated lines, whose timestamps are in nanoseconds, received now.
+     */
+    public void offer(ChannelBuffer lines) {
+        offer(lines, Precision.NANOSECONDS, System.currentTimeMillis());
+    }
+
+    /**
+     * Queue newline separated lines for ingestion. The buffer must not be modified afterwards. Lines offered
+     * after {@link #stop()} are ingested by the caller.
+     *
+     * @param receivedAt timestamp in milliseconds of the lines without timestamp
+     */
+    public void offer(ChannelBuffer lines, Precision precision, long receivedAt) {
+        offer(lines, precision, receivedAt, null);
+    }
+
+    /**
+     * @param sender sender of the lines charged with their data points once parsed, or null
+     * @see #offer(ChannelBuffer, Precision, long)
+     */
+    public void offer(ChannelBuffer lines, Precision precision, long receivedAt, Sender sender) {
+        offer(lines, precision, receivedAt, sender, null);
+    }
+
+    /**
+     * @param owner buffer holding the lines, e.g. a pooled buffer, released once they are ingested or dropped, or
+     *              null
+     * @see #offer(ChannelBuffer, Precision, long, Sender)
+     */
+    public void offer(ChannelBuffer lines, Precision precision, long receivedAt, Sender sender, ReferenceCounted owner) {
+        Entry entry = new Entry(lines, precision, receivedAt, sender, owner);
+        if (stopped) {
+            entry.ingest(ingester);
+            return;
+        }
+        if (queue.offer(entry)) {
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                dropped(entry);
+                break;
+            case DROP_OLDEST:
+                do {
+                    Entry oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped(oldest);
+                    }
+                } while (!queue.offer(entry));
+                break;
+            case BLOCK:
+                while (!queue.offer(entry)) {
+                    if (stopped) {
+                        entry.ingest(ingester);
+                        return;
+                    }
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                break;
+        }
+    }
+
+    private void dropped(Entry entry) {
+        try {
+            metrics.linesDropped(countLines(entry.lines));
+        } finally {
+            entry.release();
+        }
+    }
+
+    private static int countLines(ChannelBuffer lines) {
+        int count = 0;
+        int index = lines.readerIndex();
+        final int end = lines.writerIndex();
+        while (index < end) {
+            int newLine = lines.indexOf(index, end, NEW_LINE);
+            if (newLine != index) {
+                count++;
+            }
+            index = newLine < 0 ? end : newLine + 1;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of datagrams waiting for a worker
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.capacity();
+    }
+
+    @Override
+    public void start() throws KairosDBException {
+        running = true;
+        for (int i = 0; i < workerThreads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int idle = 0;
+                    long parkNanos = PARK_NANOS;
+                    while (true) {
+                        Entry entry = queue.poll();
+                        if (entry != null) {
+                            idle = 0;
+                            parkNanos = PARK_NANOS;
+                            entry.ingest(ingester);
+                        } else if (!running) {
+                            break;
+                        } else if (++idle < SPINS) {
+                            Thread.yield();
+                        } else {
+                            // Back off while idle, so that quiet periods don't keep the cores busy
+                            LockSupport.parkNanos(parkNanos);
+                            parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+                        }
+                    }
+                }
+            }, "influx-ingest-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        logger.info("Influx ingest queue of " + queue.capacity() + " datagrams started with " + workerThreads
+                + " worker(s), " + overflowPolicy + " on overflow");
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        workers.clear();
+
+//        Workers didn't make it in time, or were never started
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            entry.ingest(ingester);
+        }
+    }
+
+    private static final class Entry {
+        private final ChannelBuffer lines;
+        private final Precision precision;
+        private final long receivedAt;
+        private final Sender sender;
+        private final ReferenceCounted owner;
+
+        private Entry(ChannelBuffer lines, Precision precision, long receivedAt, Sender sender, ReferenceCounted owner) {
+            this.lines = lines;
+            this.precision = precision;
+            this.receivedAt = receivedAt;
+            this.sender = sender;
+            this.owner = owner;
+        }
+
+        private void ingest(InfluxIngester ingester) {
+            try {
+                ingester.ingestLines(lines, precision, receivedAt, sender);
+            } finally {
+                release();
+            }
+        }
+
+        private void release() {
+            if (owner != null) {
+                owner.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.plugin.influx.ratelimit.Sender;
+import org.kairosdb.plugin.influx.relabel.IngestRules;
+import org.kairosdb.plugin.influx.rollup.RollupStage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns lines received by any of the listeners (UDP, TCP, HTTP) into KairosDB data points, named
+ * measurement + separator + field, and hands them to the {@link InfluxBatchWriter}, or to the {@link RollupStage}
+ * for the metrics which are rolled up.
+ */
+public class InfluxIngester {
+    public static final Logger logger = LoggerFactory.getLogger(InfluxIngester.class);
+
+    private static final byte NEW_LINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+
+    private final InfluxBatchWriter writer;
+    private final InfluxMetrics metrics;
+    private final RollupStage rollup;
+    private final String separator;
+    private final IngestRules rules;
+    private final ParseOptions[] optionsByPrecision = new ParseOptions[Precision.values().length];
+    private final SeriesCache seriesCache;
+    private final ThreadLocal<LineWriter> lineWriters = new ThreadLocal<LineWriter>() {
+        @Override
+        protected LineWriter initialValue() {
+            return new LineWriter();
+        }
+    };
+
+    public InfluxIngester(InfluxBatchWriter writer, String separator, int seriesCacheSize, int seriesCacheMaxKeyLength) {
+        this(writer, new InfluxMetrics(), null, ParseOptions.DEFAULT, separator, seriesCacheSize,
+                seriesCacheMaxKeyLength);
+    }
+
+    /**
+     * @param rollup  stage rolling up some of the metrics, or null if none is
+     * @param options ingest rules, cardinality guard and field types applied to the lines, the precision being the
+     *                one given with each line
+     */
+    @Inject
+    public InfluxIngester(InfluxBatchWriter writer, InfluxMetrics metrics, RollupStage rollup, ParseOptions options,
+                          @Named("kairosdb.influx.lineprotocol.separator") String separator,
+                          @Named("kairosdb.influx.lineprotocol.series_cache_size") int seriesCacheSize,
+                          @Named("kairosdb.influx.lineprotocol.series_cache_max_key_length") int seriesCacheMaxKeyLength) {
+        this.writer = writer;
+        this.metrics = metrics;
+        this.rollup = rollup != null && rollup.isEnabled() ? rollup : null;
+        this.rules = options.getRules();
+        for (Precision precision : Precision.values()) {
+            optionsByPrecision[precision.ordinal()] = options.withPrecision(precision);
+        }
+        this.separator = separator;
+        this.seriesCache = seriesCacheSize > 0
+                ? new SeriesCache(seriesCacheSize, seriesCacheMaxKeyLength, separator, this.rules) : null;
+    }
+
+    public InfluxMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the cache of the known series, or null if disabled
+     */
+    public SeriesCache getSeriesCache() {
+        return seriesCache;
+    }
+
+    /**
+     * Parse the line, whose timestamp is in nanoseconds, and queue its data points for writing.
+     *
+     * @return the number of data points of the line, or -1 if the line is invalid
+     */
+    public int ingest(ChannelBuffer line) {
+        return ingest(line, Precision.NANOSECONDS, System.currentTimeMillis());
+    }
+
+    /**
+     * Parse the line and queue its data points for writing.
+     *
+     * @param defaultTimestamp timestamp in milliseconds of the data points if the line has none
+     * @return the number of data points of the line, or -1 if the line is invalid
+     */
+    public int ingest(ChannelBuffer line, Precision precision, long defaultTimestamp) {
+        try {
+            return ingest(line, false, precision, defaultTimestamp);
+        } catch (DatastoreException e) {
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.error("Unable to write data points of line: \"{}\"", line.toString(CharsetUtil.UTF_8), e);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Ingest each of the newline separated lines of the buffer, e.g. a datagram, as {@link #ingest(ChannelBuffer,
+     * Precision, long)} does, the lines without timestamp sharing the same default timestamp.
+     *
+     * @return the number of invalid lines
+     */
+    public int ingestLines(ChannelBuffer lines, Precision precision, long defaultTimestamp) {
+        return ingestLines(lines, precision, defaultTimestamp, null);
+    }
+
+    /**
+     * @param sender sender of the lines charged with their data points, or null
+     * @see #ingestLines(ChannelBuffer, Precision, long)
+     */
+    public int ingestLines(ChannelBuffer lines, Precision precision, long defaultTimestamp, Sender sender) {
+        int invalidLines = 0;
+        int points = 0;
+        int index = lines.readerIndex();
+        final int end = lines.writerIndex();
+        while (index < end) {
+            int length = lines.indexOf(index, end, NEW_LINE);
+            length = length < 0 ? end - index : length - index;
+            int lineLength = length > 0 && lines.getByte(index + length - 1) == CARRIAGE_RETURN ? length - 1 : length;
+            if (lineLength > 0) {
+                int linePoints = ingest(lines.slice(index, lineLength), precision, defaultTimestamp);
+                if (linePoints < 0) {
+                    invalidLines++;
+                } else {
+                    points += linePoints;
+                }
+            }
+            index += length + 1;
+        }
+        if (sender != null) {
+            sender.chargePoints(points);
+        }
+        return invalidLines;
+    }
+
+    /**
+     * Parse the line, whose timestamp is in nanoseconds, and write its data points, see
+     * {@link #ingest(ChannelBuffer, boolean, Precision, long)}.
+     */
+    public int ingest(ChannelBuffer line, boolean synchronous) throws DatastoreException {
+        return ingest(line, synchronous, Precision.NANOSECONDS, System.currentTimeMillis());
+    }
+
+    /**
+     * Parse the line and write its data points through the batches of the writer, waiting for them to be written
+     * if synchronous.
+     *
+     * @param precision        unit of the timestamp of the line
+     * @param defaultTimestamp timestamp in milliseconds of the data points if the line has none
+     * @return the number of data points of the line, or -1 if the line is invalid
+     * @throws DatastoreException if the data points can't be handed to the datastore
+     */
+    public int ingest(ChannelBuffer line, boolean synchronous, Precision precision, long defaultTimestamp)
+            throws DatastoreException {
+        if (!synchronous) {
+            return ingest(line, null, precision, defaultTimestamp);
+        }
+        InfluxBatchWriter.SyncWriter sync = syncWriter();
+        int points = ingest(line, sync, precision, defaultTimestamp);
+        flush(sync);
+        return points;
+    }
+
+    /**
+     * @return a writer for the data points of lines whose caller waits for them to be written, see
+     * {@link #ingest(ChannelBuffer, InfluxBatchWriter.SyncWriter, Precision, long)}
+     */
+    public InfluxBatchWriter.SyncWriter syncWriter() {
+        return writer.syncWriter();
+    }
+
+    /**
+     * Wait for the data points of the sync writer to be written.
+     *
+     * @throws DatastoreException if some of them could not be
+     */
+    public void flush(InfluxBatchWriter.SyncWriter sync) throws DatastoreException {
+        try {
+            sync.flush();
+        } catch (DatastoreException e) {
+            metrics.writeError();
+            throw e;
+        }
+    }
+
+    /**
+     * Parse the line and hand its data points to the sync writer, which the caller flushes once done with its
+     * lines, or to the batches of the writer if null.
+     *
+     * @return the number of data points of the line, or -1 if the line is invalid
+     * @throws DatastoreException if the data points can't be handed to the datastore
+     */
+    public int ingest(ChannelBuffer line, InfluxBatchWriter.SyncWriter sync, Precision precision,
+                      long defaultTimestamp) throws DatastoreException {
+        metrics.lineReceived();
+
+        final LineWriter lineWriter = lineWriters.get();
+        lineWriter.reset(sync);
+        boolean parsed;
+        long parseStart = System.nanoTime();
+        try {
+            parsed = InfluxLineProtocolParser.parse(line, seriesCache, optionsByPrecision[precision.ordinal()],
+                    defaultTimestamp, lineWriter);
+        } catch (IllegalStateException e) {
+            return parseError(InfluxMetrics.ParseError.SYNTAX, line, e);
+        } catch (Exception e) {
+            return parseError(InfluxMetrics.ParseError.OTHER, line, e);
+        } finally {
+            metrics.parseTime(System.nanoTime() - parseStart);
+        }
+
+        if (!parsed) {
+            metrics.emptyLine();
+            return 0;
+        }
+
+        if (lineWriter.dropped) {
+            metrics.linesFiltered();
+            return 0;
+        }
+        if (lineWriter.rejected) {
+            return 0;
+        }
+        metrics.fieldsFiltered(lineWriter.droppedFields);
+
+        if (lineWriter.failure != null) {
+            metrics.writeError();
+            metrics.pointsWritten(lineWriter.points);
+            throw lineWriter.failure;
+        }
+
+        if (lineWriter.nameless) {
+            metrics.namelessLine();
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.warn("Metric {} don't have a name (measurement in Influx wording)", line.toString(CharsetUtil.UTF_8));
+            }
+            return -1;
+        }
+
+        if (lineWriter.points == 0 && lineWriter.droppedFields > 0) {
+            metrics.linesFiltered();
+            return 0;
+        }
+
+        if (lineWriter.points == 0 && lineWriter.conflictingFields > 0) {
+            return 0;
+        }
+
+        if (lineWriter.points == 0) {
+            metrics.fieldlessLine();
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.warn("Metric {} is missing a don't have datapoint(s) (field in Influx wording)", line.toString(CharsetUtil.UTF_8));
+            }
+            return -1;
+        }
+
+        metrics.pointsWritten(lineWriter.points);
+        return lineWriter.points;
+    }
+
+    private int parseError(InfluxMetrics.ParseError reason, ChannelBuffer line, Exception e) {
+        metrics.parseError(reason);
+        if (rateLimitedLogger.isEnabled()) {
+            rateLimitedLogger.error("Influx Line protocol error with line: \"{}\"", line.toString(CharsetUtil.UTF_8), e);
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the fields of a line as they are parsed, one instance being reused by each ingesting thread.
+     */
+    private final class LineWriter implements InfluxLineHandler {
+        private InfluxBatchWriter.SyncWriter sync;
+        private String measurement;
+        private ImmutableSortedMap<String, String> tags;
+        private InfluxSeries series;
+        private long timestamp;
+        private boolean nameless;
+        private boolean dropped;
+        private boolean rejected;
+        private int droppedFields;
+        private int conflictingFields;
+        private int points;
+        private DatastoreException failure;
+
+        private void reset(InfluxBatchWriter.SyncWriter sync) {
+            this.sync = sync;
+            this.points = 0;
+            this.nameless = false;
+            this.dropped = false;
+            this.rejected = false;
+            this.droppedFields = 0;
+            this.conflictingFields = 0;
+            this.failure = null;
+        }
+
+        @Override
+        public void begin(String measurement, ImmutableSortedMap<String, String> tags, InfluxSeries series, long timestamp) {
+            this.measurement = measurement;
+            this.tags = tags;
+            this.series = series;
+            this.timestamp = timestamp;
+            this.nameless = StringUtils.isEmpty(measurement);
+        }
+
+        @Override
+        public void longField(String field, long value) {
+            if (nameless || failure != null) {
+                return;
+            }
+            String metricName = metricName(field);
+            if (metricName == null) {
+                return;
+            }
+            if (rollup != null && rollup.add(metricName, tags, timestamp, value)) {
+                points++;
+                return;
+            }
+            write(metricName, new LongDataPoint(timestamp, value));
+        }
+
+        @Override
+        public void doubleField(String field, double value) {
+            if (nameless || failure != null) {
+                return;
+            }
+            String metricName = metricName(field);
+            if (metricName == null) {
+                return;
+            }
+            if (rollup != null && rollup.add(metricName, tags, timestamp, value)) {
+                points++;
+                return;
+            }
+            write(metricName, new DoubleDataPoint(timestamp, value));
+        }
+
+        @Override
+        public void stringField(String field, String value) {
+            if (nameless || failure != null) {
+                return;
+            }
+            String metricName = metricName(field);
+            if (metricName != null) {
+                write(metricName, new StringDataPoint(timestamp, value));
+            }
+        }
+
+        /**
+         * @return the name of the metric of the field, or null if the rules drop it
+         */
+        private String metricName(String field) {
+            String metricName;
+            if (series != null) {
+                metricName = series.getMetricName(field);
+            } else if (rules != null) {
+                metricName = rules.metricName(measurement, field);
+            } else {
+                return measurement + separator + field;
+            }
+            if (metricName == null) {
+                droppedFields++;
+            }
+            return metricName;
+        }
+
+        @Override
+        public void dropped() {
+            dropped = true;
+        }
+
+        @Override
+        public void droppedField(String field) {
+            droppedFields++;
+        }
+
+        @Override
+        public void rejected() {
+            rejected = true;
+        }
+
+        @Override
+        public void conflictingField(String field) {
+            conflictingFields++;
+        }
+
+        private void write(String metricName, DataPoint dataPoint) {
+            try {
+                if (sync != null) {
+                    sync.write(metricName, tags, dataPoint);
+                } else {
+                    writer.write(metricName, tags, dataPoint);
+                }
+                points++;
+            } catch (DatastoreException e) {
+                failure = e;
+            }
+        }
+
+        @Override
+        public void end() {
+//            Don't keep the last line's series and tags alive
+            series = null;
+            tags = null;
+            sync = null;
+        }
+    }
+}
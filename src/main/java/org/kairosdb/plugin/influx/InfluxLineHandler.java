@@ -0,0 +1,50 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * Receives the content of a line as it is parsed by
+ * {@link InfluxLineProtocolParser#parse(byte[], int, int, SeriesCache, ParseOptions, long, InfluxLineHandler)}, so
+ * that callers can turn it into whatever they need without an intermediate {@link InfluxMetric}.
+ * <p>
+ * For each non empty line, {@link #begin} is called first, then one callback per valid field in the order of the
+ * line, then {@link #end()}. Fields whose value can't be parsed are skipped. Callbacks must not parse other lines
+ * on the same thread since the parse context is shared.
+ * <p>
+ * When parsing with {@link org.kairosdb.plugin.influx.relabel.IngestRules}, a line whose measurement is dropped
+ * only gets {@link #dropped()}, and each dropped field {@link #droppedField(String)} instead of its value callback.
+ * Likewise, a line whose series is rejected by a {@link org.kairosdb.plugin.influx.cardinality.CardinalityGuard}
+ * only gets {@link #rejected()}. When parsing with a {@link org.kairosdb.plugin.influx.fieldtype.FieldTypeRegistry},
+ * a field whose value isn't of the type of its metric gets {@link #conflictingField(String)} instead of its value
+ * callback, and boolean values may be reported as 0 and 1 longs.
+ */
+public interface InfluxLineHandler {
+
+    /**
+     * @param measurement name of the measurement, unescaped
+     * @param tags        tags of the line, unescaped
+     * @param series      the series of the line when parsed with a {@link SeriesCache}, null otherwise
+     * @param timestamp   timestamp of the line, in milliseconds
+     */
+    void begin(String measurement, ImmutableSortedMap<String, String> tags, InfluxSeries series, long timestamp);
+
+    void longField(String field, long value);
+
+    void doubleField(String field, double value);
+
+    void stringField(String field, String value);
+
+    void end();
+
+    default void dropped() {
+    }
+
+    default void droppedField(String field) {
+    }
+
+    default void rejected() {
+    }
+
+    default void conflictingField(String field) {
+    }
+}
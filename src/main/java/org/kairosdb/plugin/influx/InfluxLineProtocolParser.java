@@ -1,15 +1,20 @@
 package org.kairosdb.plugin.influx;
 
-import org.apache.commons.lang3.StringUtils;
-import org.kairosdb.core.DataPoint;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.kairosdb.core.datapoints.DoubleDataPoint;
 import org.kairosdb.core.datapoints.LongDataPoint;
 import org.kairosdb.core.datapoints.StringDataPoint;
-import org.kairosdb.plugin.influx.InfluxMetric;
-
-import java.util.HashMap;
+import org.kairosdb.plugin.influx.cardinality.CardinalityGuard;
+import org.kairosdb.plugin.influx.fieldtype.FieldType;
+import org.kairosdb.plugin.influx.fieldtype.FieldTypeRegistry;
+import org.kairosdb.plugin.influx.relabel.IngestRules;
+import org.kairosdb.util.Tags;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 
 public class InfluxLineProtocolParser {
@@ -21,99 +26,370 @@ public class InfluxLineProtocolParser {
     private static final char DOUBLE_QUOTE = '"';
     private static final char I = 'i';
 
+    private static final byte COMMA_BYTE = ',';
+    private static final byte ESCAPE_BYTE = '\\';
+    private static final byte SPACE_BYTE = ' ';
+    private static final byte EQUAL_BYTE = '=';
+    private static final byte DOUBLE_QUOTE_BYTE = '"';
+
+    private static final ImmutableSortedMap<String, String> NO_TAGS = ImmutableSortedMap.of();
+
+//    Exactly representable powers of ten, see the fast path of doubleValue
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+//    Parse context of each thread, so that parsing a line doesn't allocate anything by itself
+    private static final ThreadLocal<ByteToken> CONTEXT = new ThreadLocal<ByteToken>() {
+        @Override
+        protected ByteToken initialValue() {
+            return new ByteToken();
+        }
+    };
+
     public static InfluxMetric parse(String line) {
+        byte[] bytes = line.getBytes(Charsets.UTF_8);
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Parse the readable bytes of the given buffer as a single line, without going through a String first.
+     * The reader index of the buffer is left untouched.
+     */
+    public static InfluxMetric parse(ChannelBuffer buffer) {
+        return parse(buffer, null);
+    }
+
+    /**
+     * Same as {@link #parse(ChannelBuffer)}, reusing the series (measurement and tags) of the cache if any.
+     */
+    public static InfluxMetric parse(ChannelBuffer buffer, SeriesCache seriesCache) {
+        MetricBuilder builder = new MetricBuilder();
+        parse(buffer, seriesCache, ParseOptions.DEFAULT, System.currentTimeMillis(), builder);
+        return builder.metric;
+    }
+
+    /**
+     * Streaming counterpart of {@link #parse(ChannelBuffer, SeriesCache)}, see
+     * {@link #parse(byte[], int, int, SeriesCache, ParseOptions, long, InfluxLineHandler)}.
+     */
+    public static boolean parse(ChannelBuffer buffer, SeriesCache seriesCache, ParseOptions options,
+                                long defaultTimestamp, InfluxLineHandler handler) {
+        if (buffer.hasArray()) {
+            return parse(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes(),
+                    seriesCache, options, defaultTimestamp, handler);
+        }
+        int length = buffer.readableBytes();
+        byte[] bytes = CONTEXT.get().copyBuffer(length);
+        buffer.getBytes(buffer.readerIndex(), bytes, 0, length);
+        return parse(bytes, 0, length, seriesCache, options, defaultTimestamp, handler);
+    }
+
+    public static InfluxMetric parse(byte[] line, int offset, int length) {
+        return parse(line, offset, length, null);
+    }
+
+    public static InfluxMetric parse(byte[] line, int offset, int length, SeriesCache seriesCache) {
+        MetricBuilder builder = new MetricBuilder();
+        parse(line, offset, length, seriesCache, ParseOptions.DEFAULT, System.currentTimeMillis(), builder);
+        return builder.metric;
+    }
+
+    /**
+     * Parse a UTF-8 encoded line in place, reporting its content to the handler. Only the measurement, the tags,
+     * the field names and the string values are turned into Strings, escape characters being removed on the fly.
+     * Numeric values are decoded straight from the bytes.
+     * <p>
+     * With a {@link SeriesCache}, the series key (measurement and tags) is looked up in the cache first: for a
+     * known series, neither the measurement, the tags nor the field names are decoded again.
+     * <p>
+     * With {@link IngestRules}, a line whose measurement is dropped is left as soon as its measurement is known,
+     * without reading its tags nor its fields, tags are dropped or renamed as they are read, and the values of the
+     * dropped fields aren't decoded. A tag renamed to the key of a tag of the line is dropped, the tag of the line
+     * winning. The series cache must be built with the same rules.
+     * <p>
+     * With a {@link CardinalityGuard}, the series missing from the cache are submitted to it once their tags are
+     * read: a rejected series only gets {@link InfluxLineHandler#rejected()}, a stripped one is cached as such.
+     * <p>
+     * With a {@link FieldTypeRegistry}, the value of a field whose type is already known from the series cache is
+     * decoded straight as such. Other values have their type checked against the one of their metric, a value of
+     * another type only getting {@link InfluxLineHandler#conflictingField(String)}. Booleans, otherwise dropped,
+     * are reported as 0 and 1 longs if the registry says so.
+     *
+     * @param options          ingest rules, cardinality guard and field types, all optional, and the unit of the
+     *                         timestamps of the line
+     * @param defaultTimestamp timestamp in milliseconds of a line without timestamp, typically the reception time
+     *                         of the datagram or the request, so that the clock isn't read for every line
+     * @return false if the line is empty, in which case the handler is not called
+     * @throws IllegalStateException if the line is malformed
+     */
+    public static boolean parse(byte[] line, int offset, int length, SeriesCache seriesCache, ParseOptions options,
+                                long defaultTimestamp, InfluxLineHandler handler) {
+        final IngestRules rules = options.getRules();
+        final CardinalityGuard guard = options.getGuard();
+        final FieldTypeRegistry types = options.getTypes();
 
 //        https://docs.influxdata.com/influxdb/v0.13/write_protocols/line/
         // measurement [fields[ timestamp]]
         // with measurement name[,tag=value]*
         // with name having spaces and comma escaped
 
-        long executionTimestampNS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
-
-        int offset = 0;
-        StringAndNewOffset tmp;
-
-        tmp = readString(line, offset);
+        final int end = offset + length;
+        final ByteToken token = CONTEXT.get().reset(line, end);
 
-        if (StringUtils.isEmpty(tmp.string)) {
-            return null;
+        final int seriesStart = offset;
+        if (offset == end || line[offset] == COMMA_BYTE || line[offset] == SPACE_BYTE) {
+//            Empty measurement
+            return false;
         }
 
-        String name = tmp.string;
-        offset = tmp.newOffset;
+//        Delimit the series key, i.e. the measurement and the tags, up to the first unescaped space,
+//        hashing it on the way.
+        int seriesHash = SeriesCache.INITIAL_HASH;
+        boolean escaping = false;
+        boolean quoted = false;
+        while (offset < end) {
+            byte currentByte = line[offset];
+            if (currentByte == SPACE_BYTE && !escaping && !quoted) {
+                break;
+            }
+            if (!escaping && currentByte == DOUBLE_QUOTE_BYTE) {
+                quoted = !quoted;
+            }
+            escaping = !escaping && currentByte == ESCAPE_BYTE;
+            seriesHash = SeriesCache.hash(seriesHash, currentByte);
+            offset++;
+        }
+        if (quoted) {
+            throw new IllegalStateException("Unclosed quote");
+        }
+        final int seriesEnd = offset;
+        final int seriesLength = seriesEnd - seriesStart;
 
-        final InfluxMetric influxMetric = new InfluxMetric(name);
+        InfluxSeries series = seriesCache != null ? seriesCache.get(line, seriesStart, seriesLength, seriesHash) : null;
 
-//        Parse the tags
-        while (offset < line.length() && line.charAt(offset) == COMMA) {
-            tmp = readString(line, offset + 1);
-            String[] tagPart = splitOnFirstEqualChar(tmp.string);
-            if (tagPart.length == 2) {
-                influxMetric.addTag(tagPart[0], tagPart[1]);
+        final String measurement;
+        ImmutableSortedMap<String, String> tags;
+        if (series != null) {
+            if (series.isDropped()) {
+                handler.dropped();
+                return true;
+            }
+//            Known series, neither the measurement nor the tags need to be unescaped and decoded
+            measurement = series.getName();
+            tags = series.getTags();
+        } else {
+            int tagOffset = token.read(seriesStart);
+            measurement = token.string();
+
+            if (rules != null && rules.dropsMeasurement(measurement)) {
+//                Remember the decision, the tags don't matter
+                if (seriesCache != null) {
+                    seriesCache.put(line, seriesStart, seriesLength, seriesHash, measurement, NO_TAGS);
+                }
+                handler.dropped();
+                return true;
             }
-            offset = tmp.newOffset;
-        }
 
+//            Parse the tags
+            ImmutableSortedMap.Builder<String, String> tagsBuilder = Tags.create();
+            Map<String, String> renamedTags = null;
+            while (tagOffset < seriesEnd && line[tagOffset] == COMMA_BYTE) {
+                tagOffset = token.read(tagOffset + 1);
+                if (token.hasKeyValue()) {
+                    String key = token.key();
+                    if (rules != null) {
+                        String renamed = rules.tagKey(key);
+                        if (renamed == null) {
+                            continue;
+                        }
+                        if (!renamed.equals(key)) {
+//                            Added once all the tags of the line are known, they win over renamed ones
+                            if (renamedTags == null) {
+                                renamedTags = new LinkedHashMap<String, String>();
+                            }
+                            if (!renamedTags.containsKey(renamed)) {
+                                renamedTags.put(renamed, token.value());
+                            }
+                            continue;
+                        }
+                    }
+                    tagsBuilder.put(key, token.value());
+                }
+            }
+            tags = tagsBuilder.build();
+            if (renamedTags != null) {
+                tags = addRenamedTags(tags, renamedTags);
+            }
 
-//        Parse the fields
-//        Since the timestamp is at the end of the line and a DataPoint in KairosDB need the timestamp,
-//        I have to defer the datapoint (field) creation
-        Map<String, String> datapoints = new HashMap<String, String>();
+            if (guard != null && (tags = guard.admit(measurement, tags)) == null) {
+                handler.rejected();
+                return true;
+            }
+            if (seriesCache != null) {
+                series = seriesCache.put(line, seriesStart, seriesLength, seriesHash, measurement, tags);
+            }
+        }
 
+//        Delimit the fields. Since the timestamp is at the end of the line and a DataPoint in KairosDB need
+//        the timestamp, only the boundaries of each field are recorded, the values being decoded afterwards.
         boolean first = true;
 
-        while (offset < line.length() && (first || line.charAt(offset) == COMMA)) {
+        while (offset < end && (first || line[offset] == COMMA_BYTE)) {
             first = false;
-            tmp = readString(line, offset + 1);
-            String[] fieldPart = splitOnFirstEqualChar(tmp.string);
-            if (fieldPart.length == 2) {
-//                    Parse the value: starting with " is a string, ending with i is an integer, t/true f/false case insensitive is a boolean
-                String key = fieldPart[0];
-                String value = fieldPart[1];
+            offset = token.read(offset + 1);
+            if (token.hasKeyValue() && !token.isValueEmpty()) {
+                token.mark();
+            }
+        }
 
-                if (StringUtils.isEmpty(key) || StringUtils.isEmpty(value)) {
-                    continue;
-                }
-                datapoints.put(key, value);
+//        Read the timestamp, decoded straight from its digits
+        long timestamp = defaultTimestamp;
+        if (offset < end) {
+            token.read(offset + 1);
+            long lineTimestamp = token.longValue(token.start, token.end);
+            if (token.isValid()) {
+                timestamp = options.getPrecision().toMillis(lineTimestamp);
             }
-            offset = tmp.newOffset;
         }
 
+//        Report the fields. Almost there!
+        handler.begin(measurement, tags, series, timestamp);
+        for (int i = 0; i < token.marked(); i++) {
+            token.reset(i);
+            reportField(token, measurement, series, rules, types, i, handler);
+        }
+        handler.end();
+        return true;
+    }
 
-//        read timestamp
-        long timestampNS = executionTimestampNS;
-        if (offset < line.length()) {
-            tmp = readString(line, offset + 1);
-            try {
-                timestampNS = TimeUnit.NANOSECONDS.toMillis(Long.parseLong(tmp.string));
-            } catch (NumberFormatException e) {
-//                TODO: Handle this error.
+    private static ImmutableSortedMap<String, String> addRenamedTags(ImmutableSortedMap<String, String> tags,
+                                                                     Map<String, String> renamedTags) {
+        ImmutableSortedMap.Builder<String, String> builder = Tags.create();
+        builder.putAll(tags);
+        for (Map.Entry<String, String> tag : renamedTags.entrySet()) {
+            if (!tags.containsKey(tag.getKey())) {
+                builder.put(tag.getKey(), tag.getValue());
             }
         }
+        return builder.build();
+    }
 
-//        Convert fields to datapoint. Almost there!
-        for (Map.Entry<String, String> datapoint : datapoints.entrySet()) {
+    /**
+     * Decode the value of the current key=value token and hand it to the handler. Values which can't be parsed
+     * are discarded, as well as the fields dropped by the rules, before their value is decoded.
+     */
+    private static void reportField(ByteToken token, String measurement, InfluxSeries series, IngestRules rules,
+                                    FieldTypeRegistry types, int position, InfluxLineHandler handler) {
+        final byte[] line = token.line;
+        final int from = token.equal + 1;
+        final int end = token.end;
+
+        final InfluxSeries.Field seriesField = series != null ? seriesField(token, series, position) : null;
+        final String field = seriesField != null ? seriesField.getName() : token.key();
+        final String metricName;
+        if (rules != null) {
+            metricName = series != null ? series.getMetricName(field) : rules.metricName(measurement, field);
+            if (metricName == null) {
+                handler.droppedField(field);
+                return;
+            }
+        } else {
+            metricName = null;
+        }
 
-            String field = datapoint.getKey();
-            String value = datapoint.getValue();
+        final boolean booleans = types != null && types.isWritingBooleans();
+        if (types == null || !types.isEnabled()) {
+            reportValue(token, FieldType.of(line, from, end), field, booleans, handler);
+            return;
+        }
 
-            DataPoint dp = null;
-            if (value.charAt(0) == DOUBLE_QUOTE) {
-                dp = new StringDataPoint(timestampNS, value.substring(1, value.length() - 1));
-            } else if (value.charAt(value.length() - 1) == I) {
-                dp = new LongDataPoint(timestampNS, Long.parseLong(value.substring(0, value.length() - 1)));
-            } else if (isTrueFalse(value.charAt(0))) {
-                // TODO: what to do with that?
-            } else {
-                dp = new DoubleDataPoint(timestampNS, Double.parseDouble(value));
-            }
+//        Hot series, the type of the field is known
+        FieldType knownType = seriesField != null ? seriesField.getType() : null;
+        if (knownType != null && reportValue(token, knownType, field, booleans, handler)) {
+            return;
+        }
 
-            if (dp != null) {
-                influxMetric.addDataPoint(field, dp);
-            }
+        FieldType type = FieldType.of(line, from, end);
+        if (type == knownType) {
+//            Invalid value of the right type
+            return;
+        }
+        if (type == FieldType.BOOLEAN && !booleans) {
+//            Dropped, a value which isn't written doesn't establish the type of a metric
+            return;
+        }
+        String name = metricName != null ? metricName
+                : series != null ? series.getMetricName(field) : types.metricName(measurement, field);
+        if (types.getType(name) == null && !reportValue(token, type, field, booleans, null)) {
+//            Invalid values don't establish the type of a metric
+            return;
+        }
+        if (types.register(name, type) != type) {
+            handler.conflictingField(field);
+            return;
+        }
+        if (seriesField != null) {
+            seriesField.setType(type);
+        }
+        reportValue(token, type, field, booleans, handler);
+    }
 
+    /**
+     * Decode the value as the given type and hand it to the handler.
+     *
+     * @param booleans whether boolean values are reported as 0 and 1 longs, or dropped
+     * @param handler  handler of the value, or null to only check it
+     * @return false if the value isn't a valid one of that type
+     */
+    private static boolean reportValue(ByteToken token, FieldType type, String field, boolean booleans,
+                                       InfluxLineHandler handler) {
+        final byte[] line = token.line;
+        final int from = token.equal + 1;
+        final int end = token.end;
+        switch (type) {
+            case STRING:
+                if (line[from] != DOUBLE_QUOTE_BYTE) {
+                    return false;
+                }
+                if (end - from > 1 && handler != null) {
+                    handler.stringField(field, token.decode(from + 1, end - 1));
+                }
+                return true;
+            case LONG:
+                if (line[end - 1] != I) {
+                    return false;
+                }
+                long longValue = token.longValue(from, end - 1);
+                if (token.isValid() && handler != null) {
+                    handler.longField(field, longValue);
+                }
+                return token.isValid();
+            case BOOLEAN:
+                boolean value = token.booleanValue(from, end);
+                if (token.isValid() && booleans && handler != null) {
+                    handler.longField(field, value ? 1 : 0);
+                }
+                return token.isValid();
+            default:
+                double doubleValue = token.doubleValue(from, end);
+                if (token.isValid() && handler != null) {
+                    handler.doubleField(field, doubleValue);
+                }
+                return token.isValid();
         }
-        return influxMetric;
+    }
+
+    /**
+     * @return the field of the series, added if new, or null if the series has too many fields
+     */
+    private static InfluxSeries.Field seriesField(ByteToken token, InfluxSeries series, int position) {
+        InfluxSeries.Field field = series.getField(token.line, token.start, token.equal, position);
+        if (field == null) {
+            field = series.addField(token.line, token.start, token.equal, token.key());
+        }
+        return field;
     }
 
     public static StringAndNewOffset readString(String line, int offset) {
@@ -162,13 +438,6 @@ public class InfluxLineProtocolParser {
         }
     }
 
-    private static boolean isTrueFalse(char value) {
-        return value == 't' ||
-                value == 'T' ||
-                value == 'f' ||
-                value == 'F';
-    }
-
     public static String[] splitOnFirstEqualChar(String kevValue) {
 
         int pos = kevValue.indexOf(EQUAL);
@@ -182,4 +451,330 @@ public class InfluxLineProtocolParser {
 
         return new String[0];
     }
+
+    /**
+     * Byte counterpart of {@link #readString(String, int)}: delimits a token (up to the next unescaped and unquoted
+     * comma or space) and remembers where its first unescaped equal sign is, so that keys and values can be
+     * decoded without intermediate Strings.
+     */
+    private static final class ByteToken {
+        private byte[] line;
+        private int lineEnd;
+        private byte[] scratch;
+        private byte[] copy;
+
+        private int start;
+        private int end;
+        private int equal;
+        private boolean escaped;
+
+        private boolean valid;
+
+//        start, equal, end and escaped flag of each recorded field, four ints per field
+        private int[] marks = new int[32];
+        private int markCount;
+
+        private ByteToken reset(byte[] line, int lineEnd) {
+            this.line = line;
+            this.lineEnd = lineEnd;
+            this.markCount = 0;
+            return this;
+        }
+
+        /**
+         * @return a reusable array to copy lines which aren't backed by an array into
+         */
+        private byte[] copyBuffer(int length) {
+            if (copy == null || copy.length < length) {
+                copy = new byte[Math.max(length, 1024)];
+            }
+            return copy;
+        }
+
+        private int read(int offset) {
+            start = offset;
+            equal = -1;
+            escaped = false;
+            boolean escaping = false;
+            boolean quoted = false;
+
+            while (offset < lineEnd) {
+                byte currentByte = line[offset];
+
+                if ((currentByte == COMMA_BYTE || currentByte == SPACE_BYTE) && !escaping && !quoted) {
+                    break;
+                }
+                if (currentByte == ESCAPE_BYTE && !escaping) {
+                    escaping = true;
+                    escaped = true;
+                } else {
+                    if (!escaping) {
+                        if (currentByte == DOUBLE_QUOTE_BYTE) {
+                            quoted = !quoted;
+                        } else if (currentByte == EQUAL_BYTE && equal < 0 && !quoted) {
+                            equal = offset;
+                        }
+                    }
+                    escaping = false;
+                }
+                offset++;
+            }
+
+            if (quoted) {
+                throw new IllegalStateException("Unclosed quote");
+            }
+            end = offset;
+            return offset;
+        }
+
+        private boolean hasKeyValue() {
+            return equal > start;
+        }
+
+        private boolean isValueEmpty() {
+            return equal + 1 >= end;
+        }
+
+        /**
+         * Record the boundaries of the current token so it can be decoded after subsequent tokens were read.
+         */
+        private void mark() {
+            int index = markCount * 4;
+            if (index + 4 > marks.length) {
+                marks = Arrays.copyOf(marks, marks.length * 2);
+            }
+            marks[index] = start;
+            marks[index + 1] = equal;
+            marks[index + 2] = end;
+            marks[index + 3] = escaped ? 1 : 0;
+            markCount++;
+        }
+
+        private int marked() {
+            return markCount;
+        }
+
+        private void reset(int mark) {
+            int index = mark * 4;
+            start = marks[index];
+            equal = marks[index + 1];
+            end = marks[index + 2];
+            escaped = marks[index + 3] == 1;
+        }
+
+        private boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * Decode t, T, true, True, TRUE, f, F, false, False or FALSE, setting the valid flag accordingly.
+         */
+        private boolean booleanValue(int from, int to) {
+            valid = true;
+            switch (to - from) {
+                case 1:
+                    byte b = line[from];
+                    valid = b == 't' || b == 'T' || b == 'f' || b == 'F';
+                    return b == 't' || b == 'T';
+                case 4:
+                    valid = matches(from, "true") || matches(from, "True") || matches(from, "TRUE");
+                    return true;
+                case 5:
+                    valid = matches(from, "false") || matches(from, "False") || matches(from, "FALSE");
+                    return false;
+                default:
+                    valid = false;
+                    return false;
+            }
+        }
+
+        private boolean matches(int from, String ascii) {
+            for (int i = 0; i < ascii.length(); i++) {
+                if (line[from + i] != ascii.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Decode a signed decimal integer, setting the valid flag accordingly.
+         */
+        private long longValue(int from, int to) {
+            valid = false;
+            if (from >= to) {
+                return 0;
+            }
+            boolean negative = line[from] == '-';
+            if (negative || line[from] == '+') {
+                from++;
+                if (from == to) {
+                    return 0;
+                }
+            }
+//            Accumulate negatively so that Long.MIN_VALUE can be represented
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long result = 0;
+            for (int i = from; i < to; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9 || result < (limit + digit) / 10) {
+                    return 0;
+                }
+                result = result * 10 - digit;
+            }
+            valid = true;
+            return negative ? result : -result;
+        }
+
+        /**
+         * Decode a decimal floating point number, setting the valid flag accordingly. Values with up to 15
+         * significant digits and a small decimal exponent are computed exactly from a long mantissa, the
+         * remaining ones fall back to {@link Double#parseDouble(String)}.
+         */
+        private double doubleValue(int from, int to) {
+            valid = false;
+            int i = from;
+            boolean negative = false;
+            if (i < to && (line[i] == '-' || line[i] == '+')) {
+                negative = line[i] == '-';
+                i++;
+            }
+
+            long mantissa = 0;
+            int significantDigits = 0;
+            int exponent = 0;
+            int digits = 0;
+            boolean dot = false;
+            for (; i < to; i++) {
+                byte b = line[i];
+                if (b >= '0' && b <= '9') {
+                    digits++;
+                    if (significantDigits > 0 || b != '0') {
+                        if (significantDigits < 19) {
+                            mantissa = mantissa * 10 + (b - '0');
+                            if (dot) {
+                                exponent--;
+                            }
+                        } else if (!dot) {
+                            exponent++;
+                        }
+                        significantDigits++;
+                    } else if (dot) {
+                        exponent--;
+                    }
+                } else if (b == '.' && !dot) {
+                    dot = true;
+                } else {
+                    break;
+                }
+            }
+            if (digits == 0) {
+                return 0;
+            }
+            if (i < to) {
+                if (line[i] != 'e' && line[i] != 'E') {
+                    return 0;
+                }
+                long explicitExponent = longValue(i + 1, to);
+                if (!valid) {
+                    return 0;
+                }
+                valid = false;
+                if (explicitExponent > 400 || explicitExponent < -400) {
+                    return slowDoubleValue(from, to);
+                }
+                exponent += (int) explicitExponent;
+            }
+
+            if (significantDigits > 15 || exponent > 22 || exponent < -22) {
+                return slowDoubleValue(from, to);
+            }
+            double result = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            valid = true;
+            return negative ? -result : result;
+        }
+
+        private double slowDoubleValue(int from, int to) {
+            try {
+                double result = Double.parseDouble(new String(line, from, to - from, Charsets.ISO_8859_1));
+                valid = true;
+                return result;
+            } catch (NumberFormatException e) {
+                valid = false;
+                return 0;
+            }
+        }
+
+        private String string() {
+            return decode(start, end);
+        }
+
+        private String key() {
+            return decode(start, equal);
+        }
+
+        private String value() {
+            return decode(equal + 1, end);
+        }
+
+        private String decode(int from, int to) {
+            if (!escaped) {
+                return new String(line, from, to - from, Charsets.UTF_8);
+            }
+            if (scratch == null || scratch.length < to - from) {
+                scratch = new byte[to - from];
+            }
+            int length = 0;
+            boolean escaping = false;
+            for (int i = from; i < to; i++) {
+                if (line[i] == ESCAPE_BYTE && !escaping) {
+                    escaping = true;
+                } else {
+                    escaping = false;
+                    scratch[length++] = line[i];
+                }
+            }
+            return new String(scratch, 0, length, Charsets.UTF_8);
+        }
+    }
+
+    /**
+     * Collects the content of a line into an {@link InfluxMetric}, for the non streaming entry points.
+     */
+    private static final class MetricBuilder implements InfluxLineHandler {
+        private InfluxMetric metric;
+        private long timestamp;
+
+        @Override
+        public void begin(String measurement, ImmutableSortedMap<String, String> tags, InfluxSeries series, long timestamp) {
+            if (series != null) {
+                metric = new InfluxMetric(series);
+            } else {
+                metric = new InfluxMetric(measurement);
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    metric.addTag(tag.getKey(), tag.getValue());
+                }
+            }
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public void longField(String field, long value) {
+            metric.addDataPoint(field, new LongDataPoint(timestamp, value));
+        }
+
+        @Override
+        public void doubleField(String field, double value) {
+            metric.addDataPoint(field, new DoubleDataPoint(timestamp, value));
+        }
+
+        @Override
+        public void stringField(String field, String value) {
+            metric.addDataPoint(field, new StringDataPoint(timestamp, value));
+        }
+
+        @Override
+        public void end() {
+        }
+    }
 }
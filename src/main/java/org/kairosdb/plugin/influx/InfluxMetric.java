@@ -7,32 +7,65 @@ import org.kairosdb.util.Tags;
 
 public class InfluxMetric {
     private final String name;
+    private final InfluxSeries series;
     private final ImmutableSortedMap.Builder<String, String> tags;
     private final ImmutableMap.Builder<String, DataPoint> dataPoints;
+    private ImmutableSortedMap<String, String> builtTags;
+    private ImmutableMap<String, DataPoint> builtDataPoints;
 
     public InfluxMetric(String name) {
         this.name = name;
+        this.series = null;
         tags = Tags.create();
         dataPoints = ImmutableMap.builder();
     }
 
+    /**
+     * Metric of an already known series, whose name and tags can't be changed.
+     */
+    public InfluxMetric(InfluxSeries series) {
+        this.name = series.getName();
+        this.series = series;
+        this.tags = null;
+        this.builtTags = series.getTags();
+        dataPoints = ImmutableMap.builder();
+    }
+
     public void addTag(String tag, String value) {
+        if (series != null) {
+            throw new IllegalStateException("Tags of a cached series can't be changed");
+        }
         tags.put(tag, value);
+        builtTags = null;
     }
 
     public void addDataPoint(String field, DataPoint dp) {
         dataPoints.put(field, dp);
+        builtDataPoints = null;
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * @return the cached series this metric belongs to, or null if it was parsed without a {@link SeriesCache}
+     */
+    public InfluxSeries getSeries() {
+        return series;
+    }
+
     public ImmutableSortedMap<String, String> getTags() {
-        return tags.build();
+        if (builtTags == null) {
+            builtTags = tags.build();
+        }
+        return builtTags;
     }
 
     public ImmutableMap<String, DataPoint> getDataPoints() {
-        return dataPoints.build();
+        if (builtDataPoints == null) {
+            builtDataPoints = dataPoints.build();
+        }
+        return builtDataPoints;
     }
 }
@@ -0,0 +1,149 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.cache.CacheStats;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.reporting.KairosMetricReporter;
+import org.kairosdb.plugin.influx.cardinality.CardinalityGuard;
+import org.kairosdb.plugin.influx.fieldtype.FieldTypeRegistry;
+import org.kairosdb.plugin.influx.ratelimit.SenderRateLimiter;
+import org.kairosdb.plugin.influx.rollup.RollupStage;
+import org.kairosdb.plugin.influx.spool.DiskSpool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports the {@link InfluxMetrics} counters as KairosDB internal metrics, e.g. kairosdb.influx.lines_received,
+ * tagged with the host name like KairosDB's own metrics. Counts are the ones since the previous report, parse
+ * times are in nanoseconds.
+ */
+public class InfluxMetricReporter implements KairosMetricReporter {
+    public static final String PREFIX = "kairosdb.influx.";
+
+    private final InfluxMetrics metrics;
+    private final InfluxIngester ingester;
+    private final InfluxBatchWriter writer;
+    private final InfluxIngestQueue queue;
+    private final RollupStage rollup;
+    private final DiskSpool spool;
+    private final SenderRateLimiter rateLimiter;
+    private final CardinalityGuard guard;
+    private final FieldTypeRegistry types;
+    private final String hostname;
+
+    private CacheStats lastCacheStats = new CacheStats(0, 0, 0, 0, 0, 0);
+
+    @Inject
+    public InfluxMetricReporter(InfluxMetrics metrics, InfluxIngester ingester, InfluxBatchWriter writer,
+                                InfluxIngestQueue queue, RollupStage rollup, DiskSpool spool,
+                                SenderRateLimiter rateLimiter, CardinalityGuard guard, FieldTypeRegistry types,
+                                @Named("HOSTNAME") String hostname) {
+        this.metrics = metrics;
+        this.ingester = ingester;
+        this.writer = writer;
+        this.queue = queue;
+        this.rollup = rollup;
+        this.spool = spool;
+        this.rateLimiter = rateLimiter;
+        this.guard = guard;
+        this.types = types;
+        this.hostname = hostname;
+    }
+
+    @Override
+    public synchronized List<DataPointSet> getMetrics(long now) {
+        List<DataPointSet> sets = new ArrayList<DataPointSet>();
+
+        sets.add(newDataPointSet("datagrams_received", now, metrics.resetDatagrams()));
+        sets.add(newDataPointSet("lines_received", now, metrics.resetLines()));
+        sets.add(newDataPointSet("lines_dropped", now, metrics.resetDroppedLines()));
+        sets.add(newDataPointSet("points_written", now, metrics.resetPoints()));
+        sets.add(newDataPointSet("empty_lines", now, metrics.resetEmptyLines()));
+        sets.add(newDataPointSet("nameless_lines", now, metrics.resetNamelessLines()));
+        sets.add(newDataPointSet("fieldless_lines", now, metrics.resetFieldlessLines()));
+        sets.add(newDataPointSet("write_errors", now, metrics.resetWriteErrors()));
+        sets.add(newDataPointSet("filtered_lines", now, metrics.resetFilteredLines()));
+        sets.add(newDataPointSet("filtered_fields", now, metrics.resetFilteredFields()));
+        for (InfluxMetrics.ParseError reason : InfluxMetrics.ParseError.values()) {
+            DataPointSet set = newDataPointSet("parse_errors", now, metrics.resetParseErrors(reason));
+            set.addTag("reason", reason.getTag());
+            sets.add(set);
+        }
+
+        LatencyHistogram.Snapshot parseTime = metrics.resetParseTime();
+        if (parseTime.getCount() > 0) {
+            sets.add(parseTime(now, "p50", parseTime.getQuantile(0.5)));
+            sets.add(parseTime(now, "p99", parseTime.getQuantile(0.99)));
+            sets.add(parseTime(now, "max", parseTime.getMax()));
+        }
+
+        sets.add(newDataPointSet("queue_depth", now, queue.getDepth()));
+        sets.add(newDataPointSet("writer_pending_batches", now, writer.getPendingBatches()));
+
+        if (rollup.isEnabled()) {
+            sets.add(newDataPointSet("rollup_points", now, metrics.resetRollupPoints()));
+            sets.add(newDataPointSet("rollup_late_points", now, metrics.resetRollupLatePoints()));
+            sets.add(newDataPointSet("rollup_overflow_points", now, metrics.resetRollupOverflows()));
+            sets.add(newDataPointSet("rollup_series", now, rollup.getSeriesCount()));
+        }
+
+        if (spool.isEnabled()) {
+            sets.add(newDataPointSet("spooled_points", now, metrics.resetSpooledPoints()));
+            sets.add(newDataPointSet("replayed_points", now, metrics.resetReplayedPoints()));
+            sets.add(newDataPointSet("spool_dropped_points", now, metrics.resetSpoolDroppedPoints()));
+            sets.add(newDataPointSet("spool_oversized_points", now, metrics.resetSpoolOversizedPoints()));
+            sets.add(newDataPointSet("spool_size", now, spool.getSize()));
+        }
+
+        if (rateLimiter.isEnabled()) {
+            sets.add(newDataPointSet("rate_limited_lines", now, metrics.resetRateLimitedLines()));
+            sets.add(newDataPointSet("rate_limited_senders", now, rateLimiter.resetLimitedSenders()));
+            sets.add(newDataPointSet("rate_limit_senders", now, rateLimiter.getSenderCount()));
+        }
+
+        if (guard.isEnabled()) {
+            sets.add(newDataPointSet("rejected_series", now, metrics.resetRejectedSeries()));
+            sets.add(newDataPointSet("stripped_series", now, metrics.resetStrippedSeries()));
+            sets.add(newDataPointSet("unremembered_series", now, metrics.resetUnrememberedSeries()));
+            for (Map.Entry<String, Long> cardinality : guard.getCardinalities().entrySet()) {
+                DataPointSet set = newDataPointSet("series_cardinality", now, cardinality.getValue());
+                set.addTag("measurement", cardinality.getKey());
+                sets.add(set);
+            }
+        }
+
+        if (types.isEnabled()) {
+            sets.add(newDataPointSet("field_type_conflicts", now, metrics.resetFieldTypeConflicts()));
+            sets.add(newDataPointSet("field_type_metrics", now, types.size()));
+        }
+
+        SeriesCache seriesCache = ingester.getSeriesCache();
+        if (seriesCache != null) {
+            CacheStats stats = seriesCache.stats();
+            CacheStats delta = stats.minus(lastCacheStats);
+            lastCacheStats = stats;
+            sets.add(newDataPointSet("series_cache_size", now, seriesCache.size()));
+            sets.add(newDataPointSet("series_cache_hits", now, delta.hitCount()));
+            sets.add(newDataPointSet("series_cache_misses", now, delta.missCount()));
+        }
+
+        return sets;
+    }
+
+    private DataPointSet parseTime(long now, String quantile, long value) {
+        DataPointSet set = newDataPointSet("parse_time", now, value);
+        set.addTag("quantile", quantile);
+        return set;
+    }
+
+    private DataPointSet newDataPointSet(String name, long now, long value) {
+        DataPointSet set = new DataPointSet(PREFIX + name);
+        set.addTag("host", hostname);
+        set.addDataPoint(new LongDataPoint(now, value));
+        return set;
+    }
+}
@@ -0,0 +1,309 @@
+package org.kairosdb.plugin.influx;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the ingest path shared by all the listeners. They are striped ({@link LongAdder}) so that the
+ * receiving threads don't contend on them, and reset each time they are reported by {@link InfluxMetricReporter}.
+ */
+public class InfluxMetrics {
+
+    public enum ParseError {
+        /**
+         * Malformed line, e.g. an unclosed quote
+         */
+        SYNTAX("syntax"),
+        /**
+         * Line longer than the maximum size of the listener
+         */
+        TOO_LONG("too_long"),
+        /**
+         * Anything else the parser choked on
+         */
+        OTHER("other");
+
+        private final String tag;
+
+        ParseError(String tag) {
+            this.tag = tag;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder droppedLines = new LongAdder();
+    private final LongAdder points = new LongAdder();
+    private final LongAdder emptyLines = new LongAdder();
+    private final LongAdder namelessLines = new LongAdder();
+    private final LongAdder fieldlessLines = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final LongAdder filteredLines = new LongAdder();
+    private final LongAdder filteredFields = new LongAdder();
+    private final LongAdder rollupPoints = new LongAdder();
+    private final LongAdder rollupLatePoints = new LongAdder();
+    private final LongAdder rollupOverflows = new LongAdder();
+    private final LongAdder spooledPoints = new LongAdder();
+    private final LongAdder replayedPoints = new LongAdder();
+    private final LongAdder spoolDroppedPoints = new LongAdder();
+    private final LongAdder spoolOversizedPoints = new LongAdder();
+    private final LongAdder rateLimitedLines = new LongAdder();
+    private final LongAdder rejectedSeries = new LongAdder();
+    private final LongAdder strippedSeries = new LongAdder();
+    private final LongAdder unrememberedSeries = new LongAdder();
+    private final LongAdder fieldTypeConflicts = new LongAdder();
+    private final LongAdder[] parseErrors = new LongAdder[ParseError.values().length];
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+
+    public InfluxMetrics() {
+        for (int i = 0; i < parseErrors.length; i++) {
+            parseErrors[i] = new LongAdder();
+        }
+    }
+
+    public void datagramReceived() {
+        datagrams.increment();
+    }
+
+    public void lineReceived() {
+        lines.increment();
+    }
+
+    /**
+     * Lines discarded because the ingest queue was full.
+     */
+    public void linesDropped(int count) {
+        droppedLines.add(count);
+    }
+
+    public void pointsWritten(int count) {
+        points.add(count);
+    }
+
+    public void emptyLine() {
+        emptyLines.increment();
+    }
+
+    /**
+     * Line without measurement.
+     */
+    public void namelessLine() {
+        namelessLines.increment();
+    }
+
+    /**
+     * Line without any valid field.
+     */
+    public void fieldlessLine() {
+        fieldlessLines.increment();
+    }
+
+    public void writeError() {
+        writeErrors.increment();
+    }
+
+    /**
+     * Line dropped by the ingest rules, either its measurement or all its fields.
+     */
+    public void linesFiltered() {
+        filteredLines.increment();
+    }
+
+    /**
+     * Fields dropped by the ingest rules.
+     */
+    public void fieldsFiltered(int count) {
+        filteredFields.add(count);
+    }
+
+    /**
+     * Data point added to a rollup window instead of being written.
+     */
+    public void rollupPoint() {
+        rollupPoints.increment();
+    }
+
+    /**
+     * Data point written raw because its rollup window was already written.
+     */
+    public void rollupLatePoint() {
+        rollupLatePoints.increment();
+    }
+
+    /**
+     * Data point written raw because the max number of rolled up series was reached.
+     */
+    public void rollupOverflow() {
+        rollupOverflows.increment();
+    }
+
+    /**
+     * Data points written to the spool, the datastore failing.
+     */
+    public void pointsSpooled(int count) {
+        spooledPoints.add(count);
+    }
+
+    /**
+     * Data point of the spool written to the datastore.
+     */
+    public void pointReplayed() {
+        replayedPoints.increment();
+    }
+
+    /**
+     * Data point lost, the spool being full or the point refused by the datastore when replayed.
+     */
+    public void spoolDroppedPoint() {
+        spoolDroppedPoints.increment();
+    }
+
+    /**
+     * Data point lost, too large for a spool segment.
+     */
+    public void spoolOversizedPoint() {
+        spoolOversizedPoints.increment();
+    }
+
+    /**
+     * Lines of the datagrams dropped because their sender was over its rate limit.
+     */
+    public void linesRateLimited(int count) {
+        rateLimitedLines.add(count);
+    }
+
+    /**
+     * New series refused because its measurement has too many series.
+     */
+    public void seriesRejected() {
+        rejectedSeries.increment();
+    }
+
+    /**
+     * New series stripped of some of its tags because its measurement has too many series.
+     */
+    public void seriesStripped() {
+        strippedSeries.increment();
+    }
+
+    /**
+     * New series admitted but not remembered because the set of known series is too full.
+     */
+    public void seriesUnremembered() {
+        unrememberedSeries.increment();
+    }
+
+    /**
+     * Field value rejected because its metric has values of another type.
+     */
+    public void fieldTypeConflict() {
+        fieldTypeConflicts.increment();
+    }
+
+    public void parseError(ParseError reason) {
+        parseErrors[reason.ordinal()].increment();
+    }
+
+    public void parseTime(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    public long resetDatagrams() {
+        return datagrams.sumThenReset();
+    }
+
+    public long resetLines() {
+        return lines.sumThenReset();
+    }
+
+    public long resetDroppedLines() {
+        return droppedLines.sumThenReset();
+    }
+
+    public long resetPoints() {
+        return points.sumThenReset();
+    }
+
+    public long resetEmptyLines() {
+        return emptyLines.sumThenReset();
+    }
+
+    public long resetNamelessLines() {
+        return namelessLines.sumThenReset();
+    }
+
+    public long resetFieldlessLines() {
+        return fieldlessLines.sumThenReset();
+    }
+
+    public long resetWriteErrors() {
+        return writeErrors.sumThenReset();
+    }
+
+    public long resetFilteredLines() {
+        return filteredLines.sumThenReset();
+    }
+
+    public long resetFilteredFields() {
+        return filteredFields.sumThenReset();
+    }
+
+    public long resetRollupPoints() {
+        return rollupPoints.sumThenReset();
+    }
+
+    public long resetRollupLatePoints() {
+        return rollupLatePoints.sumThenReset();
+    }
+
+    public long resetRollupOverflows() {
+        return rollupOverflows.sumThenReset();
+    }
+
+    public long resetSpooledPoints() {
+        return spooledPoints.sumThenReset();
+    }
+
+    public long resetReplayedPoints() {
+        return replayedPoints.sumThenReset();
+    }
+
+    public long resetSpoolDroppedPoints() {
+        return spoolDroppedPoints.sumThenReset();
+    }
+
+    public long resetSpoolOversizedPoints() {
+        return spoolOversizedPoints.sumThenReset();
+    }
+
+    public long resetRateLimitedLines() {
+        return rateLimitedLines.sumThenReset();
+    }
+
+    public long resetRejectedSeries() {
+        return rejectedSeries.sumThenReset();
+    }
+
+    public long resetStrippedSeries() {
+        return strippedSeries.sumThenReset();
+    }
+
+    public long resetUnrememberedSeries() {
+        return unrememberedSeries.sumThenReset();
+    }
+
+    public long resetFieldTypeConflicts() {
+        return fieldTypeConflicts.sumThenReset();
+    }
+
+    public long resetParseErrors(ParseError reason) {
+        return parseErrors[reason.ordinal()].sumThenReset();
+    }
+
+    public LatencyHistogram.Snapshot resetParseTime() {
+        return parseTime.snapshotAndReset();
+    }
+}
@@ -0,0 +1,166 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.plugin.influx.fieldtype.FieldType;
+import org.kairosdb.plugin.influx.relabel.IngestRules;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Measurement and tags of a line, i.e. everything before the first unescaped space, built once and shared by
+ * all the lines of the same series. The field names and the KairosDB metric names (measurement + separator +
+ * field) are decoded and built once per field as well, as are the decisions of the {@link IngestRules} if any,
+ * and the type of the values of each field once established.
+ */
+public class InfluxSeries {
+    //    Guard against series with an unbounded number of distinct fields
+    private static final int MAX_METRIC_NAMES = 1024;
+    //    Metric name of the dropped fields, as null can't be kept in the map
+    private static final String DROPPED = new String("");
+
+    private final String name;
+    private final ImmutableSortedMap<String, String> tags;
+    private final String separator;
+    private final IngestRules rules;
+    private final boolean dropped;
+    private final ConcurrentMap<String, String> metricNames = new ConcurrentHashMap<String, String>();
+
+//    Raw field keys seen for this series and their decoded names, replaced as a whole when a field is added
+    private volatile Field[] fields = new Field[0];
+
+    public InfluxSeries(String name, ImmutableSortedMap<String, String> tags, String separator) {
+        this(name, tags, separator, null);
+    }
+
+    /**
+     * @param rules rules deciding which fields are kept and how their metrics are named, or null
+     */
+    public InfluxSeries(String name, ImmutableSortedMap<String, String> tags, String separator, IngestRules rules) {
+        this.name = name;
+        this.tags = tags;
+        this.separator = separator;
+        this.rules = rules;
+        this.dropped = rules != null && rules.dropsMeasurement(name);
+    }
+
+    /**
+     * @return whether the lines of this series are dropped as a whole
+     */
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ImmutableSortedMap<String, String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @return the name of the metric of the field, or null if the field is dropped
+     */
+    public String getMetricName(String field) {
+        String metricName = metricNames.get(field);
+        if (metricName == null) {
+            if (rules == null) {
+                metricName = name + separator + field;
+            } else {
+                metricName = rules.metricName(name, field);
+                if (metricName == null) {
+                    metricName = DROPPED;
+                }
+            }
+            if (metricNames.size() < MAX_METRIC_NAMES) {
+                metricNames.put(field, metricName);
+            }
+        }
+        return metricName == DROPPED ? null : metricName;
+    }
+
+    /**
+     * Look up a field key, as raw bytes of the line, with its decoded name and type.
+     *
+     * @param position position of the field on the line, fields usually coming in the same order
+     * @return the field, or null if this key was never seen for this series
+     */
+    public Field getField(byte[] line, int from, int to, int position) {
+        Field[] known = fields;
+        if (position < known.length && known[position].matches(line, from, to)) {
+            return known[position];
+        }
+        for (Field field : known) {
+            if (field.matches(line, from, to)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the field added, or the one already added by another thread for the same key, or null if the series
+     * has too many fields
+     */
+    public Field addField(byte[] line, int from, int to, String name) {
+        synchronized (this) {
+            Field[] known = fields;
+            for (Field field : known) {
+                if (field.matches(line, from, to)) {
+                    return field;
+                }
+            }
+            if (known.length >= MAX_METRIC_NAMES) {
+                return null;
+            }
+            Field[] newFields = Arrays.copyOf(known, known.length + 1);
+            Field field = new Field(Arrays.copyOfRange(line, from, to), name);
+            newFields[known.length] = field;
+            fields = newFields;
+            return field;
+        }
+    }
+
+    /**
+     * Field key of the series, as raw bytes, with its decoded name and the type of its values.
+     */
+    public static final class Field {
+        private final byte[] key;
+        private final String name;
+        private volatile FieldType type;
+
+        private Field(byte[] key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the type of the values of the field, or null if not established yet
+         */
+        public FieldType getType() {
+            return type;
+        }
+
+        public void setType(FieldType type) {
+            this.type = type;
+        }
+
+        private boolean matches(byte[] line, int from, int to) {
+            if (to - from != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != line[from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -2,6 +2,14 @@ package org.kairosdb.plugin.influx;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Singleton;
+import org.kairosdb.plugin.influx.cardinality.CardinalityGuard;
+import org.kairosdb.plugin.influx.fieldtype.FieldTypeRegistry;
+import org.kairosdb.plugin.influx.http.InfluxHttpServer;
+import org.kairosdb.plugin.influx.ratelimit.SenderRateLimiter;
+import org.kairosdb.plugin.influx.relabel.IngestRules;
+import org.kairosdb.plugin.influx.rollup.RollupStage;
+import org.kairosdb.plugin.influx.spool.DiskSpool;
+import org.kairosdb.plugin.influx.tcp.InfluxTCPServer;
 import org.kairosdb.plugin.influx.udp.InfluxUDPServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +18,8 @@ import java.util.Properties;
 
 public class InfluxServerModule extends AbstractModule {
     public static final Logger logger = LoggerFactory.getLogger(InfluxServerModule.class);
+    public static final String TCP_PORT_PROPERTY = "kairosdb.influx.lineprotocol.tcp.port";
+    public static final String HTTP_PORT_PROPERTY = "kairosdb.influx.lineprotocol.http.port";
     private Properties properties;
 
     public InfluxServerModule(Properties props) {
@@ -20,6 +30,31 @@ public class InfluxServerModule extends AbstractModule {
     protected void configure() {
         logger.info("Configuring module InfluxServerModule");
 
+        bind(InfluxMetrics.class).in(Singleton.class);
+        bind(InfluxMetricReporter.class).in(Singleton.class);
+        bind(DiskSpool.class).in(Singleton.class);
+        bind(InfluxBatchWriter.class).in(Singleton.class);
+        bind(RollupStage.class).in(Singleton.class);
+        bind(IngestRules.class).in(Singleton.class);
+        bind(CardinalityGuard.class).in(Singleton.class);
+        bind(FieldTypeRegistry.class).in(Singleton.class);
+        bind(ParseOptions.class).in(Singleton.class);
+        bind(InfluxIngester.class).in(Singleton.class);
+        bind(InfluxIngestQueue.class).in(Singleton.class);
+        bind(SenderRateLimiter.class).in(Singleton.class);
         bind(InfluxUDPServer.class).in(Singleton.class);
+
+//        TCP and HTTP listeners are only started when their port is configured
+        if (isConfigured(TCP_PORT_PROPERTY)) {
+            bind(InfluxTCPServer.class).in(Singleton.class);
+        }
+        if (isConfigured(HTTP_PORT_PROPERTY)) {
+            bind(InfluxHttpServer.class).in(Singleton.class);
+        }
+    }
+
+    private boolean isConfigured(String property) {
+        String value = properties.getProperty(property);
+        return value != null && !value.trim().isEmpty();
     }
 }
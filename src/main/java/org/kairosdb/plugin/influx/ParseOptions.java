@@ -0,0 +1,79 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.inject.Inject;
+import org.kairosdb.plugin.influx.cardinality.CardinalityGuard;
+import org.kairosdb.plugin.influx.fieldtype.FieldTypeRegistry;
+import org.kairosdb.plugin.influx.relabel.IngestRules;
+
+/**
+ * What {@link InfluxLineProtocolParser} applies to the lines besides parsing them: the ingest rules, the cardinality
+ * guard, the field types and the precision of the timestamps. Disabled components are left out, so that the parser
+ * only has null checks to make. Immutable, the with methods return a copy.
+ */
+public final class ParseOptions {
+    public static final ParseOptions DEFAULT = new ParseOptions(null, null, null, Precision.NANOSECONDS);
+
+    private final IngestRules rules;
+    private final CardinalityGuard guard;
+    private final FieldTypeRegistry types;
+    private final Precision precision;
+
+    /**
+     * Options with the given components and timestamps in nanoseconds.
+     */
+    @Inject
+    public ParseOptions(IngestRules rules, CardinalityGuard guard, FieldTypeRegistry types) {
+        this(rules, guard, types, Precision.NANOSECONDS);
+    }
+
+    private ParseOptions(IngestRules rules, CardinalityGuard guard, FieldTypeRegistry types, Precision precision) {
+        this.rules = rules != null && !rules.isEmpty() ? rules : null;
+        this.guard = guard != null && guard.isEnabled() ? guard : null;
+        this.types = types != null && (types.isEnabled() || types.isWritingBooleans()) ? types : null;
+        this.precision = precision;
+    }
+
+    public ParseOptions withRules(IngestRules rules) {
+        return new ParseOptions(rules, guard, types, precision);
+    }
+
+    public ParseOptions withGuard(CardinalityGuard guard) {
+        return new ParseOptions(rules, guard, types, precision);
+    }
+
+    public ParseOptions withTypes(FieldTypeRegistry types) {
+        return new ParseOptions(rules, guard, types, precision);
+    }
+
+    public ParseOptions withPrecision(Precision precision) {
+        return precision == this.precision ? this : new ParseOptions(rules, guard, types, precision);
+    }
+
+    /**
+     * @return rules filtering and relabeling the lines, or null
+     */
+    public IngestRules getRules() {
+        return rules;
+    }
+
+    /**
+     * @return cap on the number of series of each measurement, or null
+     */
+    public CardinalityGuard getGuard() {
+        return guard;
+    }
+
+    /**
+     * @return types of the metrics and handling of booleans, or null to drop booleans and check no type
+     */
+    public FieldTypeRegistry getTypes() {
+        return types;
+    }
+
+    /**
+     * @return unit of the timestamps of the lines
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+}
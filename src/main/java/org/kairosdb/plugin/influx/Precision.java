@@ -0,0 +1,44 @@
+package org.kairosdb.plugin.influx;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit of the timestamps of the lines, InfluxDB's precision parameter. KairosDB timestamps being in milliseconds,
+ * finer timestamps are truncated.
+ */
+public enum Precision {
+    NANOSECONDS(TimeUnit.NANOSECONDS, "n", "ns"),
+    MICROSECONDS(TimeUnit.MICROSECONDS, "u", "us"),
+    MILLISECONDS(TimeUnit.MILLISECONDS, "ms"),
+    SECONDS(TimeUnit.SECONDS, "s"),
+    MINUTES(TimeUnit.MINUTES, "m"),
+    HOURS(TimeUnit.HOURS, "h");
+
+    private final TimeUnit unit;
+    private final String[] names;
+
+    Precision(TimeUnit unit, String... names) {
+        this.unit = unit;
+        this.names = names;
+    }
+
+    public long toMillis(long timestamp) {
+        return unit.toMillis(timestamp);
+    }
+
+    /**
+     * @param name as in InfluxDB, e.g. ns, u, ms or s
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static Precision fromName(String name) {
+        String trimmed = name.trim();
+        for (Precision precision : values()) {
+            for (String precisionName : precision.names) {
+                if (precisionName.equals(trimmed)) {
+                    return precision;
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown precision " + name + ", expected one of n, ns, u, us, ms, s, m or h");
+    }
+}
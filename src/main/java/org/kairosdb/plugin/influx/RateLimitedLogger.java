@@ -0,0 +1,60 @@
+package org.kairosdb.plugin.influx;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets at most one message per interval through to the underlying logger, counting the ones suppressed in
+ * between, so that a flood of bad lines doesn't turn into a flood of log lines. Meant to be used as
+ * <pre>
+ * if (log.isEnabled()) {
+ *     log.warn("...", expensiveArgument());
+ * }
+ * </pre>
+ * so that the arguments are only computed for the messages actually logged.
+ */
+public final class RateLimitedLogger {
+
+    public static final long DEFAULT_INTERVAL_MS = 10000;
+
+    private final Logger logger;
+    private final long intervalMs;
+    private final AtomicLong nextLogTime = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public RateLimitedLogger(Logger logger) {
+        this(logger, DEFAULT_INTERVAL_MS);
+    }
+
+    public RateLimitedLogger(Logger logger, long intervalMs) {
+        this.logger = logger;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * @return true if the caller may log now, in which case it must log exactly one message
+     */
+    public boolean isEnabled() {
+        long now = System.currentTimeMillis();
+        long next = nextLogTime.get();
+        if (now < next || !nextLogTime.compareAndSet(next, now + intervalMs)) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void warn(String format, Object... arguments) {
+        logger.warn(withSuppressed(format), arguments);
+    }
+
+    public void error(String format, Object... arguments) {
+        logger.error(withSuppressed(format), arguments);
+    }
+
+    private String withSuppressed(String format) {
+        long count = suppressed.getAndSet(0);
+        return count == 0 ? format : format + " (" + count + " similar message(s) suppressed)";
+    }
+}
@@ -0,0 +1,155 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.plugin.influx.relabel.IngestRules;
+
+import java.util.Arrays;
+
+/**
+ * Bounded, concurrent cache of the series seen recently, keyed by the raw bytes of the series key (measurement
+ * and tags as they appear on the line). Repeated series are then built once instead of on every line; the least
+ * recently used ones are evicted when the cache is full.
+ * <p>
+ * The hash of the key is computed by the caller while delimiting the key (see {@link #hash(int, byte)}), so a
+ * lookup neither copies nor reads the bytes again, except to compare them with the cached key.
+ */
+public class SeriesCache {
+    public static final int DEFAULT_MAX_KEY_LENGTH = 1024;
+    public static final int INITIAL_HASH = 1;
+
+    private final Cache<SeriesKey, InfluxSeries> cache;
+    private final String separator;
+    private final IngestRules rules;
+    private final int maxKeyLength;
+
+    public SeriesCache(int maxSize, String separator) {
+        this(maxSize, DEFAULT_MAX_KEY_LENGTH, separator);
+    }
+
+    /**
+     * @param maxSize      max number of cached series
+     * @param maxKeyLength series keys longer than this (in bytes) are not cached, bounding the memory used by
+     *                     the keys to maxSize * maxKeyLength
+     */
+    public SeriesCache(int maxSize, int maxKeyLength, String separator) {
+        this(maxSize, maxKeyLength, separator, null);
+    }
+
+    /**
+     * @param rules ingest rules the cached series apply, or null
+     */
+    public SeriesCache(int maxSize, int maxKeyLength, String separator, IngestRules rules) {
+        this.separator = separator;
+        this.rules = rules;
+        this.maxKeyLength = maxKeyLength;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Incremental hash of a series key, starting from {@link #INITIAL_HASH}.
+     */
+    public static int hash(int hash, byte b) {
+        return 31 * hash + b;
+    }
+
+    public static int hash(byte[] bytes, int offset, int length) {
+        int h = INITIAL_HASH;
+        for (int i = offset; i < offset + length; i++) {
+            h = hash(h, bytes[i]);
+        }
+        return h;
+    }
+
+    /**
+     * @return the series having exactly this key, or null if not cached. The bytes are not copied.
+     */
+    public InfluxSeries get(byte[] bytes, int offset, int length) {
+        return get(bytes, offset, length, hash(bytes, offset, length));
+    }
+
+    /**
+     * Same as {@link #get(byte[], int, int)} with the hash already computed.
+     */
+    public InfluxSeries get(byte[] bytes, int offset, int length, int hash) {
+        if (length > maxKeyLength) {
+            return null;
+        }
+        return cache.getIfPresent(new SeriesKey(bytes, offset, length, hash));
+    }
+
+    /**
+     * Build the series and cache it under a copy of the key, unless the key is too long.
+     */
+    public InfluxSeries put(byte[] bytes, int offset, int length, String name, ImmutableSortedMap<String, String> tags) {
+        return put(bytes, offset, length, hash(bytes, offset, length), name, tags);
+    }
+
+    public InfluxSeries put(byte[] bytes, int offset, int length, int hash, String name,
+                            ImmutableSortedMap<String, String> tags) {
+        InfluxSeries series = new InfluxSeries(name, tags, separator, rules);
+        if (length <= maxKeyLength) {
+            cache.put(new SeriesKey(Arrays.copyOfRange(bytes, offset, offset + length), 0, length, hash), series);
+        }
+        return series;
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * @return hit, miss and eviction counts since the cache was created
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * View on a region of a byte array, compared by content.
+     */
+    private static final class SeriesKey {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+        private final int hash;
+
+        private SeriesKey(byte[] bytes, int offset, int length, int hash) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            if (hash != other.hash || length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[offset + i] != other.bytes[other.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.kairosdb.plugin.influx.cardinality;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.RateLimitedLogger;
+import org.kairosdb.util.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps the number of series (tag sets) of each measurement, every new one ending up as a new row key in the
+ * datastore. The series of a measurement are counted with a {@link HyperLogLog} sketch, the ones admitted so far are
+ * remembered in a bounded {@link SeriesSet}. Once a measurement reached the limit, only the series already admitted
+ * are, new ones being either rejected or stripped of the tags with the most values, so that they match a series
+ * already admitted. A series admitted but not remembered, the set being too full, isn't counted and is checked again
+ * when seen next. Beyond {@value #MAX_MEASUREMENTS} measurements, the series of new measurements are rejected.
+ * <p>
+ * The parser only asks for series missing from the series cache, whose decision is cached along with them.
+ */
+public class CardinalityGuard {
+    public static final Logger logger = LoggerFactory.getLogger(CardinalityGuard.class);
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+
+    private static final int SERIES_PRECISION = 12;
+    private static final int TAG_PRECISION = 8;
+    private static final int MAX_MEASUREMENTS = 10000;
+    private static final int MAX_TAG_KEYS = 32;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public enum Policy {
+        /**
+         * Drop the lines of the new series
+         */
+        REJECT,
+        /**
+         * Remove the tags with the most distinct values from the new series
+         */
+        STRIP
+    }
+
+    private final InfluxMetrics metrics;
+    private final long maxSeries;
+    private final Policy policy;
+    private final SeriesSet knownSeries;
+    private final int knownSeriesCapacity;
+    private final ConcurrentHashMap<String, Measurement> measurements = new ConcurrentHashMap<String, Measurement>();
+
+    @Inject
+    public CardinalityGuard(InfluxMetrics metrics,
+                            @Named("kairosdb.influx.lineprotocol.cardinality.max_series") long maxSeries,
+                            @Named("kairosdb.influx.lineprotocol.cardinality.policy") String policy,
+                            @Named("kairosdb.influx.lineprotocol.cardinality.known_series") int knownSeries) {
+        this(metrics, maxSeries, Policy.valueOf(policy.trim().toUpperCase(Locale.ENGLISH)), knownSeries);
+    }
+
+    /**
+     * @param maxSeries   max number of series of each measurement, 0 for unlimited
+     * @param knownSeries number of series admitted which are remembered, 8 bytes each
+     */
+    public CardinalityGuard(InfluxMetrics metrics, long maxSeries, Policy policy, int knownSeries) {
+        if (maxSeries < 0 || knownSeries < 1) {
+            throw new IllegalArgumentException("cardinality.max_series must not be negative, cardinality.known_series must be positive");
+        }
+        this.metrics = metrics;
+        this.maxSeries = maxSeries;
+        this.policy = policy;
+        this.knownSeries = maxSeries > 0 ? new SeriesSet(knownSeries) : null;
+        this.knownSeriesCapacity = knownSeries;
+    }
+
+    public boolean isEnabled() {
+        return knownSeries != null;
+    }
+
+    /**
+     * Decide on a series seen for the first time, or at least missing from the series cache.
+     *
+     * @return the tags of the series, stripped ones, or null if the series is rejected
+     */
+    public ImmutableSortedMap<String, String> admit(String measurementName, ImmutableSortedMap<String, String> tags) {
+        long hash = hash(measurementName, tags);
+        if (knownSeries.contains(hash)) {
+            return tags;
+        }
+        Measurement measurement = measurement(measurementName);
+        if (measurement == null) {
+            metrics.seriesRejected();
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.warn("More than {} measurements, rejecting new series {} of measurement {}",
+                        MAX_MEASUREMENTS, tags, measurementName);
+            }
+            return null;
+        }
+        measurement.addTagValues(tags);
+        if (measurement.series.estimate() < maxSeries) {
+//            Counted only once remembered, otherwise it is checked again next time
+            if (knownSeries.add(hash)) {
+                measurement.series.add(hash);
+            } else {
+                metrics.seriesUnremembered();
+                if (rateLimitedLogger.isEnabled()) {
+                    rateLimitedLogger.warn("More than {} series known, series {} of measurement {} is not remembered",
+                            knownSeriesCapacity, tags, measurementName);
+                }
+            }
+            return tags;
+        }
+
+        if (policy == Policy.STRIP) {
+            ImmutableSortedMap<String, String> stripped = strip(measurementName, tags, measurement.tagKeysByValues(tags));
+            if (stripped != null) {
+                metrics.seriesStripped();
+                return stripped;
+            }
+        }
+        metrics.seriesRejected();
+        if (rateLimitedLogger.isEnabled()) {
+            rateLimitedLogger.warn("Measurement {} has more than {} series, rejecting new series {}", measurementName,
+                    maxSeries, tags);
+        }
+        return null;
+    }
+
+    /**
+     * Look for an admitted series without one of the tags, then without the first two, three... tags with the most
+     * values.
+     *
+     * @return the tags of the admitted series, or null if none is
+     */
+    private ImmutableSortedMap<String, String> strip(String measurementName, ImmutableSortedMap<String, String> tags,
+                                                     List<String> keys) {
+        for (String key : keys) {
+            ImmutableSortedMap<String, String> stripped = without(tags, key);
+            if (knownSeries.contains(hash(measurementName, stripped))) {
+                return stripped;
+            }
+        }
+        ImmutableSortedMap<String, String> stripped = tags;
+        for (int i = 0; i < keys.size(); i++) {
+            stripped = without(stripped, keys.get(i));
+            if (i > 0 && knownSeries.contains(hash(measurementName, stripped))) {
+                return stripped;
+            }
+        }
+        return null;
+    }
+
+    private Measurement measurement(String name) {
+        Measurement measurement = measurements.get(name);
+        if (measurement == null) {
+            if (measurements.size() >= MAX_MEASUREMENTS) {
+                return null;
+            }
+            Measurement created = new Measurement();
+            measurement = measurements.putIfAbsent(name, created);
+            if (measurement == null) {
+                measurement = created;
+            }
+        }
+        return measurement;
+    }
+
+    /**
+     * @return the estimated number of series of each measurement
+     */
+    public Map<String, Long> getCardinalities() {
+        Map<String, Long> cardinalities = new TreeMap<String, Long>();
+        for (Map.Entry<String, Measurement> entry : measurements.entrySet()) {
+            cardinalities.put(entry.getKey(), entry.getValue().series.estimate());
+        }
+        return cardinalities;
+    }
+
+    private static ImmutableSortedMap<String, String> without(ImmutableSortedMap<String, String> tags, String key) {
+        ImmutableSortedMap.Builder<String, String> builder = Tags.create();
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (!tag.getKey().equals(key)) {
+                builder.put(tag.getKey(), tag.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    static long hash(String measurement, ImmutableSortedMap<String, String> tags) {
+        long hash = hash(FNV_OFFSET, measurement);
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            hash = hash(hash, tag.getKey());
+            hash = hash(hash, tag.getValue());
+        }
+        return mix(hash);
+    }
+
+    private static long hash(long hash, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+        }
+//        Separator, so that ab,c and a,bc differ
+        return (hash ^ 0xffff) * FNV_PRIME;
+    }
+
+    /**
+     * Murmur3 finalizer, FNV leaving the high bits the HyperLogLog relies on poorly mixed
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Measurement {
+        private final HyperLogLog series = new HyperLogLog(SERIES_PRECISION);
+        private final ConcurrentHashMap<String, HyperLogLog> tagValues = new ConcurrentHashMap<String, HyperLogLog>();
+
+        private void addTagValues(ImmutableSortedMap<String, String> tags) {
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                HyperLogLog values = tagValues.get(tag.getKey());
+                if (values == null) {
+                    if (tagValues.size() >= MAX_TAG_KEYS) {
+                        continue;
+                    }
+                    HyperLogLog created = new HyperLogLog(TAG_PRECISION);
+                    values = tagValues.putIfAbsent(tag.getKey(), created);
+                    if (values == null) {
+                        values = created;
+                    }
+                }
+                values.add(mix(hash(FNV_OFFSET, tag.getValue())));
+            }
+        }
+
+        /**
+         * @return the keys of the tags being tracked, the one with the most distinct values first
+         */
+        private List<String> tagKeysByValues(ImmutableSortedMap<String, String> tags) {
+            List<String> keys = new ArrayList<String>(tags.size());
+            for (String key : tags.keySet()) {
+                if (tagValues.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+            Collections.sort(keys, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    return Long.compare(tagValues.get(b).estimate(), tagValues.get(a).estimate());
+                }
+            });
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.kairosdb.plugin.influx.cardinality;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct 64 bits hashes added, in 2^precision bytes whatever the
+ * number of hashes, with a standard error of about 1.04 / sqrt(2^precision).
+ * <p>
+ * The harmonic sum of the registers is maintained as they change, so that {@link #estimate()} doesn't go through
+ * them. Hashes which don't change any register, i.e. almost all of them once the sketch is warm, are added without
+ * locking.
+ */
+class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+    private final double alphaMM;
+
+    private double sum;
+    private int zeros;
+    private volatile long estimate;
+
+    HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 16");
+        }
+        int m = 1 << precision;
+        this.precision = precision;
+        this.registers = new byte[m];
+        this.alphaMM = (0.7213 / (1 + 1.079 / m)) * m * m;
+        this.sum = m;
+        this.zeros = m;
+    }
+
+    /**
+     * @param hash well mixed 64 bits hash
+     */
+    void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (registers[index] >= rank) {
+            return;
+        }
+        synchronized (this) {
+            int current = registers[index];
+            if (current >= rank) {
+                return;
+            }
+            registers[index] = (byte) rank;
+            sum += Math.scalb(1.0, -rank) - Math.scalb(1.0, -current);
+            if (current == 0) {
+                zeros--;
+            }
+            estimate = computeEstimate();
+        }
+    }
+
+    private long computeEstimate() {
+        int m = registers.length;
+        double raw = alphaMM / sum;
+        if (raw <= 2.5 * m && zeros > 0) {
+//            Small range correction, linear counting
+            return Math.round(m * Math.log((double) m / zeros));
+        }
+        return Math.round(raw);
+    }
+
+    long estimate() {
+        return estimate;
+    }
+}
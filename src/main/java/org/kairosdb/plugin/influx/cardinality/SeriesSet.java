@@ -0,0 +1,60 @@
+package org.kairosdb.plugin.influx.cardinality;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size set of the 64 bits hashes of the series admitted so far, an open addressing table filled with
+ * compare-and-set. A hash not finding a free slot within a few probes isn't remembered, the set never growing nor
+ * evicting anything.
+ */
+class SeriesSet {
+    private static final int MAX_PROBES = 16;
+    private static final long EMPTY = 0;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+
+    SeriesSet(int capacity) {
+        int size = Integer.highestOneBit(Math.max(MAX_PROBES, capacity) - 1) << 1;
+        this.slots = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    boolean contains(long hash) {
+        hash = nonEmpty(hash);
+        int index = (int) hash & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            long slot = slots.get((index + i) & mask);
+            if (slot == hash) {
+                return true;
+            }
+            if (slot == EMPTY) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the hash could not be remembered, the set being too full
+     */
+    boolean add(long hash) {
+        hash = nonEmpty(hash);
+        int index = (int) hash & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int position = (index + i) & mask;
+            long slot = slots.get(position);
+            if (slot == hash) {
+                return true;
+            }
+            if (slot == EMPTY && (slots.compareAndSet(position, EMPTY, hash) || slots.get(position) == hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long nonEmpty(long hash) {
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,41 @@
+package org.kairosdb.plugin.influx.fieldtype;
+
+/**
+ * Type of a field value on a line, told by its first and last characters.
+ */
+public enum FieldType {
+    /**
+     * Double quoted value
+     */
+    STRING,
+    /**
+     * Digits followed by i
+     */
+    LONG,
+    /**
+     * t, T, true, True, TRUE, f, F, false, False or FALSE
+     */
+    BOOLEAN,
+    /**
+     * Anything else, which may still not parse as a double
+     */
+    DOUBLE;
+
+    /**
+     * @param from first byte of the value
+     * @param end  end of the value, exclusive, after from
+     */
+    public static FieldType of(byte[] line, int from, int end) {
+        byte first = line[from];
+        if (first == '"') {
+            return STRING;
+        }
+        if (line[end - 1] == 'i') {
+            return LONG;
+        }
+        if (first == 't' || first == 'T' || first == 'f' || first == 'F') {
+            return BOOLEAN;
+        }
+        return DOUBLE;
+    }
+}
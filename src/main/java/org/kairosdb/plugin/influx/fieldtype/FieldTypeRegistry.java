@@ -0,0 +1,128 @@
+package org.kairosdb.plugin.influx.fieldtype;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.RateLimitedLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Type of the values of each metric, established by the first value received, so that a metric doesn't end up with
+ * data points of mixed types in KairosDB: values of another type are counted as conflicts and rejected. Types are
+ * only known since KairosDB started, the ones of the data points already in the datastore aren't read.
+ * <p>
+ * The parser remembers the type of each field of the series in the {@link org.kairosdb.plugin.influx.SeriesCache},
+ * so that the values of known series are decoded straight with the decoder of their type, the registry only being
+ * looked up for new fields and values which don't decode.
+ * <p>
+ * Also decides what becomes of boolean values, which KairosDB has no data point type for.
+ */
+public class FieldTypeRegistry {
+    public static final Logger logger = LoggerFactory.getLogger(FieldTypeRegistry.class);
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+
+    public enum Booleans {
+        /**
+         * Write true as 1 and false as 0, long data points
+         */
+        LONG,
+        /**
+         * Drop the boolean values
+         */
+        DROP
+    }
+
+    private final InfluxMetrics metrics;
+    private final String separator;
+    private final int maxMetrics;
+    private final Booleans booleans;
+    private final ConcurrentHashMap<String, FieldType> types = new ConcurrentHashMap<String, FieldType>();
+
+    @Inject
+    public FieldTypeRegistry(InfluxMetrics metrics,
+                             @Named("kairosdb.influx.lineprotocol.separator") String separator,
+                             @Named("kairosdb.influx.lineprotocol.field_types.max_metrics") int maxMetrics,
+                             @Named("kairosdb.influx.lineprotocol.field_types.booleans") String booleans) {
+        this(metrics, separator, maxMetrics, Booleans.valueOf(booleans.trim().toUpperCase(Locale.ENGLISH)));
+    }
+
+    /**
+     * @param maxMetrics max number of metrics whose type is remembered, the values of the other ones not being
+     *                   checked, 0 to check none
+     */
+    public FieldTypeRegistry(InfluxMetrics metrics, String separator, int maxMetrics, Booleans booleans) {
+        if (maxMetrics < 0) {
+            throw new IllegalArgumentException("field_types.max_metrics must not be negative");
+        }
+        this.metrics = metrics;
+        this.separator = separator;
+        this.maxMetrics = maxMetrics;
+        this.booleans = booleans;
+    }
+
+    /**
+     * @return whether the types of the metrics are checked
+     */
+    public boolean isEnabled() {
+        return maxMetrics > 0;
+    }
+
+    /**
+     * @return whether boolean values are written as 0 and 1 longs rather than dropped
+     */
+    public boolean isWritingBooleans() {
+        return booleans == Booleans.LONG;
+    }
+
+    /**
+     * @return the name of the metric of a field, without ingest rules
+     */
+    public String metricName(String measurement, String field) {
+        return measurement + separator + field;
+    }
+
+    /**
+     * Establish the type of the metric if it has none yet.
+     *
+     * @return the type of the metric, which is another one than the type of the value in case of conflict, or
+     * the type of the value if the metric isn't tracked
+     */
+    public FieldType register(String metricName, FieldType type) {
+        FieldType established = types.get(metricName);
+        if (established == null) {
+            if (types.size() >= maxMetrics) {
+                return type;
+            }
+            established = types.putIfAbsent(metricName, type);
+            if (established == null) {
+                return type;
+            }
+        }
+        if (established != type) {
+            metrics.fieldTypeConflict();
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.warn("Rejecting {} value of metric {}, whose values are {}", type, metricName,
+                        established);
+            }
+        }
+        return established;
+    }
+
+    /**
+     * @return the type of the metric, or null if it has none yet
+     */
+    public FieldType getType(String metricName) {
+        return types.get(metricName);
+    }
+
+    /**
+     * @return the number of metrics whose type is known
+     */
+    public int size() {
+        return types.size();
+    }
+}
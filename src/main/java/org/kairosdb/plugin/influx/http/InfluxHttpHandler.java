@@ -0,0 +1,246 @@
+package org.kairosdb.plugin.influx.http;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.util.CharsetUtil;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.Precision;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Handles the requests of one connection. The body of a write request is consumed chunk by chunk: complete lines
+ * are ingested as soon as they are received, only the trailing partial line being kept until the next chunk.
+ * Their data points go through the batches of the writer, and the response is sent once they are written.
+ * <p>
+ * As in InfluxDB, the unit of the timestamps can be given with the precision parameter, e.g.
+ * /write?precision=s, and lines without timestamp get the time at which the request was received.
+ */
+class InfluxHttpHandler extends SimpleChannelUpstreamHandler {
+    private static final Logger logger = LoggerFactory.getLogger(InfluxHttpHandler.class);
+
+    private static final String WRITE_PATH = "/write";
+    private static final String PING_PATH = "/ping";
+    private static final String PRECISION_PARAMETER = "precision";
+    private static final byte NEW_LINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final InfluxIngester ingester;
+    private final int maxLineLength;
+    private final Precision defaultPrecision;
+    private final ChannelGroup channels;
+
+    private final ChannelBuffer pending = ChannelBuffers.dynamicBuffer(8192);
+    private boolean readingChunks;
+    private HttpRequest request;
+    private InfluxBatchWriter.SyncWriter sync;
+    private HttpResponseStatus rejection;
+    private String rejectionMessage;
+    private DatastoreException failure;
+    private int invalidLines;
+    private Precision precision;
+    private long receivedAt;
+
+    InfluxHttpHandler(InfluxIngester ingester, int maxLineLength, Precision defaultPrecision, ChannelGroup channels) {
+        this.ingester = ingester;
+        this.maxLineLength = maxLineLength;
+        this.defaultPrecision = defaultPrecision;
+        this.channels = channels;
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        channels.add(e.getChannel());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+        if (!readingChunks) {
+            request = (HttpRequest) e.getMessage();
+            startRequest();
+
+            if (HttpHeaders.is100ContinueExpected(request)) {
+                e.getChannel().write(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+            }
+
+            if (request.isChunked()) {
+                readingChunks = true;
+            } else {
+                consume(request.getContent());
+                finishRequest(e);
+            }
+        } else {
+            HttpChunk chunk = (HttpChunk) e.getMessage();
+            consume(chunk.getContent());
+            if (chunk.isLast()) {
+                readingChunks = false;
+                finishRequest(e);
+            }
+        }
+    }
+
+    private void startRequest() {
+        pending.clear();
+        rejection = null;
+        rejectionMessage = null;
+        failure = null;
+        invalidLines = 0;
+        precision = defaultPrecision;
+        receivedAt = System.currentTimeMillis();
+
+        QueryStringDecoder decoder = new QueryStringDecoder(request.getUri());
+        String path = decoder.getPath();
+        if (PING_PATH.equals(path)) {
+            return;
+        }
+        if (!WRITE_PATH.equals(path)) {
+            reject(HttpResponseStatus.NOT_FOUND, "not found: " + path);
+        } else if (!HttpMethod.POST.equals(request.getMethod())) {
+            reject(HttpResponseStatus.METHOD_NOT_ALLOWED, "method not allowed: " + request.getMethod());
+        } else {
+            List<String> precisions = decoder.getParameters().get(PRECISION_PARAMETER);
+            if (precisions != null && !precisions.isEmpty() && !precisions.get(0).isEmpty()) {
+                try {
+                    precision = Precision.fromName(precisions.get(0));
+                } catch (IllegalArgumentException e) {
+                    reject(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void reject(HttpResponseStatus status, String message) {
+        rejection = status;
+        rejectionMessage = message;
+    }
+
+    /**
+     * Ingest the complete lines of the content received so far. Once the request is rejected or the datastore
+     * failed, the remaining of the body is only drained.
+     */
+    private void consume(ChannelBuffer content) {
+        if (rejection != null || failure != null || !content.readable()) {
+            return;
+        }
+        pending.writeBytes(content);
+
+        int length;
+        while ((length = pending.bytesBefore(NEW_LINE)) >= 0) {
+            if (length > maxLineLength) {
+                rejectTooLong();
+                return;
+            }
+            ingestLine(pending.readerIndex(), length);
+            pending.skipBytes(length + 1);
+            if (failure != null) {
+                return;
+            }
+        }
+
+        if (pending.readableBytes() > maxLineLength) {
+            rejectTooLong();
+            return;
+        }
+        pending.discardReadBytes();
+    }
+
+    private void rejectTooLong() {
+        ingester.getMetrics().parseError(InfluxMetrics.ParseError.TOO_LONG);
+        reject(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, "line longer than " + maxLineLength + " bytes");
+    }
+
+    private void ingestLine(int index, int length) {
+        if (length > 0 && pending.getByte(index + length - 1) == CARRIAGE_RETURN) {
+            length--;
+        }
+        if (length == 0) {
+            return;
+        }
+        if (sync == null) {
+            sync = ingester.syncWriter();
+        }
+        try {
+            if (ingester.ingest(pending.slice(index, length), sync, precision, receivedAt) < 0) {
+                invalidLines++;
+            }
+        } catch (DatastoreException e) {
+            failure = e;
+        }
+    }
+
+    private void finishRequest(MessageEvent e) {
+        if (rejection == null && failure == null && pending.readable()) {
+            ingestLine(pending.readerIndex(), pending.readableBytes());
+        }
+        pending.clear();
+        if (sync != null) {
+            try {
+                ingester.flush(sync);
+            } catch (DatastoreException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+            sync = null;
+        }
+
+        HttpResponse response;
+        if (failure != null) {
+            logger.error("Unable to write data points", failure);
+            response = errorResponse(HttpResponseStatus.INTERNAL_SERVER_ERROR, "datastore error: " + failure.getMessage());
+        } else if (rejection != null) {
+            response = errorResponse(rejection, rejectionMessage);
+        } else if (invalidLines > 0) {
+            response = errorResponse(HttpResponseStatus.BAD_REQUEST, "partial write: " + invalidLines + " invalid line(s)");
+        } else {
+            response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NO_CONTENT);
+        }
+        writeResponse(e, response);
+    }
+
+    private static HttpResponse errorResponse(HttpResponseStatus status, String message) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json");
+        response.setContent(ChannelBuffers.copiedBuffer("{\"error\":\"" + message.replace("\"", "\\\"") + "\"}",
+                CharsetUtil.UTF_8));
+        return response;
+    }
+
+    private void writeResponse(MessageEvent e, HttpResponse response) {
+        boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        HttpHeaders.setContentLength(response, response.getContent().readableBytes());
+        ChannelFuture future = e.getChannel().write(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+        logger.warn("Closing HTTP connection from " + e.getChannel().getRemoteAddress(), e.getCause());
+        e.getChannel().close();
+    }
+}
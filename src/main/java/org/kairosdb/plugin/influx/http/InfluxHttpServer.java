@@ -0,0 +1,130 @@
+package org.kairosdb.plugin.influx.http;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.Precision;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Executors;
+
+/**
+ * InfluxDB compatible HTTP endpoint: POST /write with a (possibly gzipped) line protocol body, plus /ping.
+ * <p>
+ * Bodies are decoded as a stream of chunks and parsed line by line, so large requests are never buffered as a
+ * whole. Requests are handled on a dedicated thread pool which stops reading from the sockets when too much data
+ * is pending, and the response is only sent once the data points were handed to the datastore.
+ */
+public class InfluxHttpServer implements ChannelPipelineFactory, KairosDBService {
+    public static final Logger logger = LoggerFactory.getLogger(InfluxHttpServer.class);
+
+    private static final int MAX_INITIAL_LINE_LENGTH = 4096;
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int MAX_CHUNK_SIZE = 65536;
+    private static final long MAX_CHANNEL_MEMORY = 1024 * 1024;
+    private static final long MAX_TOTAL_MEMORY = 64 * 1024 * 1024;
+
+    private final int port;
+    private InetAddress address;
+    private final InfluxIngester ingester;
+    private final int maxLineLength;
+    private final int threads;
+    private final Precision precision;
+    private ServerBootstrap bootstrap;
+    private Channel serverChannel;
+    private ExecutionHandler executionHandler;
+    private final ChannelGroup channels = new DefaultChannelGroup("influx-http");
+
+    @Inject
+    public InfluxHttpServer(InfluxIngester ingester, @Named("kairosdb.influx.lineprotocol.http.port") int port,
+                            @Named("kairosdb.influx.lineprotocol.address") String address,
+                            @Named("kairosdb.influx.lineprotocol.max_line_length") int maxLineLength,
+                            @Named("kairosdb.influx.lineprotocol.http.threads") int threads,
+                            @Named("kairosdb.influx.lineprotocol.http.precision") String precision) {
+        this.port = port;
+        this.ingester = ingester;
+        this.maxLineLength = maxLineLength;
+        this.threads = Math.max(1, threads);
+        this.precision = Precision.fromName(precision);
+        try {
+            this.address = InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            logger.error("Unknown host name " + address + ", will bind to 0.0.0.0");
+        }
+    }
+
+    //	@Override
+    public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+
+        pipeline.addLast("decoder", new HttpRequestDecoder(MAX_INITIAL_LINE_LENGTH, MAX_HEADER_SIZE, MAX_CHUNK_SIZE));
+        pipeline.addLast("inflater", new HttpContentDecompressor());
+        pipeline.addLast("encoder", new HttpResponseEncoder());
+        pipeline.addLast("executor", executionHandler);
+        pipeline.addLast("handler", new InfluxHttpHandler(ingester, maxLineLength, precision, channels));
+
+        return pipeline;
+    }
+
+    //	@Override
+    public void start() throws KairosDBException {
+        executionHandler = new ExecutionHandler(
+                new OrderedMemoryAwareThreadPoolExecutor(threads, MAX_CHANNEL_MEMORY, MAX_TOTAL_MEMORY));
+
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        bootstrap.setPipelineFactory(this);
+        bootstrap.setOption("reuseAddress", true);
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+
+        InetSocketAddress bindAddress = new InetSocketAddress(address, port);
+        try {
+            serverChannel = bootstrap.bind(bindAddress);
+            channels.add(serverChannel);
+        } catch (ChannelException e) {
+            throw new KairosDBException("Unable to bind HTTP server to " + bindAddress, e);
+        }
+        logger.info("Influx line protocol HTTP server listening on " + bindAddress);
+    }
+
+    /**
+     * @return the address the server is bound to, e.g. to find out the port picked when configured to 0
+     */
+    InetSocketAddress getLocalAddress() {
+        return serverChannel != null ? (InetSocketAddress) serverChannel.getLocalAddress() : null;
+    }
+
+    //	@Override
+    public void stop() {
+        channels.close().awaitUninterruptibly();
+        if (bootstrap != null) {
+            bootstrap.releaseExternalResources();
+            bootstrap = null;
+        }
+        if (executionHandler != null) {
+            executionHandler.releaseExternalResources();
+            executionHandler = null;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.kairosdb.plugin.influx.importer;
+
+import com.google.common.io.CountingInputStream;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.Precision;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports line protocol files, gzipped or not, through an {@link InfluxIngester}. Files are cut into chunks ending
+ * on a newline, parsed in parallel on a fork-join pool, their data points going through the batches of the
+ * ingester's writer.
+ * <p>
+ * Plain files are read one chunk at a time, gzipped ones are inflated by the calling thread into chunks handed to
+ * the pool. Either way chunks are heap arrays, which the parser reads in place. The number of chunks in flight is bounded, so that the reading waits for the parsing, itself
+ * waiting for the writer threads.
+ */
+public class BulkImporter {
+    public static final Logger logger = LoggerFactory.getLogger(BulkImporter.class);
+
+    private static final byte NEW_LINE = '\n';
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int SCAN_BUFFER_SIZE = 4096;
+
+    private final InfluxIngester ingester;
+    private final Precision precision;
+    private final int chunkSize;
+    private final int maxChunksInFlight;
+    private final ForkJoinPool pool;
+    private final Semaphore chunksInFlight;
+    private final long defaultTimestamp = System.currentTimeMillis();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong invalidLines = new AtomicLong();
+    private final AtomicLong failedChunks = new AtomicLong();
+
+    /**
+     * @param threads   number of threads parsing the chunks
+     * @param chunkSize size in bytes of the chunks, extended to the end of their last line
+     */
+    public BulkImporter(InfluxIngester ingester, Precision precision, int threads, int chunkSize) {
+        if (threads < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("threads and chunk size must be positive");
+        }
+        this.ingester = ingester;
+        this.precision = precision;
+        this.chunkSize = chunkSize;
+        this.maxChunksInFlight = threads * 2;
+        this.pool = new ForkJoinPool(threads);
+        this.chunksInFlight = new Semaphore(maxChunksInFlight);
+    }
+
+    /**
+     * Import the file, returning once all its lines were handed to the writer.
+     */
+    public void importFile(File file) throws IOException, InterruptedException {
+        if (isGzipped(file)) {
+            importGzipped(file);
+        } else {
+            importPlain(file);
+        }
+//        Wait for the chunks of the file to be parsed
+        chunksInFlight.acquire(maxChunksInFlight);
+        chunksInFlight.release(maxChunksInFlight);
+    }
+
+    private static boolean isGzipped(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            int b1 = in.read();
+            int b2 = in.read();
+            return b1 >= 0 && b2 >= 0 && (b1 | (b2 << 8)) == GZIP_MAGIC;
+        }
+    }
+
+    private void importPlain(File file) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            while (start < size) {
+                long end = nextLineEnd(channel, Math.min(size, start + chunkSize), size);
+                int length = (int) (end - start);
+//                Read into a heap array rather than mapped, the parser reading arrays in place but copying the lines
+//                of other buffers
+                byte[] chunk = new byte[length];
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of file " + file);
+                    }
+                }
+                submit(ChannelBuffers.wrappedBuffer(chunk), length);
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * @return the position following the first newline from the given position, or the size of the file
+     */
+    private static long nextLineEnd(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == NEW_LINE) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private void importGzipped(File file) throws IOException, InterruptedException {
+        try (CountingInputStream compressed = new CountingInputStream(new FileInputStream(file));
+             InputStream in = new GZIPInputStream(compressed, 64 * 1024)) {
+            byte[] buffer = new byte[chunkSize];
+            int filled = 0;
+            long counted = 0;
+            while (true) {
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    break;
+                }
+                filled += read;
+                if (filled < buffer.length) {
+                    continue;
+                }
+
+                int lineEnd = lastLineEnd(buffer, filled);
+                if (lineEnd == 0) {
+//                    Line longer than the chunk
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                byte[] next = new byte[Math.max(chunkSize, filled - lineEnd)];
+                System.arraycopy(buffer, lineEnd, next, 0, filled - lineEnd);
+                long count = compressed.getCount();
+                submit(ChannelBuffers.wrappedBuffer(buffer, 0, lineEnd), count - counted);
+                counted = count;
+                filled -= lineEnd;
+                buffer = next;
+            }
+            if (filled > 0) {
+                submit(ChannelBuffers.wrappedBuffer(buffer, 0, filled), compressed.getCount() - counted);
+            }
+        }
+    }
+
+    private static int lastLineEnd(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == NEW_LINE) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param bytes bytes of the file the chunk stands for, counted as read once the chunk is parsed
+     */
+    private void submit(final ChannelBuffer chunk, final long bytes) throws InterruptedException {
+        chunksInFlight.acquire();
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    invalidLines.addAndGet(ingester.ingestLines(chunk, precision, defaultTimestamp));
+                } catch (Exception e) {
+                    failedChunks.incrementAndGet();
+                    logger.error("Unable to import chunk", e);
+                } finally {
+                    bytesRead.addAndGet(bytes);
+                    chunksInFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of bytes of the files parsed so far, compressed ones for gzipped files
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getInvalidLines() {
+        return invalidLines.get();
+    }
+
+    /**
+     * @return the number of chunks which could not be imported at all
+     */
+    public long getFailedChunks() {
+        return failedChunks.get();
+    }
+
+    public void close() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
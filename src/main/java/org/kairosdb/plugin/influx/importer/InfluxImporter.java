@@ -0,0 +1,180 @@
+package org.kairosdb.plugin.influx.importer;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.inject.Binding;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import org.kairosdb.core.Main;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.ParseOptions;
+import org.kairosdb.plugin.influx.Precision;
+import org.kairosdb.plugin.influx.cardinality.CardinalityGuard;
+import org.kairosdb.plugin.influx.fieldtype.FieldTypeRegistry;
+import org.kairosdb.plugin.influx.relabel.IngestRules;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line backfill of line protocol files, written straight to the datastore of a KairosDB configuration
+ * rather than replayed through the listeners:
+ * <pre>
+ * java -cp "lib/*" org.kairosdb.plugin.influx.importer.InfluxImporter -p conf/kairosdb.properties cpu.lp mem.lp.gz
+ * </pre>
+ * The separator, the ingest rules, the cardinality limits, the field types and the series cache of the plugin
+ * configuration apply, rollups don't.
+ */
+public class InfluxImporter {
+    public static final Logger logger = LoggerFactory.getLogger(InfluxImporter.class);
+
+    private static final String PROPERTY_PREFIX = "kairosdb.influx.lineprotocol.";
+
+    private static class Arguments {
+        @Parameter(names = {"-p", "--properties"}, description = "KairosDB properties file", required = true)
+        private String propertiesFile;
+
+        @Parameter(names = {"-t", "--threads"}, description = "Number of threads parsing the files")
+        private int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"-w", "--writer-threads"}, description = "Number of threads writing to the datastore")
+        private int writerThreads = 4;
+
+        @Parameter(names = {"-b", "--batch-size"}, description = "Number of data points per batch")
+        private int batchSize = 1000;
+
+        @Parameter(names = {"-c", "--chunk-size-mb"}, description = "Size of the chunks the files are cut into")
+        private int chunkSizeMb = 16;
+
+        @Parameter(names = {"--precision"}, description = "Unit of the timestamps: n/ns, u/us, ms, s, m or h")
+        private String precision = "ns";
+
+        @Parameter(names = {"-r", "--report-interval"}, description = "Seconds between progress reports")
+        private int reportIntervalSeconds = 10;
+
+        @Parameter(names = {"-h", "--help"}, help = true)
+        private boolean help;
+
+        @Parameter(description = "Files to import, gzipped or not")
+        private List<String> files = new ArrayList<String>();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Arguments arguments = new Arguments();
+        JCommander commander = new JCommander(arguments, args);
+        commander.setProgramName(InfluxImporter.class.getName());
+        if (arguments.help || arguments.files.isEmpty()) {
+            commander.usage();
+            return;
+        }
+
+        List<File> files = new ArrayList<File>();
+        long totalBytes = 0;
+        for (String name : arguments.files) {
+            File file = new File(name);
+            if (!file.isFile()) {
+                throw new IllegalArgumentException("No such file: " + name);
+            }
+            files.add(file);
+            totalBytes += file.length();
+        }
+
+        Injector injector = new Main(new File(arguments.propertiesFile)).getInjector();
+        KairosDatastore datastore = injector.getInstance(KairosDatastore.class);
+        InfluxMetrics metrics = new InfluxMetrics();
+        InfluxBatchWriter writer = new InfluxBatchWriter(datastore, arguments.batchSize, 1000, arguments.writerThreads,
+                arguments.writerThreads * 4);
+        ParseOptions options = new ParseOptions(instance(injector, IngestRules.class),
+                instance(injector, CardinalityGuard.class), instance(injector, FieldTypeRegistry.class));
+        InfluxIngester ingester = new InfluxIngester(writer, metrics, null, options, property(injector, "separator", "."),
+                Integer.parseInt(property(injector, "series_cache_size", "100000")),
+                Integer.parseInt(property(injector, "series_cache_max_key_length", "1024")));
+        BulkImporter importer = new BulkImporter(ingester, Precision.fromName(arguments.precision), arguments.threads,
+                arguments.chunkSizeMb * 1024 * 1024);
+
+        Progress progress = new Progress(importer, metrics, totalBytes);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(progress, arguments.reportIntervalSeconds, arguments.reportIntervalSeconds,
+                TimeUnit.SECONDS);
+
+        writer.start();
+        try {
+            for (File file : files) {
+                logger.info("Importing " + file);
+                importer.importFile(file);
+            }
+        } finally {
+            importer.close();
+//            Write the last batches
+            writer.stop();
+            reporter.shutdownNow();
+            progress.run();
+            datastore.close();
+        }
+        logger.info(String.format(Locale.ENGLISH, "Imported %d data points of %d lines in %ds, %d invalid lines",
+                progress.points, progress.lines, progress.elapsedSeconds(), importer.getInvalidLines()));
+        if (importer.getFailedChunks() > 0) {
+            logger.error(importer.getFailedChunks() + " chunks could not be imported");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static <T> T instance(Injector injector, Class<T> type) {
+        Binding<T> binding = injector.getExistingBinding(Key.get(type));
+        return binding != null ? binding.getProvider().get() : null;
+    }
+
+    private static String property(Injector injector, String name, String defaultValue) {
+        Binding<String> binding = injector.getExistingBinding(Key.get(String.class, Names.named(PROPERTY_PREFIX + name)));
+        return binding != null ? binding.getProvider().get() : defaultValue;
+    }
+
+    /**
+     * Logs the share of the bytes imported, and the lines and data points per second since the previous report.
+     */
+    private static class Progress implements Runnable {
+        private final BulkImporter importer;
+        private final InfluxMetrics metrics;
+        private final long totalBytes;
+        private final long start = System.nanoTime();
+        private long last = start;
+        private long lines;
+        private long points;
+
+        private Progress(BulkImporter importer, InfluxMetrics metrics, long totalBytes) {
+            this.importer = importer;
+            this.metrics = metrics;
+            this.totalBytes = totalBytes;
+        }
+
+        @Override
+        public synchronized void run() {
+            long now = System.nanoTime();
+            long newLines = metrics.resetLines();
+            long newPoints = metrics.resetPoints();
+            lines += newLines;
+            points += newPoints;
+            double seconds = Math.max(1, now - last) / 1e9;
+            last = now;
+            logger.info(String.format(Locale.ENGLISH, "%.1f%% of %d MB, %.0f lines/s, %.0f points/s, %d lines, %d points",
+                    totalBytes == 0 ? 100.0 : 100.0 * importer.getBytesRead() / totalBytes, totalBytes / (1024 * 1024),
+                    newLines / seconds, newPoints / seconds, lines, points));
+        }
+
+        private long elapsedSeconds() {
+            return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.kairosdb.plugin.influx.ratelimit;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets of one sender address, one for its lines and one for its data points, kept as the time at which
+ * each bucket is full again (GCRA), updated with compare-and-set.
+ * <p>
+ * Lines are taken before the datagram is parsed and refused when the bucket is empty. Data points are only known once
+ * parsed, so they are charged afterwards, the bucket going into debt, and the datagrams of the sender are refused
+ * until it is paid back.
+ */
+public final class Sender {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final InetAddress address;
+    private final long lineIntervalNanos;
+    private final long pointIntervalNanos;
+    private final long burstNanos;
+    private final AtomicLong linesFullAt;
+    private final AtomicLong pointsFullAt;
+    private final AtomicBoolean limited = new AtomicBoolean();
+    private volatile long lastSeen;
+
+    Sender(InetAddress address, long linesPerSecond, long pointsPerSecond, long burstNanos, long now) {
+        this.address = address;
+        this.lineIntervalNanos = interval(linesPerSecond);
+        this.pointIntervalNanos = interval(pointsPerSecond);
+        this.burstNanos = burstNanos;
+        this.linesFullAt = new AtomicLong(now);
+        this.pointsFullAt = new AtomicLong(now);
+        this.lastSeen = now;
+    }
+
+    private static long interval(long perSecond) {
+        return perSecond == 0 ? 0 : Math.max(1, NANOS_PER_SECOND / perSecond);
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    boolean isUnlimited() {
+        return lineIntervalNanos == 0 && pointIntervalNanos == 0;
+    }
+
+    long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Take the lines from the bucket, unless it hasn't enough of them or the data points are in debt. A datagram
+     * larger than the burst is taken as long as the bucket is full.
+     */
+    boolean tryAcquire(int lines, long now) {
+        lastSeen = now;
+        if (pointIntervalNanos != 0 && pointsFullAt.get() - now > burstNanos) {
+            return false;
+        }
+        if (lineIntervalNanos == 0) {
+            return true;
+        }
+        while (true) {
+            long fullAt = linesFullAt.get();
+            long next = Math.max(fullAt, now) + lines * lineIntervalNanos;
+            if (next - now > burstNanos && fullAt - now > 0) {
+                return false;
+            }
+            if (linesFullAt.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Charge the data points of lines already taken, whatever the state of the bucket.
+     */
+    public void chargePoints(int points) {
+        chargePoints(points, System.nanoTime());
+    }
+
+    void chargePoints(int points, long now) {
+        if (pointIntervalNanos == 0 || points <= 0) {
+            return;
+        }
+        long fullAt;
+        do {
+            fullAt = pointsFullAt.get();
+        } while (!pointsFullAt.compareAndSet(fullAt, Math.max(fullAt, now) + points * pointIntervalNanos));
+    }
+
+    /**
+     * @return true the first time the sender is refused since the last call to {@link #resetLimited()}
+     */
+    boolean markLimited() {
+        return !limited.get() && limited.compareAndSet(false, true);
+    }
+
+    boolean resetLimited() {
+        return limited.getAndSet(false);
+    }
+}
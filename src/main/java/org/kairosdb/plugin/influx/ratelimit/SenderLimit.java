@@ -0,0 +1,109 @@
+package org.kairosdb.plugin.influx.ratelimit;
+
+import com.google.common.net.InetAddresses;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rate limits of the senders whose address is in a CIDR block, written cidr=lines:points, e.g.
+ * 10.0.0.0/8=1000:10000, a limit of 0 meaning unlimited. A plain address stands for a single host.
+ */
+public class SenderLimit {
+    private final byte[] network;
+    private final int prefixLength;
+    private final long linesPerSecond;
+    private final long pointsPerSecond;
+
+    public SenderLimit(InetAddress network, int prefixLength, long linesPerSecond, long pointsPerSecond) {
+        this.network = network.getAddress();
+        if (prefixLength < 0 || prefixLength > this.network.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength + " for " + network.getHostAddress());
+        }
+        if (linesPerSecond < 0 || pointsPerSecond < 0) {
+            throw new IllegalArgumentException("Rate limits must not be negative");
+        }
+        this.prefixLength = prefixLength;
+        this.linesPerSecond = linesPerSecond;
+        this.pointsPerSecond = pointsPerSecond;
+    }
+
+    /**
+     * @return the limits, most specific first
+     */
+    public static List<SenderLimit> parseLimits(String limits) {
+        List<SenderLimit> parsed = new ArrayList<SenderLimit>();
+        for (String limit : limits.split(",")) {
+            limit = limit.trim();
+            if (limit.isEmpty()) {
+                continue;
+            }
+            int equal = limit.indexOf('=');
+            int colon = limit.indexOf(':', equal + 1);
+            if (equal <= 0 || colon < 0) {
+                throw new IllegalArgumentException("Rate limit must be cidr=lines:points: " + limit);
+            }
+            String cidr = limit.substring(0, equal).trim();
+            int slash = cidr.indexOf('/');
+            InetAddress network = InetAddresses.forString(slash < 0 ? cidr : cidr.substring(0, slash));
+            int prefixLength = slash < 0 ? network.getAddress().length * 8 : Integer.parseInt(cidr.substring(slash + 1).trim());
+            parsed.add(new SenderLimit(network, prefixLength,
+                    Long.parseLong(limit.substring(equal + 1, colon).trim()),
+                    Long.parseLong(limit.substring(colon + 1).trim())));
+        }
+        Collections.sort(parsed, new Comparator<SenderLimit>() {
+            @Override
+            public int compare(SenderLimit a, SenderLimit b) {
+                return b.prefixLength - a.prefixLength;
+            }
+        });
+        return parsed;
+    }
+
+    public boolean matches(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length != network.length) {
+            return false;
+        }
+        int i = 0;
+        for (; i < prefixLength / 8; i++) {
+            if (bytes[i] != network[i]) {
+                return false;
+            }
+        }
+        int remainingBits = prefixLength % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+        int mask = 0xff << (8 - remainingBits);
+        return ((bytes[i] ^ network[i]) & mask) == 0;
+    }
+
+    /**
+     * @return the max number of lines per second, 0 if unlimited
+     */
+    public long getLinesPerSecond() {
+        return linesPerSecond;
+    }
+
+    /**
+     * @return the max number of data points per second, 0 if unlimited
+     */
+    public long getPointsPerSecond() {
+        return pointsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return InetAddress.getByAddress(network).getHostAddress() + "/" + prefixLength + "=" + linesPerSecond + ":"
+                    + pointsPerSecond;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
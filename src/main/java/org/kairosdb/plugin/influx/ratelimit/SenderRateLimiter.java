@@ -0,0 +1,269 @@
+package org.kairosdb.plugin.influx.ratelimit;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.RateLimitedLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per sender address rate limits of the UDP datagrams, in lines and in data points per second, checked before the
+ * datagrams are parsed so that a single host flooding the socket can't starve the others. The limits are global,
+ * or those of the most specific {@link SenderLimit} matching the address.
+ * <p>
+ * Senders are kept in a fixed size table of stripes of 8 slots, the stripe being picked by the hash of the address,
+ * read and updated with compare-and-set only. Senders idle for longer than the idle time are evicted periodically,
+ * or when a new sender needs their slot. When a stripe is full of active senders, the new ones share one bucket per
+ * stripe and limit instead of getting a fresh one each, so that a host cycling through addresses can't get a new
+ * burst with each of them.
+ */
+public class SenderRateLimiter implements KairosDBService {
+    public static final Logger logger = LoggerFactory.getLogger(SenderRateLimiter.class);
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+    private static final RateLimitedLogger overflowLogger = new RateLimitedLogger(logger);
+
+    private static final int STRIPE_SIZE = 8;
+
+    private final InfluxMetrics metrics;
+    private final long linesPerSecond;
+    private final long pointsPerSecond;
+    private final List<SenderLimit> limits;
+    private final long burstNanos;
+    private final long idleMs;
+    private final long idleNanos;
+    private final AtomicReferenceArray<Sender> senders;
+    private final AtomicReferenceArray<Sender> overflow;
+    private final int stripeMask;
+
+    private ScheduledExecutorService evicter;
+
+    @Inject
+    public SenderRateLimiter(InfluxMetrics metrics,
+                             @Named("kairosdb.influx.lineprotocol.rate_limit.lines_per_second") long linesPerSecond,
+                             @Named("kairosdb.influx.lineprotocol.rate_limit.points_per_second") long pointsPerSecond,
+                             @Named("kairosdb.influx.lineprotocol.rate_limit.cidr") String limits,
+                             @Named("kairosdb.influx.lineprotocol.rate_limit.burst_ms") long burstMs,
+                             @Named("kairosdb.influx.lineprotocol.rate_limit.max_senders") int maxSenders,
+                             @Named("kairosdb.influx.lineprotocol.rate_limit.idle_ms") long idleMs) {
+        this(metrics, linesPerSecond, pointsPerSecond, SenderLimit.parseLimits(limits), burstMs, maxSenders, idleMs);
+    }
+
+    /**
+     * @param linesPerSecond  max number of lines per second of each sender, 0 if unlimited
+     * @param pointsPerSecond max number of data points per second of each sender, 0 if unlimited
+     * @param limits          limits of the senders of some CIDR blocks, most specific first
+     * @param burstMs         time during which a sender may send at its rate after having been quiet
+     */
+    public SenderRateLimiter(InfluxMetrics metrics, long linesPerSecond, long pointsPerSecond, List<SenderLimit> limits,
+                             long burstMs, int maxSenders, long idleMs) {
+        if (linesPerSecond < 0 || pointsPerSecond < 0) {
+            throw new IllegalArgumentException("rate_limit.lines_per_second and rate_limit.points_per_second must not be negative");
+        }
+        if (burstMs < 1 || maxSenders < 1 || idleMs < 1) {
+            throw new IllegalArgumentException("rate_limit.burst_ms, rate_limit.max_senders and rate_limit.idle_ms must be positive");
+        }
+        this.metrics = metrics;
+        this.linesPerSecond = linesPerSecond;
+        this.pointsPerSecond = pointsPerSecond;
+        this.limits = limits;
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(burstMs);
+        this.idleMs = idleMs;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+
+        boolean enabled = linesPerSecond > 0 || pointsPerSecond > 0 || !limits.isEmpty();
+        int capacity = Integer.highestOneBit(Math.max(STRIPE_SIZE, maxSenders) - 1) << 1;
+        this.senders = new AtomicReferenceArray<Sender>(enabled ? capacity : 0);
+        this.stripeMask = capacity / STRIPE_SIZE - 1;
+        this.overflow = new AtomicReferenceArray<Sender>(enabled ? (stripeMask + 1) * (limits.size() + 1) : 0);
+    }
+
+    public boolean isEnabled() {
+        return senders.length() > 0;
+    }
+
+    /**
+     * Take the lines of a datagram from the bucket of its sender.
+     *
+     * @return the sender, to be charged with the data points of the lines once parsed, or null if the datagram must
+     * be dropped
+     */
+    public Sender acquire(InetAddress address, int lines) {
+        return acquire(address, lines, System.nanoTime());
+    }
+
+    Sender acquire(InetAddress address, int lines, long now) {
+        Sender sender = sender(address, now);
+        if (sender.tryAcquire(lines, now)) {
+            return sender;
+        }
+        metrics.linesRateLimited(lines);
+        if (sender.markLimited() && rateLimitedLogger.isEnabled()) {
+            rateLimitedLogger.warn("Sender {} is over its rate limit, dropping its datagrams", address.getHostAddress());
+        }
+        return null;
+    }
+
+    private Sender sender(InetAddress address, long now) {
+        int h = address.hashCode() * 0x9E3779B9;
+        int stripe = (h ^ (h >>> 16)) & stripeMask;
+        int base = stripe * STRIPE_SIZE;
+        int free = -1;
+        int victim = -1;
+        Sender oldest = null;
+        for (int i = base; i < base + STRIPE_SIZE; i++) {
+            Sender sender = senders.get(i);
+            if (sender == null) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (sender.getAddress().equals(address)) {
+                return sender;
+            } else if (oldest == null || sender.getLastSeen() - oldest.getLastSeen() < 0) {
+                oldest = sender;
+                victim = i;
+            }
+        }
+
+        int limit = limitIndex(address);
+//        Stripe full of active senders, nothing to allocate
+        if (free < 0 && now - oldest.getLastSeen() <= idleNanos) {
+            return sharedSender(address, stripe, limit, now);
+        }
+        Sender created = newSender(address, limit, now);
+        int slot = free >= 0 ? free : victim;
+        if (senders.compareAndSet(slot, free >= 0 ? null : oldest, created)) {
+            return created;
+        }
+//        Lost the race for the slot, possibly to another datagram of the same sender
+        Sender winner = senders.get(slot);
+        if (winner != null && winner.getAddress().equals(address)) {
+            return winner;
+        }
+        return sharedSender(address, stripe, limit, now);
+    }
+
+    /**
+     * @return the bucket shared by the senders of the stripe and limit which didn't get a slot of their own, rather
+     * than a full one each
+     */
+    private Sender sharedSender(InetAddress address, int stripe, int limit, long now) {
+        if (overflowLogger.isEnabled()) {
+            overflowLogger.warn("Tracking too many senders, {} shares its rate limit with other senders",
+                    address.getHostAddress());
+        }
+        int slot = stripe * (limits.size() + 1) + limit;
+        Sender shared = overflow.get(slot);
+        if (shared == null) {
+            Sender created = newSender(address, limit, now);
+            shared = overflow.compareAndSet(slot, null, created) ? created : overflow.get(slot);
+        }
+        return shared;
+    }
+
+    /**
+     * @return index of the most specific limit matching the address, or the number of limits for the global one
+     */
+    private int limitIndex(InetAddress address) {
+        for (int i = 0; i < limits.size(); i++) {
+            if (limits.get(i).matches(address)) {
+                return i;
+            }
+        }
+        return limits.size();
+    }
+
+    private Sender newSender(InetAddress address, int limit, long now) {
+        if (limit < limits.size()) {
+            SenderLimit senderLimit = limits.get(limit);
+            return new Sender(address, senderLimit.getLinesPerSecond(), senderLimit.getPointsPerSecond(), burstNanos,
+                    now);
+        }
+        return new Sender(address, linesPerSecond, pointsPerSecond, burstNanos, now);
+    }
+
+    /**
+     * Remove the senders not seen for longer than the idle time.
+     */
+    void evictIdle(long now) {
+        for (int i = 0; i < senders.length(); i++) {
+            Sender sender = senders.get(i);
+            if (sender != null && now - sender.getLastSeen() > idleNanos) {
+                senders.compareAndSet(i, sender, null);
+            }
+        }
+    }
+
+    /**
+     * @return the number of senders being tracked
+     */
+    public int getSenderCount() {
+        int count = 0;
+        for (int i = 0; i < senders.length(); i++) {
+            if (senders.get(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of senders which had datagrams dropped since the previous call
+     */
+    public int resetLimitedSenders() {
+        int count = 0;
+        for (int i = 0; i < senders.length(); i++) {
+            Sender sender = senders.get(i);
+            if (sender != null && sender.resetLimited()) {
+                count++;
+            }
+        }
+        for (int i = 0; i < overflow.length(); i++) {
+            Sender sender = overflow.get(i);
+            if (sender != null && sender.resetLimited()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void start() throws KairosDBException {
+        if (!isEnabled()) {
+            return;
+        }
+        logger.info("Rate limiting senders to " + linesPerSecond + " lines/s and " + pointsPerSecond
+                + " points/s (0 for unlimited), CIDR limits " + limits);
+        evicter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "influx-rate-limit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evicter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle(System.nanoTime());
+            }
+        }, idleMs, idleMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (evicter != null) {
+            evicter.shutdownNow();
+        }
+    }
+}
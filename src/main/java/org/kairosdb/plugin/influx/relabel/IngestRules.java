@@ -0,0 +1,164 @@
+package org.kairosdb.plugin.influx.relabel;
+
+import com.google.common.base.Charsets;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filter and relabel rules applied while lines are parsed, compiled once: measurements and metric names are
+ * matched with {@link PrefixTrie}s, tag keys with a set and a map. One rule per line, or separated by semicolons:
+ * <pre>
+ * drop measurement docker_container_*
+ * drop field cpu.usage_guest*
+ * drop tag host_ip
+ * rename tag hostname host
+ * rename metric diskio.* disk.io.*
+ * </pre>
+ * Measurements and metric names (measurement + separator + field) are either exact or prefixes ending with *.
+ * Fields are dropped based on their original metric name, which is renamed afterwards. Tag rules apply to all
+ * the measurements.
+ */
+public class IngestRules {
+    public static final Logger logger = LoggerFactory.getLogger(IngestRules.class);
+
+    private final String separator;
+    private final PrefixTrie<Boolean> droppedMeasurements = new PrefixTrie<Boolean>();
+    private final PrefixTrie<Boolean> droppedFields = new PrefixTrie<Boolean>();
+    private final PrefixTrie<Rename> renamedMetrics = new PrefixTrie<Rename>();
+    private final Set<String> droppedTags = new HashSet<String>();
+    private final Map<String, String> renamedTags = new HashMap<String, String>();
+    private int count;
+
+    /**
+     * @param rules     rules separated by semicolons
+     * @param rulesFile file of rules, one per line, # starting a comment, or empty
+     */
+    @Inject
+    public IngestRules(@Named("kairosdb.influx.lineprotocol.separator") String separator,
+                       @Named("kairosdb.influx.lineprotocol.rules") String rules,
+                       @Named("kairosdb.influx.lineprotocol.rules_file") String rulesFile) {
+        this(separator, lines(rules, rulesFile));
+    }
+
+    public IngestRules(String separator, List<String> rules) {
+        this.separator = separator;
+        for (String rule : rules) {
+            int comment = rule.indexOf('#');
+            if (comment >= 0) {
+                rule = rule.substring(0, comment);
+            }
+            rule = rule.trim();
+            if (!rule.isEmpty()) {
+                add(rule);
+            }
+        }
+        if (count > 0) {
+            logger.info("Loaded " + count + " ingest rule(s)");
+        }
+    }
+
+    private static List<String> lines(String rules, String rulesFile) {
+        List<String> lines = new ArrayList<String>(Arrays.asList(rules.split(";")));
+        if (!rulesFile.trim().isEmpty()) {
+            try {
+                lines.addAll(Files.readAllLines(Paths.get(rulesFile.trim()), Charsets.UTF_8));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to read rules file " + rulesFile, e);
+            }
+        }
+        return lines;
+    }
+
+    private void add(String rule) {
+        String[] words = rule.split("\\s+");
+        String action = words[0] + " " + (words.length > 1 ? words[1] : "");
+        if (action.equals("drop measurement") && words.length == 3) {
+            put(droppedMeasurements, words[2], Boolean.TRUE);
+        } else if (action.equals("drop field") && words.length == 3) {
+            put(droppedFields, words[2], Boolean.TRUE);
+        } else if (action.equals("drop tag") && words.length == 3) {
+            droppedTags.add(words[2]);
+        } else if (action.equals("rename tag") && words.length == 4) {
+            renamedTags.put(words[2], words[3]);
+        } else if (action.equals("rename metric") && words.length == 4) {
+            boolean prefix = words[2].endsWith("*");
+            if (prefix != words[3].endsWith("*")) {
+                throw new IllegalArgumentException("Either both or none of the names of a rename must end with *: " + rule);
+            }
+            put(renamedMetrics, words[2], new Rename(prefixLength(words[2]), prefix ? words[3].substring(0, words[3].length() - 1) : words[3]));
+        } else {
+            throw new IllegalArgumentException("Invalid ingest rule: " + rule);
+        }
+        count++;
+    }
+
+    private static <V> void put(PrefixTrie<V> trie, String pattern, V value) {
+        boolean prefix = pattern.endsWith("*");
+        String key = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+        if (key.indexOf('*') >= 0) {
+            throw new IllegalArgumentException("Only a trailing * is supported: " + pattern);
+        }
+        trie.put(key, prefix, value);
+    }
+
+    private static int prefixLength(String pattern) {
+        return pattern.endsWith("*") ? pattern.length() - 1 : pattern.length();
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public boolean dropsMeasurement(String measurement) {
+        return !droppedMeasurements.isEmpty() && droppedMeasurements.get(measurement) != null;
+    }
+
+    /**
+     * @return the key the tag must be written with, or null if the tag is dropped
+     */
+    public String tagKey(String key) {
+        if (droppedTags.contains(key)) {
+            return null;
+        }
+        String renamed = renamedTags.get(key);
+        return renamed != null ? renamed : key;
+    }
+
+    /**
+     * @return the name of the metric of the field, or null if the field is dropped
+     */
+    public String metricName(String measurement, String field) {
+        String metricName = measurement + separator + field;
+        if (!droppedFields.isEmpty() && droppedFields.get(metricName) != null) {
+            return null;
+        }
+        if (renamedMetrics.isEmpty()) {
+            return metricName;
+        }
+        Rename rename = renamedMetrics.get(metricName);
+        return rename != null ? rename.to + metricName.substring(rename.fromLength) : metricName;
+    }
+
+    private static final class Rename {
+        private final int fromLength;
+        private final String to;
+
+        private Rename(int fromLength, String to) {
+            this.fromLength = fromLength;
+            this.to = to;
+        }
+    }
+}
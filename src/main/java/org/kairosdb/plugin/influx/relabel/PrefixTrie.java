@@ -0,0 +1,87 @@
+package org.kairosdb.plugin.influx.relabel;
+
+import java.util.Arrays;
+
+/**
+ * Names, either exact or prefixes, mapped to a value and matched by walking the characters of a name once,
+ * whatever the number of entries. An exact entry wins over a prefix one, a longer prefix over a shorter one.
+ * Built once, then read concurrently.
+ */
+final class PrefixTrie<V> {
+
+    private final Node<V> root = new Node<V>();
+    private boolean empty = true;
+
+    /**
+     * @param prefix whether the entry matches the names starting with the key, rather than the key only
+     */
+    void put(String key, boolean prefix, V value) {
+        Node<V> node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.child(key.charAt(i), true);
+        }
+        if (prefix) {
+            node.prefixValue = value;
+        } else {
+            node.exactValue = value;
+        }
+        empty = false;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return the value of the best entry matching the name, or null if none does
+     */
+    V get(String name) {
+        Node<V> node = root;
+        V match = node.prefixValue;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.child(name.charAt(i), false);
+            if (node == null) {
+                return match;
+            }
+            if (node.prefixValue != null) {
+                match = node.prefixValue;
+            }
+        }
+        return node.exactValue != null ? node.exactValue : match;
+    }
+
+    private static final class Node<V> {
+//        Sorted characters and their child nodes
+        private char[] chars = new char[0];
+        private Node<V>[] children = newArray(0);
+        private V exactValue;
+        private V prefixValue;
+
+        private Node<V> child(char c, boolean create) {
+            int index = Arrays.binarySearch(chars, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            if (!create) {
+                return null;
+            }
+            index = -index - 1;
+            char[] newChars = new char[chars.length + 1];
+            Node<V>[] newChildren = newArray(chars.length + 1);
+            System.arraycopy(chars, 0, newChars, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChars[index] = c;
+            newChildren[index] = new Node<V>();
+            System.arraycopy(chars, index, newChars, index + 1, chars.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, chars.length - index);
+            chars = newChars;
+            children = newChildren;
+            return children[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(int length) {
+            return new Node[length];
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.kairosdb.plugin.influx.rollup;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Metrics whose name matches a glob pattern (* standing for any sequence of characters) and the window they are
+ * rolled up into, written as pattern=window[:aggregate|aggregate...], e.g. cpu.*=10s or mem.used=1m:max|last.
+ */
+public final class RollupRule {
+
+    public enum Aggregate {
+        MIN, MAX, SUM, COUNT, LAST;
+
+        public String getName() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final String pattern;
+    private final Pattern regex;
+    private final long windowMs;
+    private final Set<Aggregate> aggregates;
+
+    public RollupRule(String pattern, long windowMs, Set<Aggregate> aggregates) {
+        if (windowMs < 1) {
+            throw new IllegalArgumentException("Rollup window must be positive: " + pattern);
+        }
+        if (aggregates.isEmpty()) {
+            throw new IllegalArgumentException("Rollup rule without aggregate: " + pattern);
+        }
+        this.pattern = pattern;
+        this.regex = globToRegex(pattern);
+        this.windowMs = windowMs;
+        this.aggregates = EnumSet.copyOf(aggregates);
+    }
+
+    public boolean matches(String metricName) {
+        return regex.matcher(metricName).matches();
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public Set<Aggregate> getAggregates() {
+        return aggregates;
+    }
+
+    @Override
+    public String toString() {
+        return pattern + "=" + windowMs + "ms:" + aggregates;
+    }
+
+    /**
+     * Parse comma separated rules.
+     *
+     * @param defaultAggregates aggregates of the rules not listing theirs
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    public static List<RollupRule> parseRules(String rules, Set<Aggregate> defaultAggregates) {
+        List<RollupRule> parsed = new ArrayList<RollupRule>();
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            int equal = rule.lastIndexOf('=');
+            if (equal <= 0) {
+                throw new IllegalArgumentException("Rollup rule must be pattern=window[:aggregates]: " + rule);
+            }
+            String pattern = rule.substring(0, equal).trim();
+            String window = rule.substring(equal + 1).trim();
+            Set<Aggregate> aggregates = defaultAggregates;
+            int colon = window.indexOf(':');
+            if (colon >= 0) {
+                aggregates = parseAggregates(window.substring(colon + 1), "\\|");
+                window = window.substring(0, colon).trim();
+            }
+            parsed.add(new RollupRule(pattern, parseDuration(window), aggregates));
+        }
+        return parsed;
+    }
+
+    public static Set<Aggregate> parseAggregates(String aggregates, String separatorRegex) {
+        Set<Aggregate> parsed = EnumSet.noneOf(Aggregate.class);
+        for (String aggregate : aggregates.split(separatorRegex)) {
+            aggregate = aggregate.trim();
+            if (!aggregate.isEmpty()) {
+                parsed.add(Aggregate.valueOf(aggregate.toUpperCase(Locale.ENGLISH)));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @param duration number followed by ms, s, m or h
+     */
+    static long parseDuration(String duration) {
+        int unitStart = 0;
+        while (unitStart < duration.length() && Character.isDigit(duration.charAt(unitStart))) {
+            unitStart++;
+        }
+        if (unitStart == 0) {
+            throw new IllegalArgumentException("Invalid duration: " + duration);
+        }
+        long value = Long.parseLong(duration.substring(0, unitStart));
+        String unit = duration.substring(unitStart).trim();
+        if (unit.equals("ms")) {
+            return value;
+        } else if (unit.equals("s")) {
+            return value * 1000;
+        } else if (unit.equals("m")) {
+            return value * 60 * 1000;
+        } else if (unit.equals("h")) {
+            return value * 60 * 60 * 1000;
+        }
+        throw new IllegalArgumentException("Invalid duration unit, expected ms, s, m or h: " + duration);
+    }
+
+    private static Pattern globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+        while ((star = glob.indexOf('*', start)) >= 0) {
+            if (star > start) {
+                regex.append(Pattern.quote(glob.substring(start, star)));
+            }
+            regex.append(".*");
+            start = star + 1;
+        }
+        if (start < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
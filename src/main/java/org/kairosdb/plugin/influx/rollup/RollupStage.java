@@ -0,0 +1,391 @@
+package org.kairosdb.plugin.influx.rollup;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.RateLimitedLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-aggregates the data points of the metrics matching a {@link RollupRule} into fixed windows, which are written
+ * as metric + separator + aggregate (e.g. cpu.usage_idle.max) at the start of the window instead of the raw points.
+ * <p>
+ * Windows are closed by event time: a window is written once the series received a point past the end of the
+ * window and its grace period, so that producers lagging behind, or catching up, don't get their windows closed
+ * under them. Windows of a series which stopped receiving points for a window and its grace period are written as
+ * well. Each series keeps at most two open windows: a point newer than both closes the oldest one early. A point
+ * older than both, or older than a window already written, is counted as late and written raw rather than lost.
+ * Points of series beyond the max number of series, as well as string values, are written raw too.
+ */
+public class RollupStage implements KairosDBService {
+    public static final Logger logger = LoggerFactory.getLogger(RollupStage.class);
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+
+    private static final int STRIPES = 64;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final int MAX_CACHED_RULES = 100000;
+    private static final RollupRule NO_RULE = new RollupRule("", 1, Collections.singleton(RollupRule.Aggregate.COUNT));
+
+    private final InfluxBatchWriter writer;
+    private final InfluxMetrics metrics;
+    private final String separator;
+    private final List<RollupRule> rules;
+    private final long graceMs;
+    private final ConcurrentHashMap<String, RollupRule> rulesByMetric = new ConcurrentHashMap<String, RollupRule>();
+
+    private final RollupWindows windows;
+    private final Series[] series;
+    private final Map<SeriesKey, Integer>[] stripes;
+    private volatile long clock = System.currentTimeMillis();
+
+    private ScheduledExecutorService flusher;
+
+    @Inject
+    public RollupStage(InfluxBatchWriter writer, InfluxMetrics metrics,
+                       @Named("kairosdb.influx.lineprotocol.separator") String separator,
+                       @Named("kairosdb.influx.lineprotocol.rollup.rules") String rules,
+                       @Named("kairosdb.influx.lineprotocol.rollup.aggregates") String aggregates,
+                       @Named("kairosdb.influx.lineprotocol.rollup.grace_ms") long graceMs,
+                       @Named("kairosdb.influx.lineprotocol.rollup.max_series") int maxSeries) {
+        this(writer, metrics, separator,
+                RollupRule.parseRules(rules, RollupRule.parseAggregates(aggregates, ",")), graceMs, maxSeries);
+    }
+
+    @SuppressWarnings("unchecked")
+    public RollupStage(InfluxBatchWriter writer, InfluxMetrics metrics, String separator, List<RollupRule> rules,
+                       long graceMs, int maxSeries) {
+        if (graceMs < 0) {
+            throw new IllegalArgumentException("rollup.grace_ms must not be negative");
+        }
+        this.writer = writer;
+        this.metrics = metrics;
+        this.separator = separator;
+        this.rules = rules;
+        this.graceMs = graceMs;
+//        Don't reserve the off-heap memory if rollups are disabled
+        this.windows = rules.isEmpty() ? null : new RollupWindows(maxSeries);
+        this.series = new Series[rules.isEmpty() ? 0 : maxSeries];
+        this.stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new HashMap<SeriesKey, Integer>();
+        }
+    }
+
+    public boolean isEnabled() {
+        return windows != null;
+    }
+
+    /**
+     * Add the value to its window if the metric is rolled up.
+     *
+     * @return true if the value was added to its window, false if it must be written raw, e.g. because it is late
+     */
+    public boolean add(String metricName, ImmutableSortedMap<String, String> tags, long timestamp, long value) {
+        return add(metricName, tags, timestamp, false, value, 0);
+    }
+
+    /**
+     * @see #add(String, ImmutableSortedMap, long, long)
+     */
+    public boolean add(String metricName, ImmutableSortedMap<String, String> tags, long timestamp, double value) {
+        return add(metricName, tags, timestamp, true, 0, value);
+    }
+
+    private boolean add(String metricName, ImmutableSortedMap<String, String> tags, long timestamp,
+                        boolean isDouble, long longValue, double doubleValue) {
+        if (windows == null) {
+            return false;
+        }
+        RollupRule rule = ruleFor(metricName);
+        if (rule == null) {
+            return false;
+        }
+        long windowMs = rule.getWindowMs();
+        long start = Math.floorDiv(timestamp, windowMs) * windowMs;
+
+        SeriesKey key = new SeriesKey(metricName, tags);
+        Map<SeriesKey, Integer> stripe = stripes[key.hash & (STRIPES - 1)];
+        synchronized (stripe) {
+            Integer slot = stripe.get(key);
+            if (slot == null) {
+                int allocated;
+                synchronized (windows) {
+                    allocated = windows.allocate(clock);
+                }
+                if (allocated < 0) {
+                    metrics.rollupOverflow();
+                    return false;
+                }
+                slot = allocated;
+                series[allocated] = new Series(key, rule);
+                stripe.put(key, slot);
+            }
+
+            int window = windowFor(slot, start);
+            if (window < 0) {
+                metrics.rollupLatePoint();
+                return false;
+            }
+            windows.watermark(slot, timestamp);
+            windows.lastSeen(slot, clock);
+            if (isDouble) {
+                windows.add(slot, window, start, timestamp, doubleValue);
+            } else {
+                windows.add(slot, window, start, timestamp, longValue);
+            }
+        }
+        metrics.rollupPoint();
+        return true;
+    }
+
+    /**
+     * @return the window the point belongs to, opening one if needed, or -1 if the point is late
+     */
+    private int windowFor(int slot, long start) {
+        if (start < windows.flushedUntil(slot)) {
+            return -1;
+        }
+        int free = -1;
+        int oldest = -1;
+        for (int window = 0; window < RollupWindows.WINDOWS; window++) {
+            if (!windows.isOpen(slot, window)) {
+                free = window;
+            } else if (windows.start(slot, window) == start) {
+                return window;
+            } else if (oldest < 0 || windows.start(slot, window) < windows.start(slot, oldest)) {
+                oldest = window;
+            }
+        }
+        if (free >= 0) {
+            return free;
+        }
+        if (start < windows.start(slot, oldest)) {
+            return -1;
+        }
+//        Newer than both windows, the oldest one can't wait for its grace period
+        emit(slot, oldest);
+        return oldest;
+    }
+
+    private RollupRule ruleFor(String metricName) {
+        RollupRule rule = rulesByMetric.get(metricName);
+        if (rule == null) {
+            rule = NO_RULE;
+            for (RollupRule candidate : rules) {
+                if (candidate.matches(metricName)) {
+                    rule = candidate;
+                    break;
+                }
+            }
+            if (rulesByMetric.size() < MAX_CACHED_RULES) {
+                rulesByMetric.put(metricName, rule);
+            }
+        }
+        return rule == NO_RULE ? null : rule;
+    }
+
+    /**
+     * Write the windows whose grace period elapsed in event time, or whose series was idle, and free the series idle
+     * for a while.
+     *
+     * @param now  current time, only used to find the idle series
+     * @param all  write all the open windows
+     */
+    public void flush(long now, boolean all) {
+        if (windows == null) {
+            return;
+        }
+        clock = now;
+        for (Map<SeriesKey, Integer> stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Integer> slots = stripe.values().iterator();
+                while (slots.hasNext()) {
+                    int slot = slots.next();
+                    long windowMs = series[slot].rule.getWindowMs();
+                    long idleMs = now - windows.lastSeen(slot);
+                    if (emitExpired(slot, windowMs, all || idleMs >= windowMs + graceMs)) {
+                        continue;
+                    }
+                    if (idleMs > 3 * windowMs + graceMs) {
+                        slots.remove();
+                        series[slot] = null;
+                        synchronized (windows) {
+                            windows.free(slot);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the windows of the slot ending, with the grace period, before its newest point, oldest first.
+     *
+     * @return whether a window is still open
+     */
+    private boolean emitExpired(int slot, long windowMs, boolean all) {
+        long watermark = windows.watermark(slot);
+        boolean open = false;
+        int first = 0;
+        if (windows.isOpen(slot, 0) && windows.isOpen(slot, 1) && windows.start(slot, 1) < windows.start(slot, 0)) {
+            first = 1;
+        }
+        for (int i = 0; i < RollupWindows.WINDOWS; i++) {
+            int window = (first + i) % RollupWindows.WINDOWS;
+            if (!windows.isOpen(slot, window)) {
+                continue;
+            }
+            if (all || windows.start(slot, window) + windowMs + graceMs <= watermark) {
+                emit(slot, window);
+            } else {
+                open = true;
+            }
+        }
+        return open;
+    }
+
+    private void emit(int slot, int window) {
+        Series s = series[slot];
+        long start = windows.start(slot, window);
+        boolean isDouble = windows.isDouble(slot, window);
+        for (RollupRule.Aggregate aggregate : s.rule.getAggregates()) {
+            DataPoint dataPoint;
+            if (aggregate == RollupRule.Aggregate.COUNT) {
+                dataPoint = new LongDataPoint(start, windows.count(slot, window));
+            } else if (isDouble) {
+                dataPoint = new DoubleDataPoint(start, windows.doubleValue(slot, window, aggregate));
+            } else {
+                dataPoint = new LongDataPoint(start, windows.longValue(slot, window, aggregate));
+            }
+            try {
+                writer.write(s.metricNames[aggregate.ordinal()], s.key.tags, dataPoint);
+            } catch (DatastoreException e) {
+                metrics.writeError();
+                if (rateLimitedLogger.isEnabled()) {
+                    rateLimitedLogger.error("Unable to write rollup of metric {}", s.key.metricName, e);
+                }
+            }
+        }
+        windows.close(slot, window);
+        windows.flushedUntil(slot, start + s.rule.getWindowMs());
+    }
+
+    /**
+     * @return the number of series being rolled up
+     */
+    public int getSeriesCount() {
+        if (windows == null) {
+            return 0;
+        }
+        synchronized (windows) {
+            return windows.size();
+        }
+    }
+
+    @Override
+    public void start() throws KairosDBException {
+        if (windows == null) {
+            return;
+        }
+        logger.info("Rolling up metrics " + rules + " with a grace period of " + graceMs + "ms");
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "influx-rollup");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush(System.currentTimeMillis(), false);
+                } catch (Exception e) {
+                    logger.error("Unable to flush rollups", e);
+                }
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+//        Write what was gathered so far rather than losing it
+        flush(System.currentTimeMillis(), true);
+    }
+
+    private static final class SeriesKey {
+        private final String metricName;
+        private final ImmutableSortedMap<String, String> tags;
+        private final int hash;
+
+        private SeriesKey(String metricName, ImmutableSortedMap<String, String> tags) {
+            this.metricName = metricName;
+            this.tags = tags;
+            int h = 31 * metricName.hashCode() + tags.hashCode();
+            this.hash = h ^ (h >>> 16);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return hash == other.hash && metricName.equals(other.metricName) && tags.equals(other.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * On-heap part of a rolled up series, its windows being in {@link RollupWindows}.
+     */
+    private final class Series {
+        private final SeriesKey key;
+        private final RollupRule rule;
+        private final String[] metricNames = new String[RollupRule.Aggregate.values().length];
+
+        private Series(SeriesKey key, RollupRule rule) {
+            this.key = key;
+            this.rule = rule;
+            for (RollupRule.Aggregate aggregate : rule.getAggregates()) {
+                metricNames[aggregate.ordinal()] = key.metricName + separator + aggregate.getName();
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.kairosdb.plugin.influx.rollup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size table of rollup windows kept in a direct buffer, outside of the Java heap, so that a large number of
+ * series doesn't weigh on the garbage collector. Each slot holds one series: a small header and two windows, the
+ * current one and the previous one still accepting late points during the grace period.
+ * <p>
+ * Values of windows fed with integers only are kept as longs, as doubles otherwise. Not thread safe, callers
+ * synchronize on their own.
+ */
+final class RollupWindows {
+
+    //    Slot header: end of the last window written, last time a point was received, and newest timestamp received
+    private static final int FLUSHED_UNTIL = 0;
+    private static final int LAST_SEEN = 8;
+    private static final int WATERMARK = 16;
+    private static final int HEADER_BYTES = 24;
+
+    //    Window fields
+    private static final int START = 0;
+    private static final int COUNT = 8;
+    private static final int SUM = 16;
+    private static final int MIN = 24;
+    private static final int MAX = 32;
+    private static final int LAST = 40;
+    private static final int LAST_TIMESTAMP = 48;
+    private static final int DOUBLE = 56;
+    private static final int WINDOW_BYTES = 64;
+
+    static final int WINDOWS = 2;
+    static final int SLOT_BYTES = HEADER_BYTES + WINDOWS * WINDOW_BYTES;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int[] freeSlots;
+    private int freeCount;
+
+    RollupWindows(int capacity) {
+        if (capacity < 1 || (long) capacity * SLOT_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Number of rollup series must be between 1 and "
+                    + Integer.MAX_VALUE / SLOT_BYTES + ": " + capacity);
+        }
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        this.freeCount = capacity;
+    }
+
+    /**
+     * @return a cleared slot, or -1 if the table is full
+     */
+    int allocate(long now) {
+        if (freeCount == 0) {
+            return -1;
+        }
+        int slot = freeSlots[--freeCount];
+        int base = slot * SLOT_BYTES;
+        buffer.putLong(base + FLUSHED_UNTIL, Long.MIN_VALUE);
+        buffer.putLong(base + LAST_SEEN, now);
+        buffer.putLong(base + WATERMARK, Long.MIN_VALUE);
+        for (int window = 0; window < WINDOWS; window++) {
+            buffer.putLong(window(slot, window) + COUNT, 0);
+        }
+        return slot;
+    }
+
+    void free(int slot) {
+        freeSlots[freeCount++] = slot;
+    }
+
+    int size() {
+        return capacity - freeCount;
+    }
+
+    private static int window(int slot, int window) {
+        return slot * SLOT_BYTES + HEADER_BYTES + window * WINDOW_BYTES;
+    }
+
+    long flushedUntil(int slot) {
+        return buffer.getLong(slot * SLOT_BYTES + FLUSHED_UNTIL);
+    }
+
+    void flushedUntil(int slot, long end) {
+        int offset = slot * SLOT_BYTES + FLUSHED_UNTIL;
+        buffer.putLong(offset, Math.max(end, buffer.getLong(offset)));
+    }
+
+    long lastSeen(int slot) {
+        return buffer.getLong(slot * SLOT_BYTES + LAST_SEEN);
+    }
+
+    void lastSeen(int slot, long now) {
+        buffer.putLong(slot * SLOT_BYTES + LAST_SEEN, now);
+    }
+
+    long watermark(int slot) {
+        return buffer.getLong(slot * SLOT_BYTES + WATERMARK);
+    }
+
+    void watermark(int slot, long timestamp) {
+        int offset = slot * SLOT_BYTES + WATERMARK;
+        buffer.putLong(offset, Math.max(timestamp, buffer.getLong(offset)));
+    }
+
+    boolean isOpen(int slot, int window) {
+        return buffer.getLong(window(slot, window) + COUNT) > 0;
+    }
+
+    void close(int slot, int window) {
+        buffer.putLong(window(slot, window) + COUNT, 0);
+    }
+
+    long start(int slot, int window) {
+        return buffer.getLong(window(slot, window) + START);
+    }
+
+    long count(int slot, int window) {
+        return buffer.getLong(window(slot, window) + COUNT);
+    }
+
+    boolean isDouble(int slot, int window) {
+        return buffer.getLong(window(slot, window) + DOUBLE) != 0;
+    }
+
+    long longValue(int slot, int window, RollupRule.Aggregate aggregate) {
+        return buffer.getLong(window(slot, window) + offset(aggregate));
+    }
+
+    double doubleValue(int slot, int window, RollupRule.Aggregate aggregate) {
+        return buffer.getDouble(window(slot, window) + offset(aggregate));
+    }
+
+    private static int offset(RollupRule.Aggregate aggregate) {
+        switch (aggregate) {
+            case MIN:
+                return MIN;
+            case MAX:
+                return MAX;
+            case SUM:
+                return SUM;
+            case LAST:
+                return LAST;
+            default:
+                return COUNT;
+        }
+    }
+
+    void add(int slot, int window, long start, long timestamp, long value) {
+        int base = window(slot, window);
+        long count = buffer.getLong(base + COUNT);
+        if (count == 0) {
+            open(base, start, timestamp, false);
+            buffer.putLong(base + SUM, value);
+            buffer.putLong(base + MIN, value);
+            buffer.putLong(base + MAX, value);
+            buffer.putLong(base + LAST, value);
+            return;
+        }
+        if (buffer.getLong(base + DOUBLE) != 0) {
+            addDouble(base, count, timestamp, value);
+            return;
+        }
+
+        long sum = buffer.getLong(base + SUM);
+        long newSum = sum + value;
+        if (((sum ^ newSum) & (value ^ newSum)) < 0) {
+//            Overflow, go on with doubles
+            toDouble(base);
+            addDouble(base, count, timestamp, value);
+            return;
+        }
+        buffer.putLong(base + SUM, newSum);
+        buffer.putLong(base + MIN, Math.min(value, buffer.getLong(base + MIN)));
+        buffer.putLong(base + MAX, Math.max(value, buffer.getLong(base + MAX)));
+        if (timestamp >= buffer.getLong(base + LAST_TIMESTAMP)) {
+            buffer.putLong(base + LAST, value);
+            buffer.putLong(base + LAST_TIMESTAMP, timestamp);
+        }
+        buffer.putLong(base + COUNT, count + 1);
+    }
+
+    void add(int slot, int window, long start, long timestamp, double value) {
+        int base = window(slot, window);
+        long count = buffer.getLong(base + COUNT);
+        if (count == 0) {
+            open(base, start, timestamp, true);
+            buffer.putDouble(base + SUM, value);
+            buffer.putDouble(base + MIN, value);
+            buffer.putDouble(base + MAX, value);
+            buffer.putDouble(base + LAST, value);
+            return;
+        }
+        if (buffer.getLong(base + DOUBLE) == 0) {
+            toDouble(base);
+        }
+        addDouble(base, count, timestamp, value);
+    }
+
+    private void open(int base, long start, long timestamp, boolean isDouble) {
+        buffer.putLong(base + START, start);
+        buffer.putLong(base + COUNT, 1);
+        buffer.putLong(base + LAST_TIMESTAMP, timestamp);
+        buffer.putLong(base + DOUBLE, isDouble ? 1 : 0);
+    }
+
+    private void addDouble(int base, long count, long timestamp, double value) {
+        buffer.putDouble(base + SUM, buffer.getDouble(base + SUM) + value);
+        buffer.putDouble(base + MIN, Math.min(value, buffer.getDouble(base + MIN)));
+        buffer.putDouble(base + MAX, Math.max(value, buffer.getDouble(base + MAX)));
+        if (timestamp >= buffer.getLong(base + LAST_TIMESTAMP)) {
+            buffer.putDouble(base + LAST, value);
+            buffer.putLong(base + LAST_TIMESTAMP, timestamp);
+        }
+        buffer.putLong(base + COUNT, count + 1);
+    }
+
+    private void toDouble(int base) {
+        buffer.putDouble(base + SUM, (double) buffer.getLong(base + SUM));
+        buffer.putDouble(base + MIN, (double) buffer.getLong(base + MIN));
+        buffer.putDouble(base + MAX, (double) buffer.getLong(base + MAX));
+        buffer.putDouble(base + LAST, (double) buffer.getLong(base + LAST));
+        buffer.putLong(base + DOUBLE, 1);
+    }
+}
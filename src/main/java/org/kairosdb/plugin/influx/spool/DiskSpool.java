@@ -0,0 +1,500 @@
+package org.kairosdb.plugin.influx.spool;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.RateLimitedLogger;
+import org.kairosdb.util.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead spool for the data points the datastore refused: they are appended to memory-mapped segment files,
+ * then replayed into the datastore in order, at a bounded rate, once it accepts writes again. New points don't wait
+ * for the replay, they are written to the datastore alongside and only spooled when it refuses them.
+ * <p>
+ * Within a segment, the metric name and tags of a series are written once and referred to by a number. Segments
+ * are deleted once replayed, the ones found when starting are replayed, a point of a segment replayed when the
+ * process died being written again. When the spool reached its max size, new points are dropped, as are those too
+ * large for a segment.
+ */
+public class DiskSpool implements KairosDBService {
+    public static final Logger logger = LoggerFactory.getLogger(DiskSpool.class);
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+
+    private static final byte SERIES = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+
+    private static final long IDLE_WAIT_MS = 100;
+    private static final long RETRY_WAIT_MS = 1000;
+
+    private final KairosDatastore datastore;
+    private final InfluxMetrics metrics;
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final RateLimiter replayRate;
+
+    private final Deque<SpoolSegment> segments = new ArrayDeque<SpoolSegment>();
+    private SpoolSegment current;
+    private final Map<SeriesKey, Integer> seriesIds = new HashMap<SeriesKey, Integer>();
+    private long nextSequence;
+    private ByteBuffer scratch = ByteBuffer.allocate(4096);
+    private volatile boolean active;
+
+    private SpoolSegment replayed;
+    private int replayPosition;
+    private final List<SeriesKey> replayedSeries = new ArrayList<SeriesKey>();
+
+    private Thread replayer;
+    private volatile boolean running;
+
+    @Inject
+    public DiskSpool(KairosDatastore datastore, InfluxMetrics metrics,
+                     @Named("kairosdb.influx.lineprotocol.spool.directory") String directory,
+                     @Named("kairosdb.influx.lineprotocol.spool.segment_size_mb") int segmentSizeMb,
+                     @Named("kairosdb.influx.lineprotocol.spool.max_size_mb") int maxSizeMb,
+                     @Named("kairosdb.influx.lineprotocol.spool.replay_rate") int replayRate) {
+        this(datastore, metrics, directory.trim().isEmpty() ? null : new File(directory.trim()),
+                segmentSizeMb * 1024L * 1024, maxSizeMb * 1024L * 1024, replayRate);
+    }
+
+    /**
+     * @param directory  where segments are written, or null to disable the spool
+     * @param replayRate max number of data points replayed per second
+     */
+    public DiskSpool(KairosDatastore datastore, InfluxMetrics metrics, File directory, long segmentSize, long maxSize,
+                     int replayRate) {
+        if (directory != null && (segmentSize < 1024 || segmentSize > Integer.MAX_VALUE || maxSize < segmentSize
+                || replayRate < 1)) {
+            throw new IllegalArgumentException("spool.segment_size_mb must be between 1 and 2047, spool.max_size_mb at " +
+                    "least spool.segment_size_mb and spool.replay_rate positive");
+        }
+        this.datastore = datastore;
+        this.metrics = metrics;
+        this.directory = directory;
+        this.segmentSize = (int) segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxSize / Math.max(1, segmentSize));
+        this.replayRate = RateLimiter.create(Math.max(1, replayRate));
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * @return whether data points are waiting in the spool
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return the number of bytes of the segments on disk
+     */
+    public synchronized long getSize() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * Append a data point to the spool.
+     *
+     * @return false if the point was dropped, the spool being full or the point too large or of an unsupported type
+     */
+    public synchronized boolean append(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint) {
+        if (directory == null) {
+            return false;
+        }
+        SeriesKey key = new SeriesKey(metricName, tags);
+        if (!fitsInSegment(key, dataPoint)) {
+            return false;
+        }
+//        A second attempt if the first segment was full
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (current == null && !newSegment()) {
+                break;
+            }
+
+            Integer id = seriesIds.get(key);
+            if (id == null) {
+                encodeSeries(seriesIds.size(), key);
+                if (!current.append(scratch)) {
+                    current = null;
+                    continue;
+                }
+                id = seriesIds.size();
+                seriesIds.put(key, id);
+            }
+
+            if (!encodePoint(id, dataPoint)) {
+                break;
+            }
+            if (current.append(scratch)) {
+                metrics.pointsSpooled(1);
+                return true;
+            }
+            current = null;
+        }
+        metrics.spoolDroppedPoint();
+        return false;
+    }
+
+    /**
+     * Check that the point, along with its series, fits in an empty segment, so that it isn't dropped only after
+     * rolling over to a new segment.
+     */
+    private boolean fitsInSegment(SeriesKey key, DataPoint dataPoint) {
+        if (!encodePoint(0, dataPoint)) {
+            metrics.spoolDroppedPoint();
+            return false;
+        }
+        int pointSize = SpoolSegment.recordSize(scratch.remaining());
+        encodeSeries(0, key);
+        int size = pointSize + SpoolSegment.recordSize(scratch.remaining());
+        if (size <= segmentSize) {
+            return true;
+        }
+        metrics.spoolOversizedPoint();
+        if (rateLimitedLogger.isEnabled()) {
+            rateLimitedLogger.error("Data point of metric {} takes {} bytes, more than a spool segment, dropping it",
+                    key.metricName, size);
+        }
+        return false;
+    }
+
+    private boolean newSegment() {
+        seriesIds.clear();
+        if (segments.size() >= maxSegments) {
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.error("Spool is full ({} segments), dropping data points", segments.size());
+            }
+            return false;
+        }
+        try {
+            current = SpoolSegment.create(directory, nextSequence++, segmentSize);
+        } catch (IOException e) {
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.error("Unable to create spool segment in {}, dropping data points", directory, e);
+            }
+            return false;
+        }
+        segments.addLast(current);
+        active = true;
+        return true;
+    }
+
+    private void encodeSeries(int id, SeriesKey key) {
+        scratch.clear();
+        scratch.put(SERIES);
+        scratch.putInt(id);
+        putString(key.metricName);
+        scratch.putInt(key.tags.size());
+        for (Map.Entry<String, String> tag : key.tags.entrySet()) {
+            putString(tag.getKey());
+            putString(tag.getValue());
+        }
+        scratch.flip();
+    }
+
+    private boolean encodePoint(int id, DataPoint dataPoint) {
+        scratch.clear();
+        if (dataPoint instanceof StringDataPoint) {
+            scratch.put(STRING);
+            scratch.putInt(id);
+            scratch.putLong(dataPoint.getTimestamp());
+            putString(((StringDataPoint) dataPoint).getValue());
+        } else if (dataPoint.isLong()) {
+            scratch.put(LONG);
+            scratch.putInt(id);
+            scratch.putLong(dataPoint.getTimestamp());
+            scratch.putLong(dataPoint.getLongValue());
+        } else if (dataPoint.isDouble()) {
+            scratch.put(DOUBLE);
+            scratch.putInt(id);
+            scratch.putLong(dataPoint.getTimestamp());
+            scratch.putDouble(dataPoint.getDoubleValue());
+        } else {
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.warn("Data points of type {} can't be spooled", dataPoint.getDataStoreDataType());
+            }
+            return false;
+        }
+        scratch.flip();
+        return true;
+    }
+
+    private void putString(String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        if (scratch.remaining() < 4 + bytes.length + 64) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + 4 + bytes.length + 64));
+            scratch.flip();
+            larger.put(scratch);
+            scratch = larger;
+        }
+        scratch.putInt(bytes.length);
+        scratch.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * @return the payload of the next record to replay, or null if there is none yet
+     */
+    private synchronized ByteBuffer nextRecord() {
+        while (true) {
+            SpoolSegment segment = segments.peekFirst();
+            if (segment == null) {
+                active = false;
+                return null;
+            }
+            if (segment != replayed) {
+                replayed = segment;
+                replayPosition = 0;
+                replayedSeries.clear();
+            }
+            if (replayPosition < segment.getLimit()) {
+                return segment.payload(replayPosition);
+            }
+            if (segment == current) {
+//                Caught up with the writes
+                current = null;
+                seriesIds.clear();
+            }
+            segments.removeFirst();
+            replayed = null;
+            if (!segment.delete()) {
+                logger.warn("Unable to delete replayed spool segment " + segment);
+            }
+        }
+    }
+
+    private synchronized void recordReplayed() {
+        replayPosition = replayed.next(replayPosition);
+    }
+
+    /**
+     * Replay the next record of the spool.
+     *
+     * @return false if there was nothing to replay, or the datastore still fails
+     */
+    boolean replayNext() {
+        ByteBuffer record = nextRecord();
+        if (record == null) {
+            return false;
+        }
+
+        byte type = record.get();
+        int id = record.getInt();
+        if (type == SERIES) {
+            String metricName = getString(record);
+            ImmutableSortedMap.Builder<String, String> tags = Tags.create();
+            for (int count = record.getInt(); count > 0; count--) {
+                tags.put(getString(record), getString(record));
+            }
+            while (replayedSeries.size() <= id) {
+                replayedSeries.add(null);
+            }
+            replayedSeries.set(id, new SeriesKey(metricName, tags.build()));
+            recordReplayed();
+            return true;
+        }
+
+        SeriesKey series = id < replayedSeries.size() ? replayedSeries.get(id) : null;
+        long timestamp = record.getLong();
+        DataPoint dataPoint;
+        if (type == LONG) {
+            dataPoint = new LongDataPoint(timestamp, record.getLong());
+        } else if (type == DOUBLE) {
+            dataPoint = new DoubleDataPoint(timestamp, record.getDouble());
+        } else if (type == STRING) {
+            dataPoint = new StringDataPoint(timestamp, getString(record));
+        } else {
+            dataPoint = null;
+        }
+        if (series == null || dataPoint == null) {
+            logger.error("Invalid record of type " + type + " in spool segment " + replayed + ", skipping it");
+            metrics.spoolDroppedPoint();
+            recordReplayed();
+            return true;
+        }
+
+        replayRate.acquire();
+        try {
+            datastore.putDataPoint(series.metricName, series.tags, dataPoint);
+        } catch (DatastoreException e) {
+            if (rateLimitedLogger.isEnabled()) {
+                rateLimitedLogger.warn("Datastore still failing, retrying spooled data points later", e);
+            }
+            return false;
+        } catch (Exception e) {
+//            Not the datastore being down, but this point being refused
+            logger.error("Unable to replay data point of metric " + series.metricName + ", skipping it", e);
+            metrics.spoolDroppedPoint();
+            recordReplayed();
+            return true;
+        }
+        metrics.pointReplayed();
+        recordReplayed();
+        return true;
+    }
+
+    @Override
+    public void start() throws KairosDBException {
+        if (directory == null) {
+            return;
+        }
+        recover();
+
+        running = true;
+        replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    boolean replayed;
+                    try {
+                        replayed = replayNext();
+                    } catch (Exception e) {
+                        logger.error("Unable to replay spool", e);
+                        replayed = false;
+                    }
+                    if (!replayed && running) {
+                        sleep(active ? RETRY_WAIT_MS : IDLE_WAIT_MS);
+                    }
+                }
+            }
+        }, "influx-spool-replay");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * Pick up the segments left by a previous run.
+     */
+    private synchronized void recover() throws KairosDBException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new KairosDBException("Unable to create spool directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new KairosDBException("Unable to list spool directory " + directory);
+        }
+        Arrays.sort(files);
+        int recovered = 0;
+        for (File file : files) {
+            long sequence = SpoolSegment.sequence(file);
+            if (sequence < 0) {
+                continue;
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            try {
+                SpoolSegment segment = SpoolSegment.recover(file);
+                if (segment.getLimit() == 0) {
+                    segment.delete();
+                } else {
+                    segments.addLast(segment);
+                    recovered++;
+                }
+            } catch (IOException e) {
+                throw new KairosDBException("Unable to recover spool segment " + file, e);
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = true;
+            logger.info("Replaying " + recovered + " spool segment(s) from " + directory);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (replayer != null) {
+            replayer.interrupt();
+            try {
+                replayer.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+//        What wasn't replayed is picked up by the next start
+        synchronized (this) {
+//            Unless still replaying, in which case the replayer may read the segment it is on
+            boolean unmap = replayer == null || !replayer.isAlive();
+            for (SpoolSegment segment : segments) {
+                segment.force();
+                if (unmap) {
+                    segment.close();
+                }
+            }
+            if (unmap) {
+                segments.clear();
+                current = null;
+                replayed = null;
+                seriesIds.clear();
+            }
+        }
+    }
+
+    private static final class SeriesKey {
+        private final String metricName;
+        private final ImmutableSortedMap<String, String> tags;
+
+        private SeriesKey(String metricName, ImmutableSortedMap<String, String> tags) {
+            this.metricName = metricName;
+            this.tags = tags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return metricName.equals(other.metricName) && tags.equals(other.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * metricName.hashCode() + tags.hashCode();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.kairosdb.plugin.influx.spool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Spool file of a fixed size, memory-mapped, holding a sequence of records: payload length (int), CRC32 of the
+ * payload (int) and the payload. The file being zero-filled when created, a zero length marks the end of the
+ * records; a record torn by a crash fails its CRC and ends the segment as well.
+ * <p>
+ * The mapping is released when the segment is closed, rather than whenever the garbage collector gets to it. Not
+ * thread safe, {@link DiskSpool} synchronizes the accesses.
+ */
+final class SpoolSegment {
+    private static final Logger logger = LoggerFactory.getLogger(SpoolSegment.class);
+
+    static final String SUFFIX = ".spool";
+    private static final int RECORD_HEADER = 8;
+
+    private final File file;
+    private MappedByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+    private int limit;
+
+    private SpoolSegment(File file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    static File file(File directory, long sequence) {
+        return new File(directory, String.format("%020d", sequence) + SUFFIX);
+    }
+
+    /**
+     * @return the sequence number of a segment file, or -1 if the file isn't a segment
+     */
+    static long sequence(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the room a record of the payload length takes in a segment
+     */
+    static int recordSize(int length) {
+        return RECORD_HEADER + length;
+    }
+
+    static SpoolSegment create(File directory, long sequence, int size) throws IOException {
+        File file = file(directory, sequence);
+        return new SpoolSegment(file, map(file, size));
+    }
+
+    /**
+     * Map an existing segment, its records being the valid ones found from its start.
+     */
+    static SpoolSegment recover(File file) throws IOException {
+        SpoolSegment segment = new SpoolSegment(file, map(file, file.length()));
+        int position = 0;
+        while (segment.isValid(position)) {
+            position += RECORD_HEADER + segment.buffer.getInt(position);
+        }
+        segment.limit = position;
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+//            The mapping stays valid once the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private boolean isValid(int position) {
+        if (position + RECORD_HEADER > buffer.capacity()) {
+            return false;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER) {
+            return false;
+        }
+        ByteBuffer payload = payload(position);
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    /**
+     * Append the remaining bytes of the payload as a record.
+     *
+     * @return false if the segment doesn't have room for it
+     */
+    boolean append(ByteBuffer payload) {
+        int length = payload.remaining();
+        if (length > buffer.capacity() - limit - RECORD_HEADER) {
+            return false;
+        }
+        crc.reset();
+        crc.update(payload.duplicate());
+        ByteBuffer target = buffer.duplicate();
+        target.position(limit + RECORD_HEADER);
+        target.put(payload);
+        buffer.putInt(limit + 4, (int) crc.getValue());
+//        Length last, a record isn't there until it is set
+        buffer.putInt(limit, length);
+        limit += RECORD_HEADER + length;
+        return true;
+    }
+
+    /**
+     * @return the payload of the record starting at the position
+     */
+    ByteBuffer payload(int position) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(position + RECORD_HEADER);
+        payload.limit(position + RECORD_HEADER + buffer.getInt(position));
+        return payload;
+    }
+
+    /**
+     * @return the position of the record following the one starting at the position
+     */
+    int next(int position) {
+        return position + RECORD_HEADER + buffer.getInt(position);
+    }
+
+    /**
+     * @return the end of the records
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Unmap the segment, which must not be accessed anymore, nor the payloads it returned.
+     */
+    void close() {
+        if (buffer != null) {
+            Unmapper.unmap(buffer);
+            buffer = null;
+        }
+    }
+
+    boolean delete() {
+        close();
+        return file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+
+    /**
+     * Releases mapped buffers through their cleaner: sun.misc.Unsafe.invokeCleaner from Java 9, the cleaner of the
+     * buffer before. When neither is available, the mapping is left to the garbage collector.
+     */
+    private static final class Unmapper {
+        private static final Object unsafe;
+        private static final Method invokeCleaner;
+        private static final boolean java8;
+
+        static {
+            Object foundUnsafe = null;
+            Method foundInvokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                foundInvokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                foundUnsafe = theUnsafe.get(null);
+            } catch (Exception e) {
+                foundInvokeCleaner = null;
+            }
+            unsafe = foundUnsafe;
+            invokeCleaner = foundInvokeCleaner;
+            java8 = foundInvokeCleaner == null;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            try {
+                if (!java8) {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } else {
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (Exception e) {
+                logger.debug("Unable to unmap spool segment, leaving it to the garbage collector", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.kairosdb.plugin.influx.tcp;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.Precision;
+import org.kairosdb.plugin.influx.RateLimitedLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Executors;
+
+/**
+ * Line protocol over TCP, one line per frame. Unlike UDP, a client sending faster than the datastore can absorb
+ * is slowed down: once the writer queue is full the worker blocks, and so does the TCP window.
+ * <p>
+ * Lines without timestamp get the time at which the bytes were read, the clock being read once per read rather
+ * than once per line.
+ */
+@ChannelHandler.Sharable
+public class InfluxTCPServer extends SimpleChannelUpstreamHandler implements ChannelPipelineFactory,
+        KairosDBService {
+    public static final Logger logger = LoggerFactory.getLogger(InfluxTCPServer.class);
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+
+    private final int port;
+    private InetAddress address;
+    private final InfluxIngester ingester;
+    private final int maxLineLength;
+    private final Precision precision;
+    private ServerBootstrap bootstrap;
+    private Channel serverChannel;
+    private final ChannelGroup channels = new DefaultChannelGroup("influx-tcp");
+
+    @Inject
+    public InfluxTCPServer(InfluxIngester ingester, @Named("kairosdb.influx.lineprotocol.tcp.port") int port,
+                           @Named("kairosdb.influx.lineprotocol.address") String address,
+                           @Named("kairosdb.influx.lineprotocol.max_line_length") int maxLineLength,
+                           @Named("kairosdb.influx.lineprotocol.tcp.precision") String precision) {
+        this.port = port;
+        this.ingester = ingester;
+        this.maxLineLength = maxLineLength;
+        this.precision = Precision.fromName(precision);
+        try {
+            this.address = InetAddress.getByName(address);
+        } catch (UnknownHostException e) {
+            logger.error("Unknown host name " + address + ", will bind to 0.0.0.0");
+        }
+    }
+
+    //	@Override
+    public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+
+        // Frames are lines, \n or \r\n terminated
+        pipeline.addLast("clock", new ReadClock());
+        pipeline.addLast("framer", new DelimiterBasedFrameDecoder(maxLineLength, Delimiters.lineDelimiter()));
+        pipeline.addLast("handler", this);
+
+        return pipeline;
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        channels.add(e.getChannel());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent msgevent) {
+        final Object message = msgevent.getMessage();
+        if (message instanceof ChannelBuffer) {
+            ChannelBuffer line = (ChannelBuffer) message;
+            // The framer only enforces the limit on lines still incomplete, not on those received at once
+            if (line.readableBytes() > maxLineLength) {
+                discardTooLong(msgevent.getChannel());
+                return;
+            }
+            ReadClock clock = (ReadClock) ctx.getPipeline().get("clock");
+            ingester.ingest(line, precision, clock.readAt);
+        } else {
+            logger.warn("Invalid message. Must be of type ChannelBuffer.");
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+        if (e.getCause() instanceof TooLongFrameException) {
+            discardTooLong(e.getChannel());
+        } else {
+            logger.warn("Closing connection from " + e.getChannel().getRemoteAddress(), e.getCause());
+            e.getChannel().close();
+        }
+    }
+
+    private void discardTooLong(Channel channel) {
+        ingester.getMetrics().parseError(InfluxMetrics.ParseError.TOO_LONG);
+        if (rateLimitedLogger.isEnabled()) {
+            rateLimitedLogger.warn("Line longer than {} bytes from {} discarded", maxLineLength, channel.getRemoteAddress());
+        }
+    }
+
+    //	@Override
+    public void start() throws KairosDBException {
+        bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        bootstrap.setPipelineFactory(this);
+        bootstrap.setOption("reuseAddress", true);
+        bootstrap.setOption("child.tcpNoDelay", true);
+        bootstrap.setOption("child.keepAlive", true);
+
+        InetSocketAddress bindAddress = new InetSocketAddress(address, port);
+        try {
+            serverChannel = bootstrap.bind(bindAddress);
+            channels.add(serverChannel);
+        } catch (ChannelException e) {
+            throw new KairosDBException("Unable to bind TCP server to " + bindAddress, e);
+        }
+        logger.info("Influx line protocol TCP server listening on " + bindAddress);
+    }
+
+    /**
+     * @return the address the server is bound to, e.g. to find out the port picked when configured to 0
+     */
+    InetSocketAddress getLocalAddress() {
+        return serverChannel != null ? (InetSocketAddress) serverChannel.getLocalAddress() : null;
+    }
+
+    //	@Override
+    public void stop() {
+        channels.close().awaitUninterruptibly();
+        if (bootstrap != null) {
+            bootstrap.releaseExternalResources();
+            bootstrap = null;
+        }
+    }
+
+    /**
+     * Remembers when the last bytes of the connection were read, before they are split into lines.
+     */
+    private static final class ReadClock extends SimpleChannelUpstreamHandler {
+        private long readAt;
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            readAt = System.currentTimeMillis();
+            super.messageReceived(ctx, e);
+        }
+    }
+}
@@ -1,75 +1,104 @@
 package org.kairosdb.plugin.influx.udp;
 
-import com.google.common.collect.ImmutableSortedMap;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
-import org.apache.commons.lang3.StringUtils;
-import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
-import org.jboss.netty.buffer.ChannelBuffer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.*;
-import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
-import org.jboss.netty.handler.codec.string.StringDecoder;
-import org.jboss.netty.handler.codec.string.StringEncoder;
-import org.kairosdb.core.DataPoint;
 import org.kairosdb.core.KairosDBService;
-import org.kairosdb.core.datapoints.DoubleDataPointFactory;
-import org.kairosdb.core.datapoints.DoubleDataPointFactoryImpl;
-import org.kairosdb.core.datapoints.LongDataPointFactory;
-import org.kairosdb.core.datapoints.LongDataPointFactoryImpl;
-import org.kairosdb.core.datastore.KairosDatastore;
 import org.kairosdb.core.exception.KairosDBException;
-import org.kairosdb.plugin.influx.InfluxLineProtocolParser;
-import org.kairosdb.plugin.influx.InfluxMetric;
-import org.kairosdb.util.ValidationException;
+import org.kairosdb.plugin.influx.InfluxIngestQueue;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.Precision;
+import org.kairosdb.plugin.influx.RateLimitedLogger;
+import org.kairosdb.plugin.influx.ratelimit.Sender;
+import org.kairosdb.plugin.influx.ratelimit.SenderRateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetSocketAddress;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.Map;
-import java.util.concurrent.Executors;
-
-public class InfluxUDPServer extends SimpleChannelUpstreamHandler implements ChannelPipelineFactory,
-        KairosDBService {
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP listener, each datagram holding one or more lines. Datagrams are read with Netty 4, through the native epoll
+ * transport when available (Linux) and NIO otherwise, into pooled heap buffers of the max datagram size, handed to
+ * the {@link InfluxIngestQueue} and released once ingested. Heap buffers let the parser read the lines in place.
+ * Small datagrams are first moved to a pooled buffer of their actual size, so that the queue doesn't pin a max size
+ * buffer for each of them. With a {@link SenderRateLimiter},
+ * the datagrams of the senders over their limit are dropped first.
+ */
+@ChannelHandler.Sharable
+public class InfluxUDPServer extends SimpleChannelInboundHandler<DatagramPacket> implements KairosDBService {
     public static final Logger logger = LoggerFactory.getLogger(InfluxUDPServer.class);
-    private static final String DEFAULT_SEPARATOR = ".";
+    private static final RateLimitedLogger rateLimitedLogger = new RateLimitedLogger(logger);
+    private static final int DEFAULT_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final byte NEW_LINE = '\n';
+    private static final PooledByteBufAllocator HEAP_ALLOCATOR = new PooledByteBufAllocator(false);
 
     private final int port;
     private InetAddress address;
-    private final KairosDatastore datastore;
-    private final String separator;
-    private final int maxSize;
-    private ConnectionlessBootstrap bootstrap;
-
-    @Inject
-    private LongDataPointFactory longDataPointFactory = new LongDataPointFactoryImpl();
-
-    @Inject
-    private DoubleDataPointFactory doubleDataPointFactory = new DoubleDataPointFactoryImpl();
-
-    private final InfluxLineProtocolParser influxLineProtocolParser = new InfluxLineProtocolParser();
-
-    private final ChannelBuffer[] lineProtocolDelimiter = {ChannelBuffers.wrappedBuffer(new byte[]{'\n'})};
-
-    public InfluxUDPServer(KairosDatastore datastore, @Named("kairosdb.influx.lineprotocol.port") int port,
-                           @Named("kairosdb.influx.lineprotocol.separator") String separator,
-                           @Named("kairosdb.influx.lineprotocol.max_size") int maxSize) {
-        this(datastore, port, null, separator, maxSize);
+    private final InfluxIngestQueue queue;
+    private final InfluxIngester ingester;
+    private final int receiveBufferSize;
+    private int maxDatagramSize;
+    private final int receivers;
+    private final Precision precision;
+    private final SenderRateLimiter rateLimiter;
+    private EventLoopGroup group;
+    private final ChannelGroup channels = new DefaultChannelGroup("influx-udp", GlobalEventExecutor.INSTANCE);
+
+    public InfluxUDPServer(InfluxIngestQueue queue, int port, int maxDatagramSize) {
+        this(queue, port, null, DEFAULT_RECEIVE_BUFFER_SIZE, maxDatagramSize, 1, "ns", null);
     }
 
+    /**
+     * @param receiveBufferSize size of the socket receive buffer (SO_RCVBUF), i.e. how many datagrams the kernel
+     *                          keeps while the receivers are busy
+     * @param maxDatagramSize   size of the largest datagram read without being truncated
+     * @param rateLimiter       per sender rate limits, or null
+     */
     @Inject
-    public InfluxUDPServer(KairosDatastore datastore, @Named("kairosdb.influx.lineprotocol.port") int port,
+    public InfluxUDPServer(InfluxIngestQueue queue, @Named("kairosdb.influx.lineprotocol.port") int port,
                            @Named("kairosdb.influx.lineprotocol.address") String address,
-                           @Named("kairosdb.influx.lineprotocol.separator") String separator,
-                           @Named("kairosdb.influx.lineprotocol.max_size") int maxSize) {
+                           @Named("kairosdb.influx.lineprotocol.receive_buffer_size") int receiveBufferSize,
+                           @Named("kairosdb.influx.lineprotocol.max_datagram_size") int maxDatagramSize,
+                           @Named("kairosdb.influx.lineprotocol.receivers") int receivers,
+                           @Named("kairosdb.influx.lineprotocol.precision") String precision,
+                           SenderRateLimiter rateLimiter) {
+        if (receiveBufferSize < 1 || maxDatagramSize < 1) {
+            throw new IllegalArgumentException("receive_buffer_size and max_datagram_size must be positive");
+        }
         this.port = port;
-        this.datastore = datastore;
+        this.queue = queue;
+        this.ingester = queue.getIngester();
         this.address = null;
-        this.separator = separator;
-        this.maxSize = maxSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.maxDatagramSize = maxDatagramSize;
+        this.receivers = Math.max(1, receivers);
+        this.precision = Precision.fromName(precision);
+        this.rateLimiter = rateLimiter != null && rateLimiter.isEnabled() ? rateLimiter : null;
         try {
             this.address = InetAddress.getByName(address);
         } catch (UnknownHostException e) {
@@ -77,107 +106,134 @@ public class InfluxUDPServer extends SimpleChannelUpstreamHandler implements Cha
         }
     }
 
-    //	@Override
-    public ChannelPipeline getPipeline() throws Exception {
-        ChannelPipeline pipeline = Channels.pipeline();
-
-        // Add the text line codec combination first,
-        DelimiterBasedFrameDecoder frameDecoder = new DelimiterBasedFrameDecoder(
-                maxSize, lineProtocolDelimiter);
-        frameDecoder.setMaxCumulationBufferComponents(maxSize);
-
-        pipeline.addLast("framer", frameDecoder);
-        pipeline.addLast("decoder", new StringDecoder());
-        pipeline.addLast("encoder", new StringEncoder());
-
-        // and then business logic.
-        pipeline.addLast("handler", this);
-
-        return pipeline;
+    /**
+     * max_size, the size of the datagrams before max_datagram_size and receive_buffer_size, still honored when set.
+     */
+    @Inject(optional = true)
+    void setLegacyMaxSize(@Named("kairosdb.influx.lineprotocol.max_size") int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("max_size must be positive");
+        }
+        logger.warn("kairosdb.influx.lineprotocol.max_size is deprecated, use max_datagram_size (and receive_buffer_size " +
+                "for the socket buffer) instead. Reading datagrams of up to " + maxSize + " bytes.");
+        this.maxDatagramSize = maxSize;
     }
 
     @Override
-    public void messageReceived(final ChannelHandlerContext ctx,
-                                final MessageEvent msgevent) {
-        final Object message = msgevent.getMessage();
-        if (message instanceof String) {
-            try {
-                String msgString = (String) message;
-
-                InfluxMetric influxMetric = influxLineProtocolParser.parse(msgString);
-
-                if (influxMetric == null) {
-                    return;
-                }
-
-                if (StringUtils.isEmpty(influxMetric.getName())) {
-                    logger.warn("Metric " + msgString + " don't have a name (measurement in Influx wording)");
-                    return;
-                }
-
-                Map<String, DataPoint> dataPoints = influxMetric.getDataPoints();
-
-                if (dataPoints.isEmpty()) {
-                    logger.warn("Metric " + msgString + " is missing a don't have datapoint(s) (field in Influx wording)");
-                    return;
-                }
-
-                final ImmutableSortedMap<String, String> tags = influxMetric.getTags();
-                for (Map.Entry<String, DataPoint> entry : influxMetric.getDataPoints().entrySet()) {
-                    datastore.putDataPoint(influxMetric.getName() + separator + entry.getKey(), tags, entry.getValue());
-                }
-            } catch (Exception e) {
-                logger.error("Influx Line protocol error with line: \"{}\"", message, e);
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+        // The pooled buffer is released once this returns unless retained for the ingest workers. The clock is read
+        // once per datagram.
+        ByteBuf content = packet.content();
+        ingester.getMetrics().datagramReceived();
+
+        // Datagrams of senders over their limit are dropped before being copied, let alone parsed
+        Sender sender = null;
+        if (rateLimiter != null) {
+            sender = rateLimiter.acquire(packet.sender().getAddress(), countLines(content));
+            if (sender == null) {
+                return;
             }
+        }
+
+        // Heap buffers, which the parser reads in place, where a direct one would have each of its lines copied
+        ByteBuf datagram;
+        if (content.hasArray() && content.readableBytes() >= content.capacity() / 2) {
+            datagram = content.retain();
         } else {
-            log("Invalid message. Must be of type String.");
+            datagram = content.alloc().heapBuffer(content.readableBytes());
+            datagram.writeBytes(content, content.readerIndex(), content.readableBytes());
         }
+        queue.offer(ChannelBuffers.wrappedBuffer(datagram.array(), datagram.arrayOffset() + datagram.readerIndex(),
+                datagram.readableBytes()), precision, System.currentTimeMillis(), sender, datagram);
     }
 
-    private static void log(String message) {
-        log(message, null);
+    private static int countLines(ByteBuf content) {
+        int count = 0;
+        int index = content.readerIndex();
+        final int end = content.writerIndex();
+        while (index < end) {
+            int newLine = content.indexOf(index, end, NEW_LINE);
+            if (newLine != index) {
+                count++;
+            }
+            index = newLine < 0 ? end : newLine + 1;
+        }
+        return count;
     }
 
-    private static void log(String message, Exception e) {
-        if (logger.isDebugEnabled())
-            if (e != null)
-                logger.debug(message, e);
-            else
-                logger.debug(message);
-        else {
-            if (e instanceof ValidationException)
-                message = message + " Reason: " + e.getMessage();
-            logger.warn(message);
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (rateLimitedLogger.isEnabled()) {
+            rateLimitedLogger.warn("Unexpected error on UDP receiver", cause);
         }
     }
 
     //	@Override
     public void start() throws KairosDBException {
 
-        // Configure the server.
-        bootstrap = new ConnectionlessBootstrap(
-                new NioDatagramChannelFactory(
-                        Executors.newCachedThreadPool()));
-
-        // Configure the pipeline factory.
-        bootstrap.setPipelineFactory(this);
-//        serverBootstrap.setOption("child.tcpNoDelay", true);
-//        serverBootstrap.setOption("child.keepAlive", true);
-//        bootstrap.setOption("reuseAddress", true);
+        boolean epoll = Epoll.isAvailable();
+        Bootstrap bootstrap = new Bootstrap()
+                // Datagrams are read into pooled heap buffers, see channelRead0
+                .option(ChannelOption.ALLOCATOR, HEAP_ALLOCATOR)
+                .option(ChannelOption.SO_RCVBUF, receiveBufferSize)
+                // Each read gets a buffer of the max datagram size, Netty's default of 2048 bytes would truncate them
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(maxDatagramSize))
+                .handler(this);
+
+        int receiverCount = receivers;
+        if (receiverCount > 1) {
+            if (epoll) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            } else if (ReusePort.isSupported()) {
+                bootstrap.option(ReusePort.option(), true);
+            } else {
+                logger.warn("SO_REUSEPORT is not available (requires Linux or Java 9+), starting 1 receiver instead of " + receiverCount);
+                receiverCount = 1;
+            }
+        }
 
-        bootstrap.setOption("broadcast", "false");
+        // One event loop thread per receiver.
+        DefaultThreadFactory threadFactory = new DefaultThreadFactory("influx-udp", true);
+        if (epoll) {
+            group = new EpollEventLoopGroup(receiverCount, threadFactory);
+            bootstrap.group(group).channel(EpollDatagramChannel.class);
+        } else {
+            logger.info("Native epoll transport not available, using NIO: " + Epoll.unavailabilityCause());
+            group = new NioEventLoopGroup(receiverCount, threadFactory);
+            bootstrap.group(group).channel(NioDatagramChannel.class);
+        }
 
-        bootstrap.setOption("sendBufferSize", maxSize);
-        bootstrap.setOption("receiveBufferSize", maxSize);
+        // Bind the receivers to the same port, the kernel spreading the datagrams over them
+        // (the event loops being assigned round robin, each receiver gets its own).
+        InetSocketAddress bindAddress = new InetSocketAddress(address, port);
+        for (int i = 0; i < receiverCount; i++) {
+            ChannelFuture future = bootstrap.bind(bindAddress).awaitUninterruptibly();
+            if (!future.isSuccess()) {
+                stop();
+                throw new KairosDBException("Unable to bind UDP receiver " + i + " to " + bindAddress, future.cause());
+            }
+            channels.add(future.channel());
+        }
+        logger.info("Influx line protocol UDP server listening on " + bindAddress + " with " + receiverCount
+                + " receiver(s) (" + (epoll ? "epoll" : "nio") + ")");
+    }
 
-        // Bind and start to accept incoming connections.
-        bootstrap.bind(new InetSocketAddress(address, port));
+    /**
+     * @return the address the first receiver is bound to, e.g. to find out the port picked when configured to 0
+     */
+    InetSocketAddress getLocalAddress() {
+        for (Channel channel : channels) {
+            return (InetSocketAddress) channel.localAddress();
+        }
+        return null;
     }
 
     //	@Override
     public void stop() {
-        if (bootstrap != null) {
-            bootstrap.shutdown();
+        channels.close().awaitUninterruptibly();
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            group = null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,49 @@
+package org.kairosdb.plugin.influx.udp;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.socket.nio.NioChannelOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+
+/**
+ * SO_REUSEPORT for the NIO datagram channels, used when the native epoll transport isn't available, so that
+ * several of them can be bound to the same port, the kernel spreading the incoming datagrams over them.
+ * <p>
+ * Java 8 doesn't expose the option, hence it is looked up reflectively: it requires Java 9+ and an OS supporting it
+ * (Linux 3.9+, BSDs, macOS).
+ */
+final class ReusePort {
+    private static final Logger logger = LoggerFactory.getLogger(ReusePort.class);
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupOption();
+
+    private ReusePort() {
+    }
+
+    static boolean isSupported() {
+        return SO_REUSEPORT != null;
+    }
+
+    /**
+     * @return the option to set on NIO channels before they are bound
+     */
+    static ChannelOption<Boolean> option() {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported by this JVM");
+        }
+        return NioChannelOption.of(SO_REUSEPORT);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookupOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            logger.debug("SO_REUSEPORT not available in this JVM");
+            return null;
+        }
+    }
+}
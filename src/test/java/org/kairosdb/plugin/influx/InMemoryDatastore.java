@@ -0,0 +1,114 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.DataPointListener;
+import org.kairosdb.core.datastore.Datastore;
+import org.kairosdb.core.datastore.DatastoreMetricQuery;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.datastore.QueryCallback;
+import org.kairosdb.core.datastore.QueryQueuingManager;
+import org.kairosdb.core.datastore.TagSet;
+import org.kairosdb.core.exception.DatastoreException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Datastore keeping the written data points in memory, to be wrapped into a real {@link KairosDatastore}.
+ */
+public class InMemoryDatastore implements Datastore {
+
+    private final List<Row> rows = Collections.synchronizedList(new ArrayList<Row>());
+    private volatile boolean failing;
+
+    public static KairosDatastore kairosDatastore(Datastore datastore) throws DatastoreException {
+        return new KairosDatastore(datastore, new QueryQueuingManager(1, "localhost"),
+                Collections.<DataPointListener>emptyList(), null, false);
+    }
+
+    public List<Row> getRows() {
+        synchronized (rows) {
+            return new ArrayList<Row>(rows);
+        }
+    }
+
+    /**
+     * Make the writes fail, as a datastore being down.
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    /**
+     * Wait until at least the given number of data points were written, or the timeout elapsed.
+     */
+    public boolean await(int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (rows.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Override
+    public void putDataPoint(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint, int ttl)
+            throws DatastoreException {
+        if (failing) {
+            throw new DatastoreException("Datastore is down");
+        }
+        rows.add(new Row(metricName, tags, dataPoint));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Iterable<String> getMetricNames() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Iterable<String> getTagNames() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Iterable<String> getTagValues() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void queryDatabase(DatastoreMetricQuery query, QueryCallback queryCallback) {
+    }
+
+    @Override
+    public void deleteDataPoints(DatastoreMetricQuery deleteQuery) {
+    }
+
+    @Override
+    public TagSet queryMetricTags(DatastoreMetricQuery query) {
+        return null;
+    }
+
+    public static class Row {
+        public final String metricName;
+        public final ImmutableSortedMap<String, String> tags;
+        public final DataPoint dataPoint;
+
+        public Row(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint) {
+            this.metricName = metricName;
+            this.tags = tags;
+            this.dataPoint = dataPoint;
+        }
+    }
+}
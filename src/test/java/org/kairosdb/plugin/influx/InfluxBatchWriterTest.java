@@ -0,0 +1,139 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.util.Tags;
+
+import java.util.concurrent.TimeUnit;
+
+public class InfluxBatchWriterTest {
+
+    private static final ImmutableSortedMap<String, String> TAGS = Tags.create().put("host", "test").build();
+
+    private InMemoryDatastore datastore;
+    private KairosDatastore kairosDatastore;
+
+    @Before
+    public void setUp() throws Exception {
+        datastore = new InMemoryDatastore();
+        kairosDatastore = InMemoryDatastore.kairosDatastore(datastore);
+    }
+
+    @Test
+    public void flushWhenBatchIsFull() throws Exception {
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 3, 60000, 1, 10);
+        writer.start();
+        try {
+            writer.write("cpu.value", TAGS, new LongDataPoint(1L, 1L));
+            writer.write("cpu.value", TAGS, new LongDataPoint(2L, 2L));
+            Thread.sleep(50);
+            Assert.assertEquals(0, datastore.size());
+
+            writer.write("cpu.value", TAGS, new LongDataPoint(3L, 3L));
+            Assert.assertTrue(datastore.await(3, 5000));
+            Assert.assertEquals("cpu.value", datastore.getRows().get(0).metricName);
+            Assert.assertEquals(TAGS, datastore.getRows().get(0).tags);
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void flushOnInterval() throws Exception {
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 1000, 10, 2, 10);
+        writer.start();
+        try {
+            writer.write("cpu.value", TAGS, new LongDataPoint(1L, 1L));
+            Assert.assertTrue(datastore.await(1, 5000));
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void stopWritesPendingPoints() throws Exception {
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 1000, 60000, 1, 10);
+
+//        Points received before the writer is started are kept
+        writer.write("cpu.value", TAGS, new LongDataPoint(1L, 1L));
+        writer.start();
+        writer.write("cpu.value", TAGS, new LongDataPoint(2L, 2L));
+        writer.stop();
+        Assert.assertEquals(2, datastore.size());
+
+        writer.write("cpu.value", TAGS, new LongDataPoint(3L, 3L));
+        Assert.assertEquals(3, datastore.size());
+    }
+
+    @Test
+    public void stopDoesNotWaitForIdleWriters() throws Exception {
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 1000, 60000, 4, 10);
+        writer.start();
+        writer.write("cpu.value", TAGS, new LongDataPoint(1L, 1L));
+        long start = System.nanoTime();
+        writer.stop();
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(1, datastore.size());
+    }
+
+    @Test
+    public void syncWriterWaitsForItsBatches() throws Exception {
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 2, 60000, 2, 10);
+        writer.start();
+        try {
+            InfluxBatchWriter.SyncWriter sync = writer.syncWriter();
+            for (int i = 0; i < 5; i++) {
+                sync.write("cpu.value", TAGS, new LongDataPoint(i, i));
+            }
+            sync.flush();
+            Assert.assertEquals(5, datastore.size());
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void syncWriterReportsFailures() throws Exception {
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 1000, 60000, 1, 10);
+        writer.start();
+        try {
+            datastore.setFailing(true);
+            InfluxBatchWriter.SyncWriter sync = writer.syncWriter();
+            sync.write("cpu.value", TAGS, new LongDataPoint(1L, 1L));
+            try {
+                sync.flush();
+                Assert.fail("The failure of the datastore should be reported");
+            } catch (DatastoreException expected) {
+            }
+        } finally {
+            datastore.setFailing(false);
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void groupPointsBySeries() throws Exception {
+        ImmutableSortedMap<String, String> otherTags = Tags.create().put("host", "other").build();
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 1000, 10, 1, 10, true, null, 0);
+        writer.write("cpu.value", TAGS, new LongDataPoint(2L, 1L));
+        writer.write("mem.value", TAGS, new LongDataPoint(1L, 2L));
+        writer.write("cpu.value", otherTags, new LongDataPoint(1L, 3L));
+        writer.write("cpu.value", TAGS, new LongDataPoint(1L, 4L));
+        writer.write("mem.value", TAGS, new LongDataPoint(2L, 5L));
+        writer.write("cpu.value", otherTags, new LongDataPoint(2L, 6L));
+//        Never started, the batch is written on stop
+        writer.stop();
+
+        Assert.assertEquals(6, datastore.size());
+        long[] values = {4, 1, 2, 5, 3, 6};
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(values[i], ((LongDataPoint) datastore.getRows().get(i).dataPoint).getValue());
+        }
+        Assert.assertEquals(otherTags, datastore.getRows().get(4).tags);
+    }
+}
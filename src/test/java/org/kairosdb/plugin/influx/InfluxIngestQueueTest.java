@@ -0,0 +1,184 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InfluxIngestQueueTest {
+
+    private InMemoryDatastore datastore;
+    private InfluxBatchWriter writer;
+    private InfluxIngester ingester;
+
+    @Before
+    public void setUp() throws Exception {
+        datastore = new InMemoryDatastore();
+//        Points written in the order they are ingested
+        writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 60000, 1, 10, false, null, 0);
+        ingester = new InfluxIngester(writer, ".", 1000, 1024);
+    }
+
+    private static void offer(InfluxIngestQueue queue, int value) {
+        queue.offer(ChannelBuffers.wrappedBuffer(("test value=" + value + "i").getBytes(Charsets.UTF_8)));
+    }
+
+    private List<Long> writtenValues() {
+        List<Long> values = new ArrayList<Long>();
+        for (InMemoryDatastore.Row row : datastore.getRows()) {
+            values.add(row.dataPoint.getLongValue());
+        }
+        return values;
+    }
+
+    @Test
+    public void ringBufferIsBoundedAndOrdered() {
+        MpmcRingBuffer<Integer> buffer = new MpmcRingBuffer<Integer>(3);
+        Assert.assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(buffer.offer(i));
+        }
+        Assert.assertFalse(buffer.offer(4));
+        Assert.assertEquals(4, buffer.size());
+        Assert.assertEquals(Integer.valueOf(0), buffer.poll());
+        Assert.assertTrue(buffer.offer(4));
+        for (int i = 1; i < 5; i++) {
+            Assert.assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        Assert.assertNull(buffer.poll());
+        Assert.assertTrue(buffer.isEmpty());
+
+        buffer = new MpmcRingBuffer<Integer>(1);
+        Assert.assertEquals(2, buffer.capacity());
+        Assert.assertTrue(buffer.offer(0));
+        Assert.assertTrue(buffer.offer(1));
+        Assert.assertFalse(buffer.offer(2));
+    }
+
+    @Test
+    public void ringBufferConcurrentProducersAndConsumers() throws Exception {
+        final MpmcRingBuffer<Long> buffer = new MpmcRingBuffer<Long>(64);
+        final int producers = 4;
+        final int perProducer = 100000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 1; i <= perProducer; i++) {
+                        while (!buffer.offer(i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }));
+        }
+        for (int c = 0; c < 2; c++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (done.getCount() > 0 || !buffer.isEmpty()) {
+                        Long value = buffer.poll();
+                        if (value != null) {
+                            sum.addAndGet(value);
+                            count.incrementAndGet();
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60000);
+        }
+
+        Assert.assertEquals(producers * perProducer, count.get());
+        Assert.assertEquals(producers * ((long) perProducer * (perProducer + 1) / 2), sum.get());
+    }
+
+    @Test
+    public void dropNewest() throws Exception {
+        InfluxIngestQueue queue = new InfluxIngestQueue(ingester, 4, 1, InfluxIngestQueue.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            offer(queue, i);
+        }
+        Assert.assertEquals(4, queue.getDepth());
+        Assert.assertEquals(2, ingester.getMetrics().resetDroppedLines());
+
+        queue.start();
+        queue.stop();
+        writer.stop();
+        Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L), writtenValues());
+    }
+
+    @Test
+    public void dropOldest() throws Exception {
+        InfluxIngestQueue queue = new InfluxIngestQueue(ingester, 4, 1, InfluxIngestQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            offer(queue, i);
+        }
+        Assert.assertEquals(2, ingester.getMetrics().resetDroppedLines());
+
+        queue.start();
+        queue.stop();
+        writer.stop();
+        Assert.assertEquals(Arrays.asList(2L, 3L, 4L, 5L), writtenValues());
+    }
+
+    @Test
+    public void blockUntilWorkersMakeRoom() throws Exception {
+        final InfluxIngestQueue queue = new InfluxIngestQueue(ingester, 2, 1, InfluxIngestQueue.OverflowPolicy.BLOCK);
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 3; i++) {
+                    offer(queue, i);
+                }
+            }
+        });
+        receiver.start();
+        receiver.join(200);
+        Assert.assertTrue(receiver.isAlive());
+
+        queue.start();
+        receiver.join(5000);
+        Assert.assertFalse(receiver.isAlive());
+        queue.stop();
+        writer.stop();
+        Assert.assertEquals(3, datastore.size());
+        Assert.assertEquals(0, ingester.getMetrics().resetDroppedLines());
+    }
+
+    @Test
+    public void datagramsAreSplitIntoLines() throws Exception {
+        InfluxIngestQueue queue = new InfluxIngestQueue(ingester, 2, 1, InfluxIngestQueue.OverflowPolicy.DROP_NEWEST);
+        offer(queue, 0);
+        queue.offer(ChannelBuffers.wrappedBuffer("test value=1i\r\n\ntest value=2i 1\ntest value=3i".getBytes(Charsets.UTF_8)),
+                Precision.SECONDS, 42L);
+        queue.offer(ChannelBuffers.wrappedBuffer("test value=4i\ntest value=5i\n".getBytes(Charsets.UTF_8)));
+        Assert.assertEquals(2, ingester.getMetrics().resetDroppedLines());
+
+        queue.start();
+        queue.stop();
+        writer.stop();
+        Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L), writtenValues());
+        Assert.assertEquals(42L, datastore.getRows().get(1).dataPoint.getTimestamp());
+        Assert.assertEquals(1000L, datastore.getRows().get(2).dataPoint.getTimestamp());
+    }
+}
@@ -0,0 +1,81 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPointSet;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.plugin.influx.cardinality.CardinalityGuard;
+import org.kairosdb.plugin.influx.fieldtype.FieldTypeRegistry;
+import org.kairosdb.plugin.influx.ratelimit.SenderLimit;
+import org.kairosdb.plugin.influx.ratelimit.SenderRateLimiter;
+import org.kairosdb.plugin.influx.rollup.RollupRule;
+import org.kairosdb.plugin.influx.rollup.RollupStage;
+import org.kairosdb.plugin.influx.spool.DiskSpool;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class InfluxMetricReporterTest {
+
+    private InfluxIngester ingester;
+    private InfluxMetricReporter reporter;
+
+    @Before
+    public void setUp() throws Exception {
+        KairosDatastore datastore = InMemoryDatastore.kairosDatastore(new InMemoryDatastore());
+        InfluxBatchWriter writer = new InfluxBatchWriter(datastore, 1000, 60000, 1, 10);
+        InfluxMetrics metrics = new InfluxMetrics();
+        DiskSpool spool = new DiskSpool(datastore, metrics, (File) null, 0, 0, 1);
+        RollupStage rollup = new RollupStage(writer, metrics, ".", Collections.<RollupRule>emptyList(), 0, 1);
+        ingester = new InfluxIngester(writer, metrics, rollup, ParseOptions.DEFAULT, ".", 1000, 1024);
+        InfluxIngestQueue queue = new InfluxIngestQueue(ingester, 16, 1, InfluxIngestQueue.OverflowPolicy.DROP_NEWEST);
+        SenderRateLimiter rateLimiter = new SenderRateLimiter(metrics, 0, 0, Collections.<SenderLimit>emptyList(), 1000, 1, 1000);
+        reporter = new InfluxMetricReporter(metrics, ingester, writer, queue, rollup, spool, rateLimiter,
+                new CardinalityGuard(metrics, 0, CardinalityGuard.Policy.REJECT, 1),
+                new FieldTypeRegistry(metrics, ".", 0, FieldTypeRegistry.Booleans.DROP), "localhost");
+    }
+
+    private int ingest(String line) throws Exception {
+        return ingester.ingest(ChannelBuffers.wrappedBuffer(line.getBytes(Charsets.UTF_8)), true);
+    }
+
+    private static long value(List<DataPointSet> sets, String name, String tag, String tagValue) {
+        for (DataPointSet set : sets) {
+            if (set.getName().equals(InfluxMetricReporter.PREFIX + name)
+                    && (tag == null || tagValue.equals(set.getTags().get(tag)))) {
+                Assert.assertEquals("localhost", set.getTags().get("host"));
+                return set.getDataPoints().get(0).getLongValue();
+            }
+        }
+        throw new AssertionError("Metric " + name + " not reported");
+    }
+
+    @Test
+    public void countLinesPointsAndErrors() throws Exception {
+        Assert.assertEquals(2, ingest("cpu,host=a user=1,system=2 1471122447000000000"));
+        Assert.assertEquals(2, ingest("cpu,host=a user=3,system=4 1471122448000000000"));
+        Assert.assertEquals(0, ingest(""));
+        Assert.assertEquals(-1, ingest("cpu,host=a"));
+        Assert.assertEquals(-1, ingest("cpu,host=a value=\"unclosed"));
+
+        List<DataPointSet> sets = reporter.getMetrics(1000L);
+        Assert.assertEquals(5, value(sets, "lines_received", null, null));
+        Assert.assertEquals(4, value(sets, "points_written", null, null));
+        Assert.assertEquals(1, value(sets, "empty_lines", null, null));
+        Assert.assertEquals(1, value(sets, "fieldless_lines", null, null));
+        Assert.assertEquals(1, value(sets, "parse_errors", "reason", "syntax"));
+        Assert.assertEquals(0, value(sets, "parse_errors", "reason", "other"));
+        Assert.assertEquals(3, value(sets, "series_cache_hits", null, null));
+        Assert.assertEquals(1, value(sets, "series_cache_misses", null, null));
+        Assert.assertTrue(value(sets, "parse_time", "quantile", "max") >= value(sets, "parse_time", "quantile", "p50"));
+
+//        Counts are the ones since the previous report
+        sets = reporter.getMetrics(2000L);
+        Assert.assertEquals(0, value(sets, "lines_received", null, null));
+        Assert.assertEquals(0, value(sets, "series_cache_hits", null, null));
+    }
+}
@@ -0,0 +1,29 @@
+package org.kairosdb.plugin.influx;
+
+import com.google.common.base.Charsets;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kairosdb.util.Tags;
+
+public class InfluxSeriesTest {
+
+    @Test
+    public void addFieldOncePerKey() {
+        InfluxSeries series = new InfluxSeries("cpu", Tags.create().put("host", "a").build(), ".");
+        byte[] line = "cpu,host=a usage_idle=1,usage_user=2".getBytes(Charsets.UTF_8);
+        int from = line.length - "usage_idle=1,usage_user=2".length();
+        int to = from + "usage_idle".length();
+
+//        Two ingest workers both missing the new field of the series
+        Assert.assertNull(series.getField(line, from, to, 0));
+        InfluxSeries.Field first = series.addField(line, from, to, "usage_idle");
+        InfluxSeries.Field second = series.addField(line, from, to, "usage_idle");
+        Assert.assertSame(first, second);
+
+        int userFrom = to + "=1,".length();
+        InfluxSeries.Field user = series.addField(line, userFrom, userFrom + "usage_user".length(), "usage_user");
+        Assert.assertNotSame(first, user);
+        Assert.assertSame(user, series.getField(line, userFrom, userFrom + "usage_user".length(), 0));
+        Assert.assertSame(first, series.getField(line, from, to, 0));
+    }
+}
@@ -0,0 +1,127 @@
+package org.kairosdb.plugin.influx.cardinality;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.ParseOptions;
+import org.kairosdb.util.Tags;
+
+public class CardinalityGuardTest {
+
+    private final InfluxMetrics metrics = new InfluxMetrics();
+
+    private static ImmutableSortedMap<String, String> tags(String host, String request) {
+        ImmutableSortedMap.Builder<String, String> builder = Tags.create().put("host", host);
+        if (request != null) {
+            builder.put("request", request);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void estimateCardinality() {
+        for (int count : new int[]{10, 1000, 100000}) {
+            HyperLogLog sketch = new HyperLogLog(12);
+            for (int i = 0; i < count; i++) {
+                ImmutableSortedMap<String, String> tags = tags("server" + i, null);
+//                Duplicates don't count
+                sketch.add(CardinalityGuard.hash("cpu", tags));
+                sketch.add(CardinalityGuard.hash("cpu", tags));
+            }
+            Assert.assertEquals(count, sketch.estimate(), count * 0.05);
+        }
+    }
+
+    @Test
+    public void rejectNewSeriesOverTheLimit() {
+        CardinalityGuard guard = new CardinalityGuard(metrics, 100, CardinalityGuard.Policy.REJECT, 1000);
+        for (int i = 0; i < 200; i++) {
+            guard.admit("cpu", tags("server" + i, null));
+        }
+        long cardinality = guard.getCardinalities().get("cpu");
+        Assert.assertTrue(cardinality >= 100 && cardinality < 110);
+        Assert.assertTrue(metrics.resetRejectedSeries() > 90);
+
+//        Series admitted before the limit still are, the other measurements have their own limit
+        Assert.assertNotNull(guard.admit("cpu", tags("server0", null)));
+        Assert.assertNull(guard.admit("cpu", tags("server199", null)));
+        Assert.assertNotNull(guard.admit("mem", tags("server199", null)));
+    }
+
+    @Test
+    public void stripTagsWithTheMostValues() {
+        CardinalityGuard guard = new CardinalityGuard(metrics, 50, CardinalityGuard.Policy.STRIP, 1000);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(guard.admit("http", tags("server" + i, null)));
+        }
+        for (int i = 0; i < 100; i++) {
+            guard.admit("http", tags("server" + (i % 10), "req" + i));
+        }
+
+        ImmutableSortedMap<String, String> stripped = guard.admit("http", tags("server3", "req1000"));
+        Assert.assertEquals(tags("server3", null), stripped);
+        Assert.assertNull(guard.admit("http", tags("server10", "req1001")));
+        Assert.assertTrue(metrics.resetStrippedSeries() > 0);
+        Assert.assertEquals(1, metrics.resetRejectedSeries());
+    }
+
+    @Test
+    public void countOnlyRememberedSeries() {
+        CardinalityGuard guard = new CardinalityGuard(metrics, 1000, CardinalityGuard.Policy.REJECT, 16);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(guard.admit("cpu", tags("server" + i, null)));
+        }
+        long unremembered = metrics.resetUnrememberedSeries();
+        Assert.assertTrue(unremembered >= 84);
+        Assert.assertEquals(100 - unremembered, guard.getCardinalities().get("cpu"), 1);
+        Assert.assertEquals(0, metrics.resetRejectedSeries());
+    }
+
+    @Test
+    public void rejectSeriesOfTooManyMeasurements() {
+        CardinalityGuard guard = new CardinalityGuard(metrics, 10, CardinalityGuard.Policy.REJECT, 100000);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertNotNull(guard.admit("m" + i, tags("server", null)));
+        }
+        Assert.assertNull(guard.admit("m10000", tags("server", null)));
+        Assert.assertEquals(1, metrics.resetRejectedSeries());
+
+//        Measurements already tracked still get new series
+        Assert.assertNotNull(guard.admit("m0", tags("server1", null)));
+    }
+
+    @Test
+    public void skipRejectedLines() throws Exception {
+        InMemoryDatastore datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 60000, 1, 10);
+        writer.stop();
+        CardinalityGuard guard = new CardinalityGuard(metrics, 2, CardinalityGuard.Policy.STRIP, 1000);
+        InfluxIngester ingester = new InfluxIngester(writer, metrics, null, ParseOptions.DEFAULT.withGuard(guard), ".",
+                1000, 1024);
+
+        Assert.assertEquals(1, ingest(ingester, "http,host=a value=1i"));
+        Assert.assertEquals(1, ingest(ingester, "http,host=b value=1i"));
+        Assert.assertEquals(0, ingest(ingester, "http,host=c value=1i"));
+        Assert.assertEquals(1, ingest(ingester, "http,host=a,request=1 value=1i"));
+//        Known series don't go through the guard again
+        Assert.assertEquals(1, ingest(ingester, "http,host=a,request=1 value=2i"));
+        Assert.assertEquals(1, ingest(ingester, "http,host=a value=3i"));
+
+        Assert.assertEquals(5, datastore.size());
+        for (InMemoryDatastore.Row row : datastore.getRows()) {
+            Assert.assertFalse(row.tags.containsKey("request"));
+        }
+        Assert.assertEquals(1, metrics.resetRejectedSeries());
+        Assert.assertEquals(1, metrics.resetStrippedSeries());
+    }
+
+    private static int ingest(InfluxIngester ingester, String line) {
+        return ingester.ingest(ChannelBuffers.wrappedBuffer(line.getBytes(Charsets.UTF_8)));
+    }
+}
@@ -0,0 +1,101 @@
+package org.kairosdb.plugin.influx.fieldtype;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.ParseOptions;
+
+public class FieldTypeRegistryTest {
+
+    private InMemoryDatastore datastore;
+
+    private InfluxIngester ingester(InfluxMetrics metrics, FieldTypeRegistry types, int seriesCacheSize)
+            throws Exception {
+        datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 10, 1, 10);
+//        Never started, points are written right away
+        writer.stop();
+        return new InfluxIngester(writer, metrics, null, ParseOptions.DEFAULT.withTypes(types), ".",
+                seriesCacheSize, 1024);
+    }
+
+    @Test
+    public void rejectTypeConflicts() throws Exception {
+        for (int seriesCacheSize : new int[]{1000, 0}) {
+            InfluxMetrics metrics = new InfluxMetrics();
+            FieldTypeRegistry types = new FieldTypeRegistry(metrics, ".", 1000, FieldTypeRegistry.Booleans.LONG);
+            InfluxIngester ingester = ingester(metrics, types, seriesCacheSize);
+
+            Assert.assertEquals(1, ingest(ingester, "cpu,host=a v=1i"));
+            Assert.assertEquals(0, ingest(ingester, "cpu,host=a v=1.5"));
+            Assert.assertEquals(0, ingest(ingester, "cpu,host=b v=2.5"));
+            Assert.assertEquals(2, ingest(ingester, "cpu,host=a v=2i,w=1.5"));
+//            Known types of a hot series
+            Assert.assertEquals(2, ingest(ingester, "cpu,host=a v=3i,w=2.5"));
+            Assert.assertEquals(0, ingest(ingester, "cpu,host=a v=\"s\",w=t"));
+            Assert.assertEquals(1, ingest(ingester, "cpu,host=a v=t,w=3.5"));
+
+            Assert.assertEquals(FieldType.LONG, types.getType("cpu.v"));
+            Assert.assertEquals(FieldType.DOUBLE, types.getType("cpu.w"));
+            Assert.assertEquals(5, metrics.resetFieldTypeConflicts());
+            Assert.assertEquals(6, datastore.size());
+        }
+    }
+
+    @Test
+    public void invalidValuesDoNotEstablishTypes() throws Exception {
+        InfluxMetrics metrics = new InfluxMetrics();
+        FieldTypeRegistry types = new FieldTypeRegistry(metrics, ".", 1000, FieldTypeRegistry.Booleans.LONG);
+        InfluxIngester ingester = ingester(metrics, types, 1000);
+
+        Assert.assertEquals(-1, ingest(ingester, "mem x=tiny"));
+        Assert.assertNull(types.getType("mem.x"));
+        Assert.assertEquals(1, ingest(ingester, "mem x=1.5"));
+//        Invalid value of the right type
+        Assert.assertEquals(-1, ingest(ingester, "mem x=1.2.3"));
+        Assert.assertEquals(0, metrics.resetFieldTypeConflicts());
+    }
+
+    @Test
+    public void writeBooleansAsLongs() throws Exception {
+        InfluxMetrics metrics = new InfluxMetrics();
+        InfluxIngester ingester = ingester(metrics, new FieldTypeRegistry(metrics, ".", 0, FieldTypeRegistry.Booleans.LONG), 1000);
+
+        Assert.assertEquals(6, ingest(ingester, "up a=t,b=F,c=true,d=False,e=TRUE,f=false,g=tRUE"));
+        Assert.assertEquals(6, datastore.size());
+        long[] values = {1, 0, 1, 0, 1, 0};
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(values[i], ((LongDataPoint) datastore.getRows().get(i).dataPoint).getValue());
+        }
+
+        ingester = ingester(metrics, new FieldTypeRegistry(metrics, ".", 0, FieldTypeRegistry.Booleans.DROP), 1000);
+        Assert.assertEquals(1, ingest(ingester, "up a=t,b=1i"));
+    }
+
+    @Test
+    public void droppedBooleansDoNotEstablishTypes() throws Exception {
+        for (int seriesCacheSize : new int[]{1000, 0}) {
+            InfluxMetrics metrics = new InfluxMetrics();
+            FieldTypeRegistry types = new FieldTypeRegistry(metrics, ".", 1000, FieldTypeRegistry.Booleans.DROP);
+            InfluxIngester ingester = ingester(metrics, types, seriesCacheSize);
+
+            Assert.assertEquals(1, ingest(ingester, "up a=t,b=1.5"));
+            Assert.assertNull(types.getType("up.a"));
+            Assert.assertEquals(2, ingest(ingester, "up a=1i,b=2.5"));
+            Assert.assertEquals(FieldType.LONG, types.getType("up.a"));
+            Assert.assertEquals(1, ingest(ingester, "up a=f,b=3.5"));
+            Assert.assertEquals(0, metrics.resetFieldTypeConflicts());
+            Assert.assertEquals(4, datastore.size());
+        }
+    }
+
+    private static int ingest(InfluxIngester ingester, String line) {
+        return ingester.ingest(ChannelBuffers.wrappedBuffer(line.getBytes(Charsets.UTF_8)));
+    }
+}
@@ -0,0 +1,158 @@
+package org.kairosdb.plugin.influx.http;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+public class InfluxHttpServerTest {
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private InMemoryDatastore datastore;
+    private InfluxBatchWriter writer;
+    private InfluxHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        datastore = new InMemoryDatastore();
+        writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 10, 1, 10);
+        server = new InfluxHttpServer(new InfluxIngester(writer, ".", 1000, 1024), 0, "127.0.0.1", MAX_LINE_LENGTH,
+                2, "ns");
+        writer.start();
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        writer.stop();
+    }
+
+    @Test
+    public void writeReturnsNoContentOncePointsAreWritten() throws Exception {
+        Assert.assertEquals(204, post("/write", bytes("cpu,host=a usage_idle=1i 1476348394000000000\n" +
+                "cpu,host=b usage_idle=2i 1476348395000000000"), null, false));
+
+        // The response is only sent once the points were written, no need to wait for them
+        Assert.assertEquals(2, datastore.size());
+        Assert.assertEquals("cpu.usage_idle", datastore.getRows().get(0).metricName);
+        Assert.assertEquals(1476348395000L, datastore.getRows().get(1).dataPoint.getTimestamp());
+    }
+
+    @Test
+    public void gzippedBody() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(bytes("cpu,host=a usage_idle=1i 1476348394000000000\n"));
+        gzip.close();
+
+        Assert.assertEquals(204, post("/write", compressed.toByteArray(), "gzip", false));
+        Assert.assertEquals(1, datastore.size());
+        Assert.assertEquals(1, datastore.getRows().get(0).dataPoint.getLongValue());
+    }
+
+    @Test
+    public void chunkedBody() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        while (lines.length() < 200000) {
+            lines.append("cpu,host=web-").append(count).append(" usage_idle=").append(count)
+                    .append("i 1476348394000000000\n");
+            count++;
+        }
+
+        Assert.assertEquals(204, post("/write", bytes(lines.toString()), null, true));
+        Assert.assertEquals(count, datastore.size());
+    }
+
+    @Test
+    public void precisionParameter() throws Exception {
+        Assert.assertEquals(204, post("/write?precision=s", bytes("cpu,host=a usage_idle=1i 1476348394\n"), null,
+                false));
+        Assert.assertEquals(1476348394000L, datastore.getRows().get(0).dataPoint.getTimestamp());
+    }
+
+    @Test
+    public void unknownPrecisionIsBadRequest() throws Exception {
+        Assert.assertEquals(400, post("/write?precision=fortnight", bytes("cpu,host=a usage_idle=1i 1476348394\n"),
+                null, false));
+        Assert.assertEquals(0, datastore.size());
+    }
+
+    @Test
+    public void invalidLineIsBadRequest() throws Exception {
+        Assert.assertEquals(400, post("/write", bytes("cpu,host=a usage_idle=1i 1476348394000000000\n" +
+                "not a line protocol line\n"), null, false));
+        // The valid lines are still written, as with InfluxDB's partial writes
+        Assert.assertEquals(1, datastore.size());
+    }
+
+    @Test
+    public void tooLongLineIsRequestEntityTooLarge() throws Exception {
+        StringBuilder tooLong = new StringBuilder("cpu,host=");
+        while (tooLong.length() < 2 * MAX_LINE_LENGTH) {
+            tooLong.append('x');
+        }
+        tooLong.append(" usage_idle=1i 1476348394000000000\n");
+
+        Assert.assertEquals(413, post("/write", bytes(tooLong.toString()), null, false));
+        Assert.assertEquals(0, datastore.size());
+    }
+
+    @Test
+    public void datastoreFailureIsInternalServerError() throws Exception {
+        datastore.setFailing(true);
+        Assert.assertEquals(500, post("/write", bytes("cpu,host=a usage_idle=1i 1476348394000000000\n"), null,
+                false));
+    }
+
+    @Test
+    public void ping() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) url("/ping").openConnection();
+        try {
+            Assert.assertEquals(204, connection.getResponseCode());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private int post(String path, byte[] body, String encoding, boolean chunked) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) url(path).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            if (encoding != null) {
+                connection.setRequestProperty("Content-Encoding", encoding);
+            }
+            if (chunked) {
+                connection.setChunkedStreamingMode(4096);
+            } else {
+                connection.setFixedLengthStreamingMode(body.length);
+            }
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private URL url(String path) throws Exception {
+        return new URL("http", "127.0.0.1", server.getLocalAddress().getPort(), path);
+    }
+
+    private static byte[] bytes(String data) {
+        return data.getBytes(Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,92 @@
+package org.kairosdb.plugin.influx.importer;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.Precision;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+public class BulkImporterTest {
+
+    private static final int LINES = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryDatastore datastore;
+    private InfluxBatchWriter writer;
+    private BulkImporter importer;
+
+    @Before
+    public void setUp() throws Exception {
+        datastore = new InMemoryDatastore();
+        writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 100, 10, 2, 10);
+        writer.start();
+        InfluxIngester ingester = new InfluxIngester(writer, ".", 1000, 1024);
+//        Chunks much smaller than the files, and than some of the lines
+        importer = new BulkImporter(ingester, Precision.SECONDS, 4, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        importer.close();
+    }
+
+    private File write(String name, boolean gzip) throws Exception {
+        File file = folder.newFile(name);
+        try (OutputStream out = gzip ? new GZIPOutputStream(new FileOutputStream(file)) : new FileOutputStream(file)) {
+            for (int i = 0; i < LINES; i++) {
+                String line = "cpu,host=server" + (i % 10) + " idle=" + i + "i " + (1500000000 + i) + "\n";
+                if (i % 1000 == 0) {
+                    line = "cpu,host=" + new String(new char[1500]).replace('\0', 'x') + " idle=" + i + "i "
+                            + (1500000000 + i) + "\r\n\n";
+                }
+                out.write(line.getBytes(Charsets.UTF_8));
+            }
+//            Last line without newline, and an invalid one
+            out.write("cpu,host=server0 idle=\nmem,host=server0 used=1i 1500000000".getBytes(Charsets.UTF_8));
+        }
+        return file;
+    }
+
+    private void assertImported(File file) throws Exception {
+        importer.importFile(file);
+        writer.stop();
+
+        Assert.assertEquals(LINES + 1, datastore.size());
+        Assert.assertEquals(1, importer.getInvalidLines());
+        Assert.assertEquals(file.length(), importer.getBytesRead());
+        Assert.assertEquals(0, importer.getFailedChunks());
+
+        Set<Long> timestamps = new HashSet<Long>();
+        for (InMemoryDatastore.Row row : datastore.getRows()) {
+            timestamps.add(row.dataPoint.getTimestamp());
+        }
+        Assert.assertEquals(LINES, timestamps.size());
+        Assert.assertTrue(timestamps.contains(1500000000000L));
+        Assert.assertTrue(timestamps.contains((1500000000L + LINES - 1) * 1000));
+    }
+
+    @Test
+    public void importPlainFile() throws Exception {
+        assertImported(write("metrics.lp", false));
+    }
+
+    @Test
+    public void importGzippedFile() throws Exception {
+        assertImported(write("metrics.lp.gz", true));
+    }
+}
@@ -0,0 +1,182 @@
+package org.kairosdb.plugin.influx.ratelimit;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.InetAddresses;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.Precision;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SenderRateLimiterTest {
+
+    private static final InetAddress HOST = InetAddresses.forString("192.168.1.10");
+    private static final InetAddress OTHER_HOST = InetAddresses.forString("192.168.1.11");
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final InfluxMetrics metrics = new InfluxMetrics();
+
+    private SenderRateLimiter limiter(long linesPerSecond, long pointsPerSecond, String limits) {
+        return new SenderRateLimiter(metrics, linesPerSecond, pointsPerSecond, SenderLimit.parseLimits(limits), 1000,
+                64, 1000);
+    }
+
+    @Test
+    public void disabledWithoutLimits() {
+        Assert.assertFalse(limiter(0, 0, "").isEnabled());
+        Assert.assertTrue(limiter(0, 0, "10.0.0.0/8=10:0").isEnabled());
+    }
+
+    @Test
+    public void limitLines() {
+        SenderRateLimiter limiter = limiter(10, 0, "");
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(limiter.acquire(HOST, 1, now));
+        }
+        Assert.assertNull(limiter.acquire(HOST, 1, now));
+        Assert.assertNull(limiter.acquire(HOST, 3, now));
+        Assert.assertEquals(4, metrics.resetRateLimitedLines());
+
+//        Other senders have their own bucket
+        Assert.assertNotNull(limiter.acquire(OTHER_HOST, 10, now));
+
+//        One line every 100ms
+        Assert.assertNotNull(limiter.acquire(HOST, 1, now + 100 * MS));
+        Assert.assertNull(limiter.acquire(HOST, 1, now + 150 * MS));
+
+//        A datagram larger than the burst goes through when the bucket is full
+        Assert.assertNotNull(limiter.acquire(HOST, 50, now + 2000 * MS));
+        Assert.assertNull(limiter.acquire(HOST, 1, now + 2100 * MS));
+
+        Assert.assertEquals(1, limiter.resetLimitedSenders());
+        Assert.assertEquals(0, limiter.resetLimitedSenders());
+    }
+
+    @Test
+    public void refuseSendersInPointsDebt() {
+        SenderRateLimiter limiter = limiter(0, 100, "");
+        Sender sender = limiter.acquire(HOST, 1, 0);
+        Assert.assertNotNull(sender);
+        sender.chargePoints(300, 0);
+
+//        300 points at 100 points/s, up to 1s of burst
+        Assert.assertNull(limiter.acquire(HOST, 1, 1500 * MS));
+        Assert.assertNotNull(limiter.acquire(HOST, 1, 2000 * MS));
+    }
+
+    @Test
+    public void mostSpecificCidrApplies() {
+        SenderRateLimiter limiter = limiter(1, 0, "192.168.0.0/16=5:0, 192.168.1.10=0:0, 192.168.1.0/28=2:0");
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(limiter.acquire(HOST, 1, 0));
+        }
+        Assert.assertNotNull(limiter.acquire(OTHER_HOST, 2, 0));
+        Assert.assertNull(limiter.acquire(OTHER_HOST, 1, 0));
+
+        InetAddress outside = InetAddresses.forString("192.168.1.200");
+        Assert.assertNotNull(limiter.acquire(outside, 5, 0));
+        Assert.assertNull(limiter.acquire(outside, 1, 0));
+
+        InetAddress elsewhere = InetAddresses.forString("10.0.0.1");
+        Assert.assertNotNull(limiter.acquire(elsewhere, 1, 0));
+        Assert.assertNull(limiter.acquire(elsewhere, 1, 0));
+
+        InetAddress ipv6 = InetAddresses.forString("2001:db8::1");
+        Assert.assertNotNull(limiter.acquire(ipv6, 1, 0));
+        Assert.assertNull(limiter.acquire(ipv6, 1, 0));
+    }
+
+    @Test
+    public void evictIdleSenders() {
+        SenderRateLimiter limiter = new SenderRateLimiter(metrics, 10, 0, Collections.<SenderLimit>emptyList(), 1000,
+                8, 1000);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(InetAddresses.forString("10.0.0." + i), 1, i * MS);
+        }
+        Assert.assertEquals(8, limiter.getSenderCount());
+
+        limiter.acquire(HOST, 1, 1500 * MS);
+        limiter.evictIdle(1500 * MS);
+        Assert.assertEquals(1, limiter.getSenderCount());
+    }
+
+    @Test
+    public void churningSendersShareABucket() {
+        SenderRateLimiter limiter = new SenderRateLimiter(metrics, 10, 0, Collections.<SenderLimit>emptyList(), 1000,
+                8, 1000);
+        for (int i = 0; i < 8; i++) {
+            Assert.assertNotNull(limiter.acquire(InetAddresses.forString("10.0.0." + i), 1, 0));
+        }
+
+//        Once the table is full of active senders, new addresses don't get a full bucket each
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (limiter.acquire(InetAddresses.forString("10.0.1." + i), 5, 100 * MS) != null) {
+                accepted++;
+            }
+        }
+        Assert.assertEquals(2, accepted);
+        Assert.assertEquals(8, limiter.getSenderCount());
+        Assert.assertEquals(1, limiter.resetLimitedSenders());
+
+//        The shared bucket refills at the rate of a single sender
+        Assert.assertNull(limiter.acquire(InetAddresses.forString("10.0.2.1"), 5, 200 * MS));
+        Assert.assertNotNull(limiter.acquire(InetAddresses.forString("10.0.2.2"), 5, 600 * MS));
+
+//        Idle senders make room for new ones
+        Assert.assertNotNull(limiter.acquire(HOST, 10, 1500 * MS));
+        Assert.assertNull(limiter.acquire(HOST, 1, 1500 * MS));
+        Assert.assertEquals(8, limiter.getSenderCount());
+    }
+
+    @Test
+    public void overflowSendersReuseTheSharedBucket() {
+        SenderRateLimiter limiter = new SenderRateLimiter(metrics, 0, 0,
+                SenderLimit.parseLimits("10.0.1.0/24=1000:0"), 1000, 8, 1000);
+        for (int i = 0; i < 8; i++) {
+            Assert.assertNotNull(limiter.acquire(InetAddresses.forString("10.0.0." + i), 1, 0));
+        }
+
+//        One bucket per limit, the same one for every datagram rather than a new sender each
+        Sender limited = limiter.acquire(InetAddresses.forString("10.0.1.1"), 1, 0);
+        Assert.assertNotNull(limited);
+        Assert.assertSame(limited, limiter.acquire(InetAddresses.forString("10.0.1.2"), 1, 0));
+        Sender unlimited = limiter.acquire(InetAddresses.forString("10.0.2.1"), 1, 0);
+        Assert.assertNotSame(limited, unlimited);
+        Assert.assertSame(unlimited, limiter.acquire(InetAddresses.forString("10.0.2.2"), 1, 0));
+        Assert.assertEquals(8, limiter.getSenderCount());
+    }
+
+    @Test
+    public void chargeParsedPoints() throws Exception {
+        InMemoryDatastore datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 60000, 1, 10);
+        writer.stop();
+        InfluxIngester ingester = new InfluxIngester(writer, ".", 1000, 1024);
+
+        SenderRateLimiter limiter = limiter(0, 2, "");
+        Sender sender = limiter.acquire(HOST, 2, System.nanoTime());
+        Assert.assertNotNull(sender);
+        byte[] lines = "cpu,host=a idle=1,user=2\ncpu,host=b idle=1,user=2\n".getBytes(Charsets.UTF_8);
+        ingester.ingestLines(ChannelBuffers.wrappedBuffer(lines), Precision.NANOSECONDS, 0, sender);
+        Assert.assertEquals(4, datastore.size());
+
+//        4 points at 2 points/s leave the sender 2s in debt, 1s over the burst
+        Assert.assertNull(limiter.acquire(HOST, 1, System.nanoTime()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectInvalidLimit() {
+        List<SenderLimit> limits = SenderLimit.parseLimits("10.0.0.0/8=100");
+        Assert.fail(limits.toString());
+    }
+}
@@ -0,0 +1,136 @@
+package org.kairosdb.plugin.influx.relabel;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.ParseOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class IngestRulesTest {
+
+    private static final List<String> RULES = Arrays.asList(
+            "# telegraf noise",
+            "drop measurement docker_*",
+            "drop measurement swap",
+            "drop field cpu.usage_guest*",
+            "drop tag host_ip  # not needed",
+            "rename tag hostname host",
+            "rename metric diskio.* disk.io.*",
+            "rename metric mem.used mem.used_bytes");
+
+    @Test
+    public void matchMeasurements() {
+        IngestRules rules = new IngestRules(".", RULES);
+        Assert.assertTrue(rules.dropsMeasurement("docker_container_cpu"));
+        Assert.assertTrue(rules.dropsMeasurement("docker_"));
+        Assert.assertFalse(rules.dropsMeasurement("docker"));
+        Assert.assertTrue(rules.dropsMeasurement("swap"));
+        Assert.assertFalse(rules.dropsMeasurement("swap_in"));
+        Assert.assertFalse(rules.dropsMeasurement("cpu"));
+    }
+
+    @Test
+    public void relabel() {
+        IngestRules rules = new IngestRules(".", RULES);
+        Assert.assertNull(rules.tagKey("host_ip"));
+        Assert.assertEquals("host", rules.tagKey("hostname"));
+        Assert.assertEquals("cpu", rules.tagKey("cpu"));
+
+        Assert.assertNull(rules.metricName("cpu", "usage_guest"));
+        Assert.assertNull(rules.metricName("cpu", "usage_guest_nice"));
+        Assert.assertEquals("cpu.usage_idle", rules.metricName("cpu", "usage_idle"));
+        Assert.assertEquals("disk.io.reads", rules.metricName("diskio", "reads"));
+        Assert.assertEquals("mem.used_bytes", rules.metricName("mem", "used"));
+        Assert.assertEquals("mem.used_percent", rules.metricName("mem", "used_percent"));
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        IngestRules rules = new IngestRules(".", Arrays.asList("rename metric a.* x.*", "rename metric a.b* y*",
+                "rename metric a.bc z"));
+        Assert.assertEquals("x.c", rules.metricName("a", "c"));
+        Assert.assertEquals("y.c", rules.metricName("a", "b.c"));
+        Assert.assertEquals("z", rules.metricName("a", "bc"));
+        Assert.assertEquals("ycd", rules.metricName("a", "bcd"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRule() {
+        new IngestRules(".", Collections.singletonList("drop metric cpu"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void renameMixingPrefixAndExact() {
+        new IngestRules(".", Collections.singletonList("rename metric cpu.* cpu"));
+    }
+
+    @Test
+    public void ingestWithRules() throws Exception {
+        ingestWithRules(1000);
+        ingestWithRules(0);
+    }
+
+    private void ingestWithRules(int seriesCacheSize) throws Exception {
+        InMemoryDatastore datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 60000, 1, 10);
+        InfluxMetrics metrics = new InfluxMetrics();
+        InfluxIngester ingester = new InfluxIngester(writer, metrics, null,
+                ParseOptions.DEFAULT.withRules(new IngestRules(".", RULES)), ".", seriesCacheSize, 1024);
+
+//        Twice, the second time from the series cache if any
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(0, ingest(ingester, "docker_container_cpu,host=a usage=1 \"unparsed"));
+            Assert.assertEquals(0, ingest(ingester, "cpu,host_ip=10.0.0.1,hostname=a usage_guest=0,usage_guest_nice=0"));
+            Assert.assertEquals(2, ingest(ingester, "cpu,host_ip=10.0.0.1,hostname=a usage_guest=0,usage_idle=99.5,usage_user=0.5"));
+            Assert.assertEquals(1, ingest(ingester, "diskio,name=sda reads=10i"));
+        }
+
+        List<String> written = new ArrayList<String>();
+        for (InMemoryDatastore.Row row : datastore.getRows()) {
+            written.add(row.metricName + row.tags);
+        }
+        Assert.assertEquals(Arrays.asList("cpu.usage_idle{host=a}", "cpu.usage_user{host=a}", "disk.io.reads{name=sda}",
+                "cpu.usage_idle{host=a}", "cpu.usage_user{host=a}", "disk.io.reads{name=sda}"), written);
+        Assert.assertEquals(4, metrics.resetFilteredLines());
+        Assert.assertEquals(6, metrics.resetFilteredFields());
+        Assert.assertEquals(0, metrics.resetFieldlessLines());
+    }
+
+    @Test
+    public void renamedTagCollision() throws Exception {
+        renamedTagCollision(1000);
+        renamedTagCollision(0);
+    }
+
+    private void renamedTagCollision(int seriesCacheSize) throws Exception {
+        InMemoryDatastore datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 60000, 1, 10);
+        InfluxIngester ingester = new InfluxIngester(writer, new InfluxMetrics(), null,
+                ParseOptions.DEFAULT.withRules(new IngestRules(".", RULES)), ".", seriesCacheSize, 1024);
+
+//        The tag of the line wins over the renamed one, whatever their order
+        Assert.assertEquals(1, ingest(ingester, "cpu,host=a,hostname=b usage_idle=1"));
+        Assert.assertEquals(1, ingest(ingester, "cpu,hostname=b,host=a usage_idle=2"));
+        Assert.assertEquals(1, ingest(ingester, "cpu,hostname=b usage_idle=3"));
+
+        List<String> written = new ArrayList<String>();
+        for (InMemoryDatastore.Row row : datastore.getRows()) {
+            written.add(row.metricName + row.tags);
+        }
+        Assert.assertEquals(Arrays.asList("cpu.usage_idle{host=a}", "cpu.usage_idle{host=a}", "cpu.usage_idle{host=b}"),
+                written);
+    }
+
+    private static int ingest(InfluxIngester ingester, String line) throws Exception {
+        return ingester.ingest(ChannelBuffers.wrappedBuffer(line.getBytes(Charsets.UTF_8)), true);
+    }
+}
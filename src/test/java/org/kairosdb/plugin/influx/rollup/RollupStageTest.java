@@ -0,0 +1,194 @@
+package org.kairosdb.plugin.influx.rollup;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.plugin.influx.ParseOptions;
+import org.kairosdb.plugin.influx.Precision;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RollupStageTest {
+
+    private InMemoryDatastore datastore;
+    private InfluxBatchWriter writer;
+    private InfluxMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        datastore = new InMemoryDatastore();
+        writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 60000, 1, 10);
+//        Once stopped, the writer hands the points straight to the datastore
+        writer.stop();
+        metrics = new InfluxMetrics();
+    }
+
+    private InfluxIngester ingester(RollupStage rollup) {
+        return new InfluxIngester(writer, metrics, rollup, ParseOptions.DEFAULT, ".", 1000, 1024);
+    }
+
+    private RollupStage rollup(String rules, int maxSeries) {
+        return new RollupStage(writer, metrics, ".",
+                RollupRule.parseRules(rules, EnumSet.allOf(RollupRule.Aggregate.class)), 1000, maxSeries);
+    }
+
+    private static void ingest(InfluxIngester ingester, String line) throws Exception {
+        Assert.assertTrue(ingester.ingest(ChannelBuffers.wrappedBuffer(line.getBytes(Charsets.UTF_8)), true,
+                Precision.MILLISECONDS, 0) > 0);
+    }
+
+    private Map<String, DataPoint> written() {
+        Map<String, DataPoint> points = new HashMap<String, DataPoint>();
+        for (InMemoryDatastore.Row row : datastore.getRows()) {
+            Assert.assertNull("Written twice: " + row.metricName, points.put(row.metricName, row.dataPoint));
+        }
+        return points;
+    }
+
+    @Test
+    public void parseRules() {
+        List<RollupRule> rules = RollupRule.parseRules(" cpu.*=10s, mem.used=1m:max|last ,",
+                EnumSet.of(RollupRule.Aggregate.SUM));
+        Assert.assertEquals(2, rules.size());
+        Assert.assertTrue(rules.get(0).matches("cpu.usage_idle"));
+        Assert.assertFalse(rules.get(0).matches("cpux"));
+        Assert.assertEquals(10000, rules.get(0).getWindowMs());
+        Assert.assertEquals(EnumSet.of(RollupRule.Aggregate.SUM), rules.get(0).getAggregates());
+        Assert.assertTrue(rules.get(1).matches("mem.used"));
+        Assert.assertFalse(rules.get(1).matches("mem.used_percent"));
+        Assert.assertEquals(60000, rules.get(1).getWindowMs());
+        Assert.assertEquals(EnumSet.of(RollupRule.Aggregate.MAX, RollupRule.Aggregate.LAST), rules.get(1).getAggregates());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRule() {
+        RollupRule.parseRules("cpu.*=10d", EnumSet.allOf(RollupRule.Aggregate.class));
+    }
+
+    @Test
+    public void rollUpMatchingMetrics() throws Exception {
+        RollupStage rollup = rollup("cpu.*=10s", 10);
+        InfluxIngester ingester = ingester(rollup);
+        rollup.flush(11000, false);
+
+        ingest(ingester, "cpu,host=a value=1i 11000");
+        ingest(ingester, "cpu,host=a value=3i 15000");
+        ingest(ingester, "cpu,host=a value=2i 13000");
+        ingest(ingester, "mem,host=a value=5i 11000");
+
+//        Only the metric which isn't rolled up is written until a point past the window and its grace period
+//        is received, or the series is idle for as long
+        rollup.flush(21999, false);
+        Assert.assertEquals(1, datastore.size());
+        Assert.assertEquals(1, rollup.getSeriesCount());
+
+        rollup.flush(22000, false);
+        Map<String, DataPoint> points = written();
+        Assert.assertEquals(6, points.size());
+        Assert.assertEquals(5, points.get("mem.value").getLongValue());
+        Assert.assertEquals(1, points.get("cpu.value.min").getLongValue());
+        Assert.assertEquals(3, points.get("cpu.value.max").getLongValue());
+        Assert.assertEquals(6, points.get("cpu.value.sum").getLongValue());
+        Assert.assertEquals(3, points.get("cpu.value.count").getLongValue());
+        Assert.assertEquals(3, points.get("cpu.value.last").getLongValue());
+        Assert.assertTrue(points.get("cpu.value.max").isLong());
+        Assert.assertEquals(10000, points.get("cpu.value.max").getTimestamp());
+        Assert.assertEquals("a", datastore.getRows().get(1).tags.get("host"));
+        Assert.assertEquals(3, metrics.resetRollupPoints());
+
+//        The window was written, later points are written raw
+        ingest(ingester, "cpu,host=a value=4i 19000");
+        rollup.flush(22000, false);
+        Assert.assertEquals(7, datastore.size());
+        Assert.assertEquals("cpu.value", datastore.getRows().get(6).metricName);
+        Assert.assertEquals(1, metrics.resetRollupLatePoints());
+
+//        Idle series are eventually forgotten
+        rollup.flush(11000 + 3 * 10000 + 1000 + 1, false);
+        Assert.assertEquals(0, rollup.getSeriesCount());
+    }
+
+    @Test
+    public void mixedTypesAndLatePoints() throws Exception {
+        RollupStage rollup = rollup("cpu.*=10s:min|max|sum", 10);
+        InfluxIngester ingester = ingester(rollup);
+
+        ingest(ingester, "cpu value=2i 10000");
+        ingest(ingester, "cpu value=0.5 10001");
+        ingest(ingester, "cpu value=3i 20000");
+//        A third window closes the oldest one, leaving points older than both late
+        ingest(ingester, "cpu value=1i 30000");
+        ingest(ingester, "cpu value=1i 19999");
+        Assert.assertEquals(1, metrics.resetRollupLatePoints());
+
+        Map<String, DataPoint> points = written();
+        Assert.assertEquals(4, points.size());
+        Assert.assertEquals(19999, points.get("cpu.value").getTimestamp());
+        Assert.assertTrue(points.get("cpu.value.sum").isDouble());
+        Assert.assertEquals(2.5, points.get("cpu.value.sum").getDoubleValue(), 0);
+        Assert.assertEquals(0.5, points.get("cpu.value.min").getDoubleValue(), 0);
+        Assert.assertEquals(2, points.get("cpu.value.max").getDoubleValue(), 0);
+
+//        Everything left is written when stopping
+        rollup.stop();
+        Assert.assertEquals(3 * 3 + 1, datastore.size());
+        Assert.assertEquals(30000, datastore.getRows().get(9).dataPoint.getTimestamp());
+    }
+
+    @Test
+    public void windowsAreClosedByEventTime() throws Exception {
+        RollupStage rollup = rollup("cpu.*=10s:count", 10);
+        InfluxIngester ingester = ingester(rollup);
+
+//        A producer lagging far behind the clock still gets its windows filled, across flushes
+        long now = 1000000;
+        rollup.flush(now, false);
+        ingest(ingester, "cpu value=1i 11000");
+        rollup.flush(now += 1000, false);
+        ingest(ingester, "cpu value=1i 15000");
+        rollup.flush(now += 1000, false);
+        Assert.assertEquals(0, datastore.size());
+
+//        The window is written once a point past it and its grace period is received
+        ingest(ingester, "cpu value=1i 21000");
+        rollup.flush(now += 1000, false);
+        Assert.assertEquals(1, datastore.size());
+        Assert.assertEquals(2, datastore.getRows().get(0).dataPoint.getLongValue());
+        Assert.assertEquals(10000, datastore.getRows().get(0).dataPoint.getTimestamp());
+
+//        Points of the same window arriving after it was written aren't lost, but written raw
+        ingest(ingester, "cpu value=7i 19000");
+        Assert.assertEquals(1, metrics.resetRollupLatePoints());
+        Assert.assertEquals(2, datastore.size());
+        Assert.assertEquals("cpu.value", datastore.getRows().get(1).metricName);
+        Assert.assertEquals(7, datastore.getRows().get(1).dataPoint.getLongValue());
+        Assert.assertEquals(3, metrics.resetRollupPoints());
+    }
+
+    @Test
+    public void tooManySeriesAreWrittenRaw() throws Exception {
+        RollupStage rollup = rollup("cpu*=1m", 1);
+        InfluxIngester ingester = ingester(rollup);
+
+        ingest(ingester, "cpu,host=a value=1 60000");
+        ingest(ingester, "cpu,host=b value=2 60000");
+        Assert.assertEquals(1, datastore.size());
+        Assert.assertEquals("cpu.value", datastore.getRows().get(0).metricName);
+        Assert.assertEquals(1, metrics.resetRollupOverflows());
+    }
+
+    @Test
+    public void disabledWithoutRules() {
+        Assert.assertFalse(rollup("", 1).isEnabled());
+    }
+}
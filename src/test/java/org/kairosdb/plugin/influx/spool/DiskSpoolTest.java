@@ -0,0 +1,238 @@
+package org.kairosdb.plugin.influx.spool;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.core.datastore.KairosDatastore;
+import org.kairosdb.core.exception.DatastoreException;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxMetrics;
+import org.kairosdb.util.Tags;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class DiskSpoolTest {
+
+    private static final ImmutableSortedMap<String, String> TAGS = Tags.create().put("host", "test").build();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryDatastore datastore;
+    private KairosDatastore kairosDatastore;
+    private InfluxMetrics metrics;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        datastore = new InMemoryDatastore();
+        kairosDatastore = InMemoryDatastore.kairosDatastore(datastore);
+        metrics = new InfluxMetrics();
+        directory = folder.newFolder("spool");
+    }
+
+    private DiskSpool spool(long segmentSize, long maxSize) {
+        return new DiskSpool(kairosDatastore, metrics, directory, segmentSize, maxSize, 100000);
+    }
+
+    @Test
+    public void spoolWhileDatastoreIsDownThenReplayInOrder() throws Exception {
+        DiskSpool spool = spool(1024, 1024 * 1024);
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 2, 10, 1, 10, spool, 1000);
+        spool.start();
+        writer.start();
+        try {
+            datastore.setFailing(true);
+            for (int i = 0; i < 100; i++) {
+                writer.write("cpu.value", TAGS, new LongDataPoint(i, i));
+            }
+            long spooled = 0;
+            for (long deadline = System.currentTimeMillis() + 5000; spooled < 100 && System.currentTimeMillis() < deadline; ) {
+                spooled += metrics.resetSpooledPoints();
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(100, spooled);
+            Assert.assertTrue(spool.isActive());
+//            Several segments, the series being written in each
+            Assert.assertTrue(directory.listFiles().length > 1);
+
+            datastore.setFailing(false);
+            Assert.assertTrue(datastore.await(100, 10000));
+            List<InMemoryDatastore.Row> rows = datastore.getRows();
+            for (int i = 0; i < 100; i++) {
+                Assert.assertEquals("cpu.value", rows.get(i).metricName);
+                Assert.assertEquals(TAGS, rows.get(i).tags);
+                Assert.assertEquals(i, rows.get(i).dataPoint.getLongValue());
+            }
+            Assert.assertEquals(100, metrics.resetReplayedPoints());
+
+            for (long deadline = System.currentTimeMillis() + 5000; spool.isActive() && System.currentTimeMillis() < deadline; ) {
+                Thread.sleep(5);
+            }
+            Assert.assertFalse(spool.isActive());
+            Assert.assertEquals(0, directory.listFiles().length);
+        } finally {
+            writer.stop();
+            spool.stop();
+        }
+    }
+
+    @Test
+    public void writeNewPointsWhileReplaying() throws Exception {
+        DiskSpool spool = new DiskSpool(kairosDatastore, metrics, directory, 1024, 1024 * 1024, 100);
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 100, 10, 1, 10, spool, 1000);
+        spool.start();
+        writer.start();
+        try {
+            datastore.setFailing(true);
+            for (int i = 0; i < 50; i++) {
+                writer.write("cpu.value", TAGS, new LongDataPoint(i, i));
+            }
+            writer.flush();
+            long spooled = 0;
+            for (long deadline = System.currentTimeMillis() + 5000; spooled < 50 && System.currentTimeMillis() < deadline; ) {
+                spooled += metrics.resetSpooledPoints();
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(50, spooled);
+
+//            Ingesting far above the replay rate of 100 points/s, through the spool it would take 20s
+            datastore.setFailing(false);
+            for (int i = 50; i < 2050; i++) {
+                writer.write("cpu.value", TAGS, new LongDataPoint(i, i));
+            }
+            writer.flush();
+            Assert.assertTrue(datastore.await(2050, 5000));
+            Assert.assertEquals(0, metrics.resetSpooledPoints());
+            Assert.assertEquals(50, metrics.resetReplayedPoints());
+        } finally {
+            writer.stop();
+            spool.stop();
+        }
+    }
+
+    @Test
+    public void syncWriterReportsPointsNotSpooled() throws Exception {
+        DiskSpool spool = spool(1024, 1024);
+        InfluxBatchWriter writer = new InfluxBatchWriter(kairosDatastore, 1000, 60000, 1, 10, spool, 1000);
+        writer.start();
+        try {
+            datastore.setFailing(true);
+//            Spooled, as good as written
+            InfluxBatchWriter.SyncWriter sync = writer.syncWriter();
+            sync.write("cpu.value", TAGS, new LongDataPoint(1, 1));
+            sync.flush();
+
+//            More than the single segment of the spool holds
+            for (int i = 0; i < 200; i++) {
+                sync.write("cpu.value", TAGS, new LongDataPoint(i, i));
+            }
+            try {
+                sync.flush();
+                Assert.fail("The points dropped by the full spool should be reported");
+            } catch (DatastoreException expected) {
+            }
+            Assert.assertTrue(metrics.resetSpoolDroppedPoints() > 0);
+        } finally {
+            datastore.setFailing(false);
+            writer.stop();
+            spool.stop();
+        }
+    }
+
+    @Test
+    public void recoverSegmentsOnStart() throws Exception {
+        DiskSpool spool = spool(4096, 1024 * 1024);
+        Assert.assertTrue(spool.append("cpu.value", TAGS, new LongDataPoint(1, 1)));
+        Assert.assertTrue(spool.append("cpu.ratio", TAGS, new DoubleDataPoint(2, 2.5)));
+        Assert.assertTrue(spool.append("cpu.state", TAGS, new StringDataPoint(3, "idle")));
+        Assert.assertTrue(spool.append("cpu.value", TAGS, new LongDataPoint(4, 4)));
+        spool.stop();
+
+//        Tear the last record, as a crash in the middle of its write
+        File[] files = directory.listFiles();
+        Assert.assertEquals(1, files.length);
+        RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+        try {
+            long last = raf.length() - 1;
+            while (last > 0) {
+                raf.seek(last);
+                if (raf.read() != 0) {
+                    break;
+                }
+                last--;
+            }
+            raf.seek(last);
+            raf.write(0x7f);
+        } finally {
+            raf.close();
+        }
+
+        DiskSpool recovered = spool(4096, 1024 * 1024);
+        recovered.start();
+        try {
+            Assert.assertTrue(datastore.await(3, 5000));
+            Thread.sleep(50);
+            List<InMemoryDatastore.Row> rows = datastore.getRows();
+            Assert.assertEquals(3, rows.size());
+            Assert.assertEquals("cpu.value", rows.get(0).metricName);
+            Assert.assertEquals(1, rows.get(0).dataPoint.getLongValue());
+            Assert.assertEquals("cpu.ratio", rows.get(1).metricName);
+            Assert.assertEquals(2.5, rows.get(1).dataPoint.getDoubleValue(), 0);
+            Assert.assertEquals("cpu.state", rows.get(2).metricName);
+            Assert.assertEquals("idle", ((StringDataPoint) rows.get(2).dataPoint).getValue());
+            Assert.assertEquals(TAGS, rows.get(2).tags);
+        } finally {
+            recovered.stop();
+        }
+    }
+
+    @Test
+    public void dropWhenFull() throws Exception {
+        DiskSpool spool = spool(1024, 1024);
+        int appended = 0;
+        while (spool.append("cpu.value", TAGS, new LongDataPoint(appended, appended))) {
+            appended++;
+        }
+        Assert.assertTrue(appended > 10);
+        Assert.assertEquals(1, metrics.resetSpoolDroppedPoints());
+        Assert.assertEquals(appended, metrics.resetSpooledPoints());
+        Assert.assertEquals(1024, spool.getSize());
+    }
+
+    @Test
+    public void rejectPointsLargerThanASegment() throws Exception {
+        DiskSpool spool = spool(1024, 1024 * 1024);
+        Assert.assertTrue(spool.append("cpu.value", TAGS, new LongDataPoint(1, 1)));
+
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 2048) {
+            value.append("idle ");
+        }
+        Assert.assertFalse(spool.append("cpu.state", TAGS, new StringDataPoint(2, value.toString())));
+        Assert.assertEquals(1, metrics.resetSpoolOversizedPoints());
+//        Rejected without rolling over to a new segment
+        Assert.assertEquals(1024, spool.getSize());
+        Assert.assertEquals(1, directory.listFiles().length);
+
+        Assert.assertTrue(spool.append("cpu.value", TAGS, new LongDataPoint(3, 3)));
+        Assert.assertEquals(2, metrics.resetSpooledPoints());
+        spool.stop();
+    }
+
+    @Test
+    public void disabledWithoutDirectory() {
+        DiskSpool spool = new DiskSpool(kairosDatastore, metrics, (File) null, 0, 0, 1);
+        Assert.assertFalse(spool.isEnabled());
+        Assert.assertFalse(spool.append("cpu.value", TAGS, new LongDataPoint(1, 1)));
+    }
+}
@@ -0,0 +1,87 @@
+package org.kairosdb.plugin.influx.tcp;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngester;
+
+import java.io.OutputStream;
+import java.net.Socket;
+
+public class InfluxTCPServerTest {
+    private InMemoryDatastore datastore;
+    private InfluxBatchWriter writer;
+    private InfluxTCPServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        datastore = new InMemoryDatastore();
+        writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 10, 1, 10);
+        server = new InfluxTCPServer(new InfluxIngester(writer, ".", 1000, 1024), 0, "127.0.0.1", 1024, "ns");
+        writer.start();
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        writer.stop();
+    }
+
+    @Test
+    public void linesSplitAcrossReads() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            send(out, "cpu,host=a usage_idle=1i 14763483940");
+            send(out, "00000000\r\ncpu,host=b usa");
+            send(out, "ge_idle=2i 1476348395000000000\ncpu,host=c usage_idle=3i 1476348396000000000\n");
+        } finally {
+            socket.close();
+        }
+
+        Assert.assertTrue(datastore.await(3, 5000));
+        Assert.assertEquals(3, datastore.size());
+        for (int i = 0; i < 3; i++) {
+            InMemoryDatastore.Row row = datastore.getRows().get(i);
+            Assert.assertEquals("cpu.usage_idle", row.metricName);
+            Assert.assertEquals(String.valueOf((char) ('a' + i)), row.tags.get("host"));
+            Assert.assertEquals(i + 1, row.dataPoint.getLongValue());
+            Assert.assertEquals(1476348394000L + i * 1000, row.dataPoint.getTimestamp());
+        }
+    }
+
+    @Test
+    public void tooLongLineIsSkipped() throws Exception {
+        StringBuilder tooLong = new StringBuilder("cpu,host=");
+        while (tooLong.length() < 2048) {
+            tooLong.append('x');
+        }
+        tooLong.append(" usage_idle=1i 1476348394000000000\n");
+
+        Socket socket = new Socket("127.0.0.1", server.getLocalAddress().getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            send(out, tooLong.toString());
+            send(out, "cpu,host=a usage_idle=2i 1476348395000000000\n");
+        } finally {
+            socket.close();
+        }
+
+        Assert.assertTrue(datastore.await(1, 5000));
+        Thread.sleep(100);
+        Assert.assertEquals(1, datastore.size());
+        Assert.assertEquals(2, datastore.getRows().get(0).dataPoint.getLongValue());
+    }
+
+    private static void send(OutputStream out, String data) throws Exception {
+        out.write(data.getBytes(Charsets.UTF_8));
+        out.flush();
+        Thread.sleep(20);
+    }
+}
@@ -1,21 +1,74 @@
 package org.kairosdb.plugin.influx.udp;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Assert;
 import org.junit.Test;
 import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.plugin.influx.InfluxLineHandler;
 import org.kairosdb.plugin.influx.InfluxLineProtocolParser;
 import org.kairosdb.plugin.influx.InfluxMetric;
+import org.kairosdb.plugin.influx.InfluxSeries;
+import org.kairosdb.plugin.influx.ParseOptions;
+import org.kairosdb.plugin.influx.Precision;
+import org.kairosdb.plugin.influx.SeriesCache;
 
 /**
  * Created by bperroud on 13/08/16.
  */
 public class InfluxLineProtocolParserTest {
 
+    private static final String COMPLEX_LINE = "cpu\\ 1,host\\,1=test\\ 1,foo=bar,buggy1 1min=0.01,5min=0.05,15min=0.15,string=\"Test \\\" complex string = , yahoo!!\",buggy2 1471122447000000000";
+
+    /**
+     * Parse through the byte path, with the line in the middle of a larger array to exercise the offsets.
+     */
+    private static InfluxMetric parseBytes(String line) {
+        byte[] bytes = ("garbage\n" + line + "\ngarbage").getBytes(Charsets.UTF_8);
+        int length = line.getBytes(Charsets.UTF_8).length;
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(bytes, 8, length);
+        return InfluxLineProtocolParser.parse(buffer);
+    }
+
     @Test
     public void parse() throws Exception {
 
-        InfluxMetric influxMetric = InfluxLineProtocolParser.parse("cpu\\ 1,host\\,1=test\\ 1,foo=bar,buggy1 1min=0.01,5min=0.05,15min=0.15,string=\"Test \\\" complex string = , yahoo!!\",buggy2 1471122447000000000");
+        InfluxMetric influxMetric = InfluxLineProtocolParser.parse(COMPLEX_LINE);
+        assertComplexLine(influxMetric);
+
+//        Ensure buggy lines don't crash the parsing. We're pretty permissive and tends to discard bad data
+//        instead of failing.
+        influxMetric = InfluxLineProtocolParser.parse("cpu");
+        influxMetric = InfluxLineProtocolParser.parse("cpu,");
+        influxMetric = InfluxLineProtocolParser.parse("cpu ");
+        influxMetric = InfluxLineProtocolParser.parse("cpu, 5min=0.01,string=\"value with spaces and = and , and everything\"");
+        influxMetric = InfluxLineProtocolParser.parse("cpu,host=test 5min=0.01 1471122447000000000");
+
+    }
 
+    @Test
+    public void parseBytes() throws Exception {
+
+        InfluxMetric influxMetric = parseBytes(COMPLEX_LINE);
+        assertComplexLine(influxMetric);
+
+        Assert.assertNull(parseBytes(""));
+        Assert.assertEquals(0, parseBytes("cpu").getDataPoints().size());
+        Assert.assertEquals(0, parseBytes("cpu,").getDataPoints().size());
+        Assert.assertEquals(0, parseBytes("cpu ").getDataPoints().size());
+        Assert.assertEquals(2, parseBytes("cpu, 5min=0.01,string=\"value with spaces and = and , and everything\"").getDataPoints().size());
+        Assert.assertEquals(1, parseBytes("cpu,host=test 5min=0.01 1471122447000000000").getDataPoints().size());
+        Assert.assertEquals(1, parseBytes("cpu a=1,b=,=2 1471122447000000000").getDataPoints().size());
+
+        influxMetric = parseBytes("caf\u00e9,h\u00f4te=z\u00fcrich temp\u00e9rature=21.5");
+        Assert.assertEquals("caf\u00e9", influxMetric.getName());
+        Assert.assertEquals("z\u00fcrich", influxMetric.getTags().get("h\u00f4te"));
+        Assert.assertEquals(21.5, influxMetric.getDataPoints().get("temp\u00e9rature").getDoubleValue(), 0.000001);
+    }
+
+    private static void assertComplexLine(InfluxMetric influxMetric) {
         Assert.assertEquals("cpu 1", influxMetric.getName());
 
         Assert.assertEquals(2, influxMetric.getTags().size());
@@ -34,15 +87,24 @@ public class InfluxLineProtocolParserTest {
         Assert.assertEquals(0.15, influxMetric.getDataPoints().get("15min").getDoubleValue(), 0.000001);
         Assert.assertTrue(influxMetric.getDataPoints().containsKey("string"));
         Assert.assertEquals("Test \" complex string = , yahoo!!", ((StringDataPoint)influxMetric.getDataPoints().get("string")).getValue());
+    }
 
-//        Ensure buggy lines don't crash the parsing. We're pretty permissive and tends to discard bad data
-//        instead of failing.
-        influxMetric = InfluxLineProtocolParser.parse("cpu");
-        influxMetric = InfluxLineProtocolParser.parse("cpu,");
-        influxMetric = InfluxLineProtocolParser.parse("cpu ");
-        influxMetric = InfluxLineProtocolParser.parse("cpu, 5min=0.01,string=\"value with spaces and = and , and everything\"");
-        influxMetric = InfluxLineProtocolParser.parse("cpu,host=test 5min=0.01 1471122447000000000");
+    private static final String BUGGY_LINE = "kafka.server.BrokerTopicMetrics.BytesInPerSec,host=pmidevkafka4." +
+            "pmi.com,topic=_schemas 15MinuteRate=0.0000000000000000000000000000000000000000000000000000000000000000000000" +
+            "0000000000000000000000000000019443964741622819,1MinuteRate=0.00000000000000000000002964393875,5MinuteRate=0.000" +
+            "00000000000000kafka.log.Log.LogEndOffset,host=pmidevkafka2.node.pmidev.ocean,partition=39,topic=__consumer_offsets value=1" +
+            "5746i 1476348394796000000";
 
+    @Test
+    public void testBuggyLineBytes() {
+//        Two lines glued together: unparseable values are discarded, the valid ones are kept.
+        InfluxMetric influxMetric = parseBytes(BUGGY_LINE);
+        Assert.assertEquals(3, influxMetric.getDataPoints().size());
+        Assert.assertTrue(influxMetric.getDataPoints().containsKey("15MinuteRate"));
+        Assert.assertTrue(influxMetric.getDataPoints().containsKey("1MinuteRate"));
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("5MinuteRate"));
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("host"));
+        Assert.assertEquals(39.0, influxMetric.getDataPoints().get("partition").getDoubleValue(), 0.000001);
     }
 
     @Test
@@ -106,5 +168,164 @@ public class InfluxLineProtocolParserTest {
         Assert.assertTrue(influxMetric.getDataPoints().containsKey("5min"));
         Assert.assertEquals(12312323L, influxMetric.getDataPoints().get("5min").getLongValue());
 
+        influxMetric = parseBytes("cpu1 1min=0i,5min=12312323i");
+        Assert.assertEquals("cpu1", influxMetric.getName());
+        Assert.assertEquals(0, influxMetric.getTags().size());
+        Assert.assertEquals(2, influxMetric.getDataPoints().size());
+        Assert.assertEquals(0L, influxMetric.getDataPoints().get("1min").getLongValue());
+        Assert.assertEquals(12312323L, influxMetric.getDataPoints().get("5min").getLongValue());
+    }
+
+    @Test
+    public void parseNumbers() throws Exception {
+
+        InfluxMetric influxMetric = InfluxLineProtocolParser.parse("numbers " +
+                "l1=-42i,l2=9223372036854775807i,l3=-9223372036854775808i,l4=9223372036854775808i,l5=1.5i,l6=i," +
+                "d1=-0.25,d2=+3,d3=1e3,d4=2.5E-3,d5=.5,d6=123456789012345678901234567890,d7=1.7976931348623157e308," +
+                "d8=0.1,d9=4.9e-324,d10=1.2.3,d11=e5,d12=- 1471122447000000000");
+
+        Assert.assertEquals(-42L, influxMetric.getDataPoints().get("l1").getLongValue());
+        Assert.assertEquals(Long.MAX_VALUE, influxMetric.getDataPoints().get("l2").getLongValue());
+        Assert.assertEquals(Long.MIN_VALUE, influxMetric.getDataPoints().get("l3").getLongValue());
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("l4"));
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("l5"));
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("l6"));
+
+        Assert.assertEquals(-0.25, influxMetric.getDataPoints().get("d1").getDoubleValue(), 0);
+        Assert.assertEquals(3.0, influxMetric.getDataPoints().get("d2").getDoubleValue(), 0);
+        Assert.assertEquals(1000.0, influxMetric.getDataPoints().get("d3").getDoubleValue(), 0);
+        Assert.assertEquals(0.0025, influxMetric.getDataPoints().get("d4").getDoubleValue(), 0);
+        Assert.assertEquals(0.5, influxMetric.getDataPoints().get("d5").getDoubleValue(), 0);
+        Assert.assertEquals(1.2345678901234568E29, influxMetric.getDataPoints().get("d6").getDoubleValue(), 0);
+        Assert.assertEquals(Double.MAX_VALUE, influxMetric.getDataPoints().get("d7").getDoubleValue(), 0);
+        Assert.assertEquals(0.1, influxMetric.getDataPoints().get("d8").getDoubleValue(), 0);
+        Assert.assertEquals(Double.MIN_VALUE, influxMetric.getDataPoints().get("d9").getDoubleValue(), 0);
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("d10"));
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("d11"));
+        Assert.assertFalse(influxMetric.getDataPoints().containsKey("d12"));
+
+        Assert.assertEquals(1471122447000L, influxMetric.getDataPoints().get("d1").getTimestamp());
+    }
+
+    @Test
+    public void parseWithSeriesCache() throws Exception {
+        SeriesCache seriesCache = new SeriesCache(10, ".");
+
+        InfluxMetric first = InfluxLineProtocolParser.parse(ChannelBuffers.copiedBuffer(COMPLEX_LINE, Charsets.UTF_8), seriesCache);
+        assertComplexLine(first);
+        Assert.assertEquals(1, seriesCache.size());
+
+        InfluxMetric second = InfluxLineProtocolParser.parse(ChannelBuffers.copiedBuffer(COMPLEX_LINE, Charsets.UTF_8), seriesCache);
+        assertComplexLine(second);
+        Assert.assertSame(first.getSeries(), second.getSeries());
+        Assert.assertSame(first.getTags(), second.getTags());
+        Assert.assertEquals("cpu 1.1min", second.getSeries().getMetricName("1min"));
+        Assert.assertSame(first.getSeries().getMetricName("1min"), second.getSeries().getMetricName("1min"));
+
+        InfluxMetric other = InfluxLineProtocolParser.parse(ChannelBuffers.copiedBuffer("cpu\\ 1,host\\,1=test\\ 2 v=1", Charsets.UTF_8), seriesCache);
+        Assert.assertNotSame(first.getSeries(), other.getSeries());
+        Assert.assertEquals("test 2", other.getTags().get("host,1"));
+        Assert.assertEquals(2, seriesCache.size());
+        Assert.assertEquals(1, seriesCache.stats().hitCount());
+        Assert.assertEquals(2, seriesCache.stats().missCount());
+
+//        Field names of a known series are not decoded again
+        InfluxSeries.Field field = first.getSeries().getField("1min=".getBytes(Charsets.UTF_8), 0, 4, 0);
+        Assert.assertEquals("1min", field.getName());
+        Assert.assertNull(first.getSeries().getField("2min=".getBytes(Charsets.UTF_8), 0, 4, 0));
+    }
+
+    @Test
+    public void parseWithHandler() throws Exception {
+        final StringBuilder events = new StringBuilder();
+        InfluxLineHandler handler = new InfluxLineHandler() {
+            @Override
+            public void begin(String measurement, ImmutableSortedMap<String, String> tags, InfluxSeries series, long timestamp) {
+                events.append("begin ").append(measurement).append(' ').append(tags).append(' ')
+                        .append(series != null).append(' ').append(timestamp).append('|');
+            }
+
+            @Override
+            public void longField(String field, long value) {
+                events.append("long ").append(field).append('=').append(value).append('|');
+            }
+
+            @Override
+            public void doubleField(String field, double value) {
+                events.append("double ").append(field).append('=').append(value).append('|');
+            }
+
+            @Override
+            public void stringField(String field, String value) {
+                events.append("string ").append(field).append('=').append(value).append('|');
+            }
+
+            @Override
+            public void end() {
+                events.append("end");
+            }
+        };
+
+        byte[] line = "cpu\\ 1,host=a b=2i,c=x,d=1.5,e=\"s\" 1471122447000000000".getBytes(Charsets.UTF_8);
+        Assert.assertTrue(InfluxLineProtocolParser.parse(line, 0, line.length, null, ParseOptions.DEFAULT, 0L, handler));
+        Assert.assertEquals("begin cpu 1 {host=a} false 1471122447000|long b=2|double d=1.5|string e=s|end", events.toString());
+
+        events.setLength(0);
+        SeriesCache seriesCache = new SeriesCache(10, ".");
+        Assert.assertTrue(InfluxLineProtocolParser.parse(ChannelBuffers.wrappedBuffer(line), seriesCache, ParseOptions.DEFAULT, 0L, handler));
+        Assert.assertTrue(events.toString().startsWith("begin cpu 1 {host=a} true "));
+
+        events.setLength(0);
+        Assert.assertFalse(InfluxLineProtocolParser.parse(new byte[0], 0, 0, seriesCache, ParseOptions.DEFAULT, 0L, handler));
+        Assert.assertEquals("", events.toString());
+    }
+
+    @Test
+    public void parseTimestamps() throws Exception {
+        byte[] line = "cpu v=1i 1471122447".getBytes(Charsets.UTF_8);
+        final long[] timestamp = new long[1];
+        InfluxLineHandler handler = new InfluxLineHandler() {
+            @Override
+            public void begin(String measurement, ImmutableSortedMap<String, String> tags, InfluxSeries series, long ts) {
+                timestamp[0] = ts;
+            }
+
+            @Override
+            public void longField(String field, long value) {
+            }
+
+            @Override
+            public void doubleField(String field, double value) {
+            }
+
+            @Override
+            public void stringField(String field, String value) {
+            }
+
+            @Override
+            public void end() {
+            }
+        };
+
+        InfluxLineProtocolParser.parse(line, 0, line.length, null, ParseOptions.DEFAULT.withPrecision(Precision.SECONDS), 42L, handler);
+        Assert.assertEquals(1471122447000L, timestamp[0]);
+        InfluxLineProtocolParser.parse(line, 0, line.length, null, ParseOptions.DEFAULT.withPrecision(Precision.MILLISECONDS), 42L, handler);
+        Assert.assertEquals(1471122447L, timestamp[0]);
+        InfluxLineProtocolParser.parse(line, 0, line.length, null, ParseOptions.DEFAULT.withPrecision(Precision.fromName("u")), 42L, handler);
+        Assert.assertEquals(1471122L, timestamp[0]);
+
+//        Lines without timestamp get the default one, in milliseconds whatever the precision
+        line = "cpu v=1i".getBytes(Charsets.UTF_8);
+        InfluxLineProtocolParser.parse(line, 0, line.length, null, ParseOptions.DEFAULT, 42L, handler);
+        Assert.assertEquals(42L, timestamp[0]);
+
+        long before = System.currentTimeMillis();
+        long parsed = InfluxLineProtocolParser.parse("cpu v=1i").getDataPoints().get("v").getTimestamp();
+        Assert.assertTrue(parsed >= before && parsed <= System.currentTimeMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownPrecision() {
+        Precision.fromName("d");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+package org.kairosdb.plugin.influx.udp;
+
+import com.google.common.base.Charsets;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.kairosdb.plugin.influx.InMemoryDatastore;
+import org.kairosdb.plugin.influx.InfluxBatchWriter;
+import org.kairosdb.plugin.influx.InfluxIngestQueue;
+import org.kairosdb.plugin.influx.InfluxIngester;
+import org.kairosdb.plugin.influx.Precision;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InfluxUDPServerTest {
+
+    @Test
+    public void receiveLargeDatagram() throws Exception {
+        InMemoryDatastore datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 10, 1, 10);
+        InfluxIngestQueue queue = new InfluxIngestQueue(new InfluxIngester(writer, ".", 1000, 1024), 16, 1,
+                InfluxIngestQueue.OverflowPolicy.BLOCK);
+        InfluxUDPServer server = new InfluxUDPServer(queue, 0, 65536);
+        writer.start();
+        queue.start();
+        server.start();
+        try {
+//            Many lines in one datagram, way over the size of a typical MTU
+            StringBuilder lines = new StringBuilder();
+            int count = 0;
+            while (lines.length() < 60000) {
+                lines.append("cpu,host=web-").append(count).append(".dc1.example.com usage_idle=").append(count)
+                        .append("i 1476348394000000000\n");
+                count++;
+            }
+            byte[] datagram = lines.toString().getBytes(Charsets.UTF_8);
+
+            InetSocketAddress address = server.getLocalAddress();
+            DatagramSocket socket = new DatagramSocket();
+            try {
+                socket.send(new DatagramPacket(datagram, datagram.length, address));
+            } finally {
+                socket.close();
+            }
+
+            Assert.assertTrue(datastore.await(count, 5000));
+            Assert.assertEquals(count - 1, datastore.getRows().get(count - 1).dataPoint.getLongValue());
+            Assert.assertEquals(1476348394000L, datastore.getRows().get(0).dataPoint.getTimestamp());
+        } finally {
+            server.stop();
+            queue.stop();
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void linesAreParsedInPlace() throws Exception {
+        InMemoryDatastore datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 10, 1, 10);
+        final AtomicInteger copied = new AtomicInteger();
+        InfluxIngester ingester = new InfluxIngester(writer, ".", 1000, 1024) {
+            @Override
+            public int ingest(ChannelBuffer line, Precision precision, long defaultTimestamp) {
+//                The parser only copies the lines of buffers without array
+                if (!line.hasArray()) {
+                    copied.incrementAndGet();
+                }
+                return super.ingest(line, precision, defaultTimestamp);
+            }
+        };
+        InfluxIngestQueue queue = new InfluxIngestQueue(ingester, 16, 1, InfluxIngestQueue.OverflowPolicy.BLOCK);
+        InfluxUDPServer server = new InfluxUDPServer(queue, 0, 4096);
+        writer.start();
+        queue.start();
+        server.start();
+        try {
+//            A small datagram, moved to a buffer of its size, and one filling most of its buffer, queued as is
+            StringBuilder large = new StringBuilder();
+            int count = 1;
+            while (large.length() < 3000) {
+                large.append("cpu,host=web-").append(count++).append(" usage_idle=1i\n");
+            }
+            DatagramSocket socket = new DatagramSocket();
+            try {
+                for (String lines : new String[]{"cpu,host=web-0 usage_idle=1i\n", large.toString()}) {
+                    byte[] datagram = lines.getBytes(Charsets.UTF_8);
+                    socket.send(new DatagramPacket(datagram, datagram.length, server.getLocalAddress()));
+                }
+            } finally {
+                socket.close();
+            }
+
+            Assert.assertTrue(datastore.await(count, 5000));
+            Assert.assertEquals(0, copied.get());
+        } finally {
+            server.stop();
+            queue.stop();
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void legacyMaxSizeIsStillHonored() throws Exception {
+        InMemoryDatastore datastore = new InMemoryDatastore();
+        InfluxBatchWriter writer = new InfluxBatchWriter(InMemoryDatastore.kairosDatastore(datastore), 1000, 10, 1, 10);
+        InfluxIngestQueue queue = new InfluxIngestQueue(new InfluxIngester(writer, ".", 1000, 1024), 16, 1,
+                InfluxIngestQueue.OverflowPolicy.BLOCK);
+        InfluxUDPServer server = new InfluxUDPServer(queue, 0, 65536);
+//        As injected when max_size is set
+        server.setLegacyMaxSize(1024);
+        writer.start();
+        queue.start();
+        server.start();
+        try {
+//            The second line goes past max_size, it is truncated and invalid
+            StringBuilder lines = new StringBuilder("cpu,host=a usage_idle=1i 1476348394000000000\ncpu,host=");
+            while (lines.length() < 2000) {
+                lines.append('b');
+            }
+            lines.append(" usage_idle=2i 1476348394000000000\n");
+            byte[] datagram = lines.toString().getBytes(Charsets.UTF_8);
+
+            DatagramSocket socket = new DatagramSocket();
+            try {
+                socket.send(new DatagramPacket(datagram, datagram.length, server.getLocalAddress()));
+            } finally {
+                socket.close();
+            }
+
+            Assert.assertTrue(datastore.await(1, 5000));
+            Thread.sleep(100);
+            Assert.assertEquals(1, datastore.size());
+            Assert.assertEquals("a", datastore.getRows().get(0).tags.get("host"));
+        } finally {
+            server.stop();
+            queue.stop();
+            writer.stop();
+        }
+    }
+}